@@ -0,0 +1,152 @@
+/**
+    Benchmark of the streaming config codec (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.vuvk.n3d.Global;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Сравнение потокового ConfigCodec с прежним разбором конфига в дерево JsonObject через Gson
+ * на конфиге текстур из size записей - чтение при открытии проекта и запись при сохранении.
+ * Запуск: java -cp "target/classes:target/lib/*" org.openjdk.jmh.Main ConfigCodecBenchmark -prof gc
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigCodecBenchmark {
+    
+    /** количество записей в конфиге */
+    @Param({"1000", "50000"})
+    int size;
+    
+    Path config;
+    List<Texture> textures;
+    Gson gson;
+    
+    @Setup
+    public void setup() throws IOException {
+        Global.initPathResources();
+        Global.initPathConfig();
+        
+        // ленивые текстуры - файлы не читаются, нужны только id и пути
+        textures = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            textures.add(new Texture(Paths.get("resources/textures/level" + (i / 100), "wall" + i + ".png"), i + 1));
+        }
+        gson = new GsonBuilder().create();
+        
+        config = Files.createTempFile("textures", ".sav");
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            ConfigCodec.write(stream, Texture.CONFIG_IDENTIFICATOR, Texture.CONFIG_VERSION, textures, null);
+            Files.write(config, stream.toByteArray());
+        }
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        Texture.closeAll();
+        Files.deleteIfExists(config);
+    }
+    
+    @Benchmark
+    public int readStream() throws IOException {
+        int[] count = new int[1];
+        ConfigCodec.read(config, 
+                         Texture.CONFIG_IDENTIFICATOR, 
+                         Double.parseDouble(Texture.CONFIG_VERSION), 
+                         entry -> count[0] += (entry.path != null) ? 1 : 0);
+        return count[0];
+    }
+    
+    @Benchmark
+    public int readTree() throws IOException {
+        int count = 0;
+        try (Reader reader = Files.newBufferedReader(config, ConfigCodec.CHARSET)) {
+            JsonObject root = gson.fromJson(reader, JsonObject.class);
+            if (root.get("identificator").getAsString().equals(Texture.CONFIG_IDENTIFICATOR)) {
+                for (JsonElement element : root.getAsJsonArray("data")) {
+                    JsonObject obj = element.getAsJsonObject();
+                    obj.get("id").getAsLong();
+                    if (obj.get("path").getAsString() != null) {
+                        ++count;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    @Benchmark
+    public int writeStream() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ConfigCodec.write(stream, Texture.CONFIG_IDENTIFICATOR, Texture.CONFIG_VERSION, textures, null);
+        return stream.size();
+    }
+    
+    @Benchmark
+    public int writeTree() throws IOException {
+        JsonArray data = new JsonArray();
+        for (Texture txr : textures) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("id", txr.getId());
+            obj.addProperty("path", txr.getPath());
+            data.add(obj);
+        }
+        JsonObject root = new JsonObject();
+        root.addProperty("identificator", Texture.CONFIG_IDENTIFICATOR);
+        root.addProperty("version", Texture.CONFIG_VERSION);
+        root.add("data", data);
+        
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(stream, ConfigCodec.CHARSET)) {
+            gson.toJson(root, writer);
+        }
+        return stream.size();
+    }
+}
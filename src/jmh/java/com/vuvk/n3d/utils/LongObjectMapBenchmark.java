@@ -0,0 +1,112 @@
+/**
+    Benchmark of the long-keyed id map (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Сравнение LongObjectMap с HashMap&lt;Long, ...&gt; на поиске ресурсов по id -
+ * так при открытии проекта разрешаются texture_id кадров материалов и сторон скайбоксов.
+ * Запуск: java -cp "target/classes:target/lib/*" org.openjdk.jmh.Main LongObjectMapBenchmark -prof gc
+ * (профилировщик gc покажет, что LongObjectMap не выделяет память)
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LongObjectMapBenchmark {
+    
+    /** количество ресурсов */
+    @Param({"1000", "100000"})
+    int size;
+    /** id подряд, как после загрузки проекта, или вразброс, как после удалений и переносов */
+    @Param({"sequential", "random"})
+    String ids;
+    
+    /** порядок обращений: каждый id по разу в случайном порядке */
+    long[] lookups;
+    LongObjectMap<Object> longMap;
+    Map<Long, Object> hashMap;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        long[] keys = new long[size];
+        for (int i = 0; i < size; ++i) {
+            keys[i] = ids.equals("sequential") ? i + 1 : random.nextLong() & Long.MAX_VALUE;
+        }
+        
+        longMap = new LongObjectMap<>(size);
+        hashMap = new HashMap<>(size * 2);
+        for (long key : keys) {
+            Object value = new Object();
+            longMap.put(key, value);
+            hashMap.put(key, value);
+        }
+        
+        lookups = keys.clone();
+        for (int i = lookups.length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            long swap = lookups[i];
+            lookups[i] = lookups[j];
+            lookups[j] = swap;
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(100000)
+    public int longObjectMapGet() {
+        int found = 0;
+        for (int i = 0; i < 100000; ++i) {
+            if (longMap.get(lookups[i % size]) != null) {
+                ++found;
+            }
+        }
+        return found;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(100000)
+    public int hashMapGet() {
+        int found = 0;
+        for (int i = 0; i < 100000; ++i) {
+            if (hashMap.get(lookups[i % size]) != null) {
+                ++found;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,205 @@
+/**
+    Benchmark of the PNG texture decoder (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Сравнение PngDecoder с ImageIO + prepareImage на чтении текстур при открытии проекта.
+ * Время - на весь набор файлов. Набор - PNG из папки dir (например, resources/ проекта)
+ * или, если папка не задана, синтетические текстуры size x size, записанные через ImageIO, как их пишет редактор.
+ * fallback - те же файлы с фрагментом gAMA: PngDecoder их отклоняет, и они читаются через ImageIO,
+ * так что разница с imageIO - цена отклоненной попытки.
+ * Запуск: java -cp "target/classes:target/lib/*" org.openjdk.jmh.Main PngDecoderBenchmark -p dir=path/to/resources/textures
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PngDecoderBenchmark {
+    
+    /** папка с PNG (пусто - синтетический набор) */
+    @Param({""})
+    String dir;
+    /** сторона синтетических текстур */
+    @Param({"64", "256", "1024"})
+    int size;
+    /** количество синтетических текстур */
+    @Param({"16"})
+    int count;
+    
+    /** содержимое файлов */
+    List<byte[]> files;
+    /** те же файлы с фрагментом gAMA */
+    List<byte[]> gammaFiles;
+    
+    @Setup
+    public void setup() throws IOException {
+        files = dir.isEmpty() ? generate() : readFolder(Paths.get(dir));
+        gammaFiles = new ArrayList<>(files.size());
+        for (byte[] data : files) {
+            gammaFiles.add(insertChunk(data, "gAMA", new byte[] {0, 0, (byte) 0xB1, (byte) 0x8F}));
+        }
+    }
+    
+    /**
+     * Прочитать все PNG папки
+     * @param folder Папка
+     * @return содержимое файлов
+     * @throws IOException ошибка чтения
+     */
+    private static List<byte[]> readFolder(Path folder) throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*.png")) {
+            for (Path file : stream) {
+                result.add(Files.readAllBytes(file));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Создать синтетические текстуры: плавные градиенты с шумом и полупрозрачными пикселями,
+     * чтобы сжатие и фильтры строк были похожи на настоящие
+     * @return содержимое файлов
+     * @throws IOException ошибка записи
+     */
+    private List<byte[]> generate() throws IOException {
+        Random random = new Random(42);
+        List<byte[]> result = new ArrayList<>(count);
+        for (int n = 0; n < count; ++n) {
+            BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            for (int y = 0; y < size; ++y) {
+                for (int x = 0; x < size; ++x) {
+                    int r = (x * 255 / size + random.nextInt(8)) & 0xFF;
+                    int g = (y * 255 / size + random.nextInt(8)) & 0xFF;
+                    int b = (n * 16 + random.nextInt(8)) & 0xFF;
+                    int a = ((x ^ y) & 15) == 0 ? 0x80 : 0xFF;
+                    image.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", out);
+            result.add(out.toByteArray());
+        }
+        return result;
+    }
+    
+    /**
+     * Вставить фрагмент сразу после IHDR
+     * @param png Содержимое файла
+     * @param type Тип фрагмента
+     * @param body Данные фрагмента
+     * @return новое содержимое файла
+     */
+    private static byte[] insertChunk(byte[] png, String type, byte[] body) {
+        // сигнатура (8) и IHDR (4 + 4 + 13 + 4)
+        int end = 33;
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(body);
+        
+        ByteBuffer result = ByteBuffer.allocate(png.length + 12 + body.length);
+        result.put(png, 0, end)
+              .putInt(body.length)
+              .put(name)
+              .put(body)
+              .putInt((int) crc.getValue())
+              .put(png, end, png.length - end);
+        return result.array();
+    }
+    
+    /**
+     * Прочитать файл так же, как Texture.decode: быстрым декодером, а если он отказался - через ImageIO
+     * @param data Содержимое файла
+     * @return подготовленное изображение
+     * @throws IOException ошибка чтения
+     */
+    private static BufferedImage decode(byte[] data) throws IOException {
+        BufferedImage image = PngDecoder.decode(ByteBuffer.wrap(data));
+        return (image != null) ? image : readImageIO(data);
+    }
+    
+    /**
+     * Прочитать файл через ImageIO и подготовить изображение
+     * @param data Содержимое файла
+     * @return подготовленное изображение
+     * @throws IOException ошибка чтения
+     */
+    private static BufferedImage readImageIO(byte[] data) throws IOException {
+        return ImageUtils.prepareImage(ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data))));
+    }
+    
+    @Benchmark
+    public int pngDecoder() throws IOException {
+        int pixels = 0;
+        for (byte[] data : files) {
+            pixels += decode(data).getWidth();
+        }
+        return pixels;
+    }
+    
+    @Benchmark
+    public int imageIO() throws IOException {
+        int pixels = 0;
+        for (byte[] data : files) {
+            pixels += readImageIO(data).getWidth();
+        }
+        return pixels;
+    }
+    
+    @Benchmark
+    public int fallback() throws IOException {
+        int pixels = 0;
+        for (byte[] data : gammaFiles) {
+            pixels += decode(data).getWidth();
+        }
+        return pixels;
+    }
+}
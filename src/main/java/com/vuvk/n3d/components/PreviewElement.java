@@ -19,6 +19,7 @@ package com.vuvk.n3d.components;
 
 import com.vuvk.n3d.Const;
 import com.vuvk.n3d.resources.Material;
+import com.vuvk.n3d.resources.ProjectFiles;
 import com.vuvk.n3d.resources.Skybox;
 import com.vuvk.n3d.resources.Sound;
 import com.vuvk.n3d.resources.Texture;
@@ -28,7 +29,7 @@ import com.vuvk.n3d.utils.MessageDialog;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.logging.Level;
@@ -82,7 +83,7 @@ public class PreviewElement {
         this.path = FileSystemUtils.getProjectPath(path);      
         this.fileName = path.getFileName().toString();
         
-        if (Files.isDirectory(path)) {
+        if (ProjectFiles.isDirectory(path)) {
             if (isUp) {
                 type = Type.LEVELUP;
                 name = "Вверх";
@@ -98,8 +99,9 @@ public class PreviewElement {
             extension = FileSystemUtils.getFileExtension(path.toFile());
             switch (extension) {
                 case Texture.FORMAT_EXT:
-                    try {
-                        icon = ImageUtils.resizeImage(ImageIO.read(path.toFile()), Const.ICON_PREVIEW_WIDTH, Const.ICON_PREVIEW_HEIGHT);
+                    // файл может быть и в архиве проекта
+                    try (InputStream in = ProjectFiles.newInputStream(path)) {
+                        icon = ImageUtils.resizeImage(ImageIO.read(in), Const.ICON_PREVIEW_WIDTH, Const.ICON_PREVIEW_HEIGHT);
                     } catch (IOException ex) {
                         Logger.getLogger(PreviewElement.class.getName()).log(Level.SEVERE, null, ex);
                         MessageDialog.showException(ex);
@@ -181,6 +183,14 @@ public class PreviewElement {
         return icon;
     }
     
+    /**
+     * Задать иконку объекта (например, после изменения изображения текстуры)
+     * @param icon Новая иконка
+     */
+    public void setIcon(BufferedImage icon) {
+        this.icon = icon;
+    }
+    
     /**
      * Получить тип объекта
      * @return 
@@ -0,0 +1,138 @@
+/**
+    List model over a registry snapshot (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.components;
+
+import com.vuvk.n3d.resources.Resource;
+import com.vuvk.n3d.resources.ResourceEvent;
+import com.vuvk.n3d.resources.ResourceListener;
+import com.vuvk.n3d.resources.ResourceRegistry;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import javax.swing.AbstractListModel;
+
+/**
+ * Модель списка, показывающая неизменяемый снимок хранилища ресурсов.
+ * Ничего не копирует и перестраивается только при смене версии хранилища.
+ * Может быть подписана на ResourceEvents - тогда обновляется один раз на пачку событий,
+ * а ресурсы с измененными данными (версия хранилища при этом не меняется) перерисовываются построчно
+ * @author Anton "Vuvk" Shcherbatykh
+ * @param <T> тип ресурсов
+ */
+public class ResourceListModel<T extends Resource> extends AbstractListModel<T> implements ResourceListener {
+    private static final long serialVersionUID = 1L;
+    
+    /** хранилище, которое отображает модель */
+    private final ResourceRegistry<T> registry;
+    /** текущий снимок хранилища */
+    private List<T> snapshot;
+    /** версия хранилища, с которой снят снимок */
+    private long version;
+    
+    public ResourceListModel(ResourceRegistry<T> registry) {
+        this.registry = registry;
+        this.version  = registry.getVersion();
+        this.snapshot = registry.snapshot();
+    }
+    
+    /**
+     * Обновить снимок, если хранилище изменилось
+     * @return true, если снимок был обновлен
+     */
+    public boolean refresh() {
+        long newVersion = registry.getVersion();
+        if (newVersion == version) {
+            return false;
+        }
+        
+        List<T> oldSnapshot = snapshot;
+        int oldSize = oldSnapshot.size();
+        version  = newVersion;
+        snapshot = registry.snapshot();
+        int newSize = snapshot.size();
+        
+        // ресурсы добавляются в конец, поэтому общее начало списков можно не трогать
+        int common = 0;
+        int limit = Math.min(oldSize, newSize);
+        while (common < limit && oldSnapshot.get(common) == snapshot.get(common)) {
+            ++common;
+        }
+        
+        if (common < oldSize) {
+            fireIntervalRemoved(this, common, oldSize - 1);
+        }
+        if (common < newSize) {
+            fireIntervalAdded(this, common, newSize - 1);
+        }
+        // состав тот же, но у ресурсов могли смениться пути и имена
+        if (common == oldSize && common == newSize && newSize > 0) {
+            fireContentsChanged(this, 0, newSize - 1);
+        }
+        return true;
+    }
+    
+    @Override
+    public void resourcesChanged(List<ResourceEvent> events) {
+        refresh();
+        
+        Set<Resource> modified = null;
+        for (ResourceEvent event : events) {
+            if (event.getKind() == ResourceEvent.Kind.MODIFIED) {
+                if (modified == null) {
+                    modified = Collections.newSetFromMap(new IdentityHashMap<>());
+                }
+                modified.add(event.getResource());
+            }
+        }
+        if (modified != null) {
+            fireModified(modified);
+        }
+    }
+    
+    /**
+     * Перерисовать строки ресурсов с измененными данными (соседние строки - одним интервалом)
+     * @param modified Измененные ресурсы
+     */
+    private void fireModified(Set<Resource> modified) {
+        int first = -1;
+        for (int i = 0; i < snapshot.size(); ++i) {
+            if (modified.contains(snapshot.get(i))) {
+                if (first < 0) {
+                    first = i;
+                }
+            } else if (first >= 0) {
+                fireContentsChanged(this, first, i - 1);
+                first = -1;
+            }
+        }
+        if (first >= 0) {
+            fireContentsChanged(this, first, snapshot.size() - 1);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return snapshot.size();
+    }
+
+    @Override
+    public T getElementAt(int index) {
+        return snapshot.get(index);
+    }
+}
@@ -21,8 +21,17 @@ import com.bulenkov.darcula.DarculaLaf;
 import com.vuvk.n3d.Const;
 import com.vuvk.n3d.Global;
 import com.vuvk.n3d.components.PreviewElement;
+import com.vuvk.n3d.resources.ConfigShards;
+import com.vuvk.n3d.resources.ContentManifest;
 import com.vuvk.n3d.resources.Material;
+import com.vuvk.n3d.resources.ProjectArchive;
+import com.vuvk.n3d.resources.ProjectFiles;
+import com.vuvk.n3d.resources.ProjectIndex;
+import com.vuvk.n3d.resources.ProjectJournal;
+import com.vuvk.n3d.resources.ProjectLoader;
 import com.vuvk.n3d.resources.Resource;
+import com.vuvk.n3d.resources.ResourceEvent;
+import com.vuvk.n3d.resources.ResourceEvents;
 import com.vuvk.n3d.resources.Skybox;
 import com.vuvk.n3d.resources.Sound;
 import com.vuvk.n3d.resources.Texture;
@@ -30,35 +39,39 @@ import com.vuvk.n3d.utils.FileSystemUtils;
 import com.vuvk.n3d.utils.ImageUtils;
 import com.vuvk.n3d.utils.MessageDialog;
 import java.awt.Component;
+import java.awt.Cursor;
 import java.awt.Font;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.beans.PropertyVetoException;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 import javax.swing.DefaultListModel;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
+import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.ListCellRenderer;
 import javax.swing.ListModel;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import javax.swing.tree.DefaultTreeModel;
@@ -85,6 +98,8 @@ public class FormMain extends javax.swing.JFrame {
         
     /** проект открыт? */
     public static boolean isProjectOpened = false;
+    /** проект загружается? */
+    static boolean isProjectOpening = false;
         
     
     /** текущий выбранный путь, в котором находится пользователь */
@@ -94,6 +109,8 @@ public class FormMain extends javax.swing.JFrame {
     static List<Path> copyPaths = null;
     /** Режим выезания */
     static boolean isCutMode = false;
+    /** счетчик перестроений представления папки */
+    private int projectViewFills = 0;
     
     
     /**
@@ -152,22 +169,97 @@ public class FormMain extends javax.swing.JFrame {
     }
     
     /**
-     * Открыть проект
+     * Открыть проект.
+     * Ресурсы загружаются в рабочих потоках, окно остается отзывчивым,
+     * а по окончании загрузки открытие завершается в EDT
      */
     void projectOpen() {
-        if (isProjectOpened) {
+        projectOpen(null);
+    }
+    
+    /**
+     * Открыть проект из архива. Архив только читается: всё, что редактор сохранит,
+     * ляжет в папку проекта поверх архива, а удаленные файлы архива запомнятся там же
+     */
+    void projectOpenArchive() {
+        if (isProjectOpened || isProjectOpening) {
+            return;
+        }
+        
+        JFileChooser chooser = new JFileChooser(new File("."));
+        chooser.setDialogTitle("Открыть архив проекта");
+        chooser.setFileFilter(new FileNameExtensionFilter("Nuke3D project archive (N3DP)", ProjectArchive.FORMAT_EXT));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        try {
+            projectOpen(ProjectArchive.open(chooser.getSelectedFile().toPath()));
+        } catch (IOException ex) {
+            Logger.getLogger(FormMain.class.getName()).log(Level.SEVERE, null, ex);
+            MessageDialog.showException(ex);
+        }
+    }
+    
+    /**
+     * Начать открытие проекта
+     * @param archive Архив, поверх которого открывается папка проекта (null - папка проекта как есть,
+     *                вместе с архивом, поверх которого она была открыта в прошлый раз)
+     */
+    private void projectOpen(ProjectArchive archive) {
+        if (isProjectOpened || isProjectOpening) {
             return;
         }
         
         closeChildWindows();
-        Texture.loadAll();
-        Material.loadAll();
-        Sound.loadAll();
-        Skybox.loadAll();
+        
+        isProjectOpening = true;
+        MenuItemOpenProject.setEnabled(false);
+        MenuItemOpenArchive.setEnabled(false);
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        
+        CompletableFuture<Void> loading = (archive != null) ? ProjectLoader.open(archive) : ProjectLoader.open();
+        loading.whenComplete((v, ex) -> SwingUtilities.invokeLater(() -> projectOpened(ex)));
+    }
+    
+    /**
+     * Завершить открытие проекта после загрузки ресурсов
+     * @param ex Ошибка загрузки или null
+     */
+    private void projectOpened(Throwable ex) {
+        isProjectOpening = false;
+        setCursor(Cursor.getDefaultCursor());
+        
+        if (ex != null) {
+            Logger.getLogger(FormMain.class.getName()).log(Level.SEVERE, null, ex);
+            MessageDialog.showException(ex);
+            MenuItemOpenProject.setEnabled(true);
+            MenuItemOpenArchive.setEnabled(true);
+            return;
+        }
+        
+        // редактор был закрыт аварийно - предложим повторить несохраненные изменения из журнала
+        if (ProjectJournal.hasUnsavedChanges()) {
+            if (MessageDialog.showConfirmationYesNo("Найдены несохраненные изменения проекта после аварийного завершения редактора. Восстановить их?")) {
+                ProjectJournal.replay();
+            } else {
+                ProjectJournal.discard();
+            }
+        }
+        ProjectJournal.start();
+        // материалы и скайбоксы открыты заготовками - догружаем их в фоне
+        ProjectLoader.warmUp();
+        
+        // события загрузки представлениям не нужны - они заполняются ниже целиком
+        ResourceEvents.flush();
 
         MenuItemOpenProject.setEnabled (false);
+        MenuItemOpenArchive.setEnabled (false);
         MenuItemSaveProject.setEnabled (true );
+        MenuItemPackProject.setEnabled (true );
         MenuItemCloseProject.setEnabled(true );
+        MenuItemShardConfigs.setEnabled(!ConfigShards.isEnabled());
+        MenuItemCompactTextureIds.setEnabled(true);
         
         isProjectOpened = true; 
         fillTreeFolders(true);
@@ -180,29 +272,154 @@ public class FormMain extends javax.swing.JFrame {
     
     /**
      * Сохранить проект
+     * @return true, если все конфиги и ресурсы записаны
      */
-    void projectSave() {
+    boolean projectSave() {
         if (!isProjectOpened) {
-            return;
+            return false;
         }
         
+        boolean allSaved = true;
+        
         if (!Texture.saveConfig()) {
             MessageDialog.showError("Не удалось сохранить текстуры проекта! Повторите попытку.");
+            allSaved = false;
         }
         
         if (!Material.saveAll() || !Material.saveConfig()) {
             MessageDialog.showError("Не удалось сохранить материалы проекта! Повторите попытку.");
+            allSaved = false;
         }
         
         if (!Sound.saveConfig()) {
             MessageDialog.showError("Не удалось сохранить звуки проекта! Повторите попытку.");
+            allSaved = false;
         }
         
         if (!Skybox.saveAll() || !Skybox.saveConfig()) {
             MessageDialog.showError("Не удалось сохранить скайбоксы проекта! Повторите попытку.");
+            allSaved = false;
         }
         
+        // двоичный индекс для быстрого открытия - только если JSON записан полностью,
+        // иначе индекс разошелся бы с ним. Ошибка записи индекса не критична
+        if (allSaved) {
+            ProjectIndex.save();
+            // всё, что было в журнале до этого момента, теперь есть в конфигах
+            ProjectJournal.saved();
+        } else {
+            ProjectIndex.delete();
+        }
+        // манифест описывает файлы на диске, поэтому пишется и после неполного сохранения
+        ContentManifest.save();
+        
         MessageDialog.showInformation("Процедура сохранения проекта завершена.");   
+        return allSaved;
+    }
+    
+    /**
+     * Упаковать проект в архив. Упаковывается то, что лежит на диске (и в архиве, из которого открыт проект),
+     * поэтому проект сначала сохраняется
+     */
+    void projectPack() {
+        if (!isProjectOpened) {
+            return;
+        }
+        
+        JFileChooser chooser = new JFileChooser(new File("."));
+        chooser.setDialogTitle("Упаковать проект");
+        chooser.setFileFilter(new FileNameExtensionFilter("Nuke3D project archive (N3DP)", ProjectArchive.FORMAT_EXT));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Path archive = chooser.getSelectedFile().toPath();
+        if (!FileSystemUtils.getFileExtension(archive).equals(ProjectArchive.FORMAT_EXT)) {
+            archive = Paths.get(archive.toString() + "." + ProjectArchive.FORMAT_EXT);
+        }
+        if (Files.exists(archive) && 
+            !MessageDialog.showConfirmationYesNo("\"" + archive.toString() + "\"\nуже существует! Перезаписать?")) {
+            return;
+        }
+        
+        projectSave();
+        
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        try {
+            ProjectArchive.pack(archive);
+            MessageDialog.showInformation("Проект упакован в \"" + archive.toString() + "\".");
+        } catch (IOException ex) {
+            Logger.getLogger(FormMain.class.getName()).log(Level.SEVERE, null, ex);
+            MessageDialog.showException(ex);
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
+        }
+    }
+    
+    /**
+     * Перевести проект на конфиги, разбитые по папкам (для очень больших проектов).
+     * Переход выполняется только по команде пользователя: прежние конфиги остаются на диске
+     * как есть, а осколки записываются сразу же сохранением проекта
+     */
+    void projectShardConfigs() {
+        if (!isProjectOpened || ConfigShards.isEnabled()) {
+            return;
+        }
+        
+        if (!MessageDialog.showConfirmationYesNo("Разбить конфиги проекта по папкам ресурсов? Проект будет сохранен, а прежние конфиги останутся как копия на момент перехода.")) {
+            return;
+        }
+        
+        try {
+            ConfigShards.enable();
+        } catch (IOException ex) {
+            Logger.getLogger(FormMain.class.getName()).log(Level.SEVERE, null, ex);
+            MessageDialog.showException(ex);
+            return;
+        }
+        MenuItemShardConfigs.setEnabled(false);
+        
+        projectSave();
+    }
+    
+    /**
+     * Перенумеровать текстуры подряд (после многих удалений id разрежены и поиск по id медленнее).
+     * Журнал изменений хранит id текстур, поэтому проект сначала сохраняется целиком,
+     * а перенумерация выполняется только после успешного сохранения
+     */
+    void projectCompactTextureIds() {
+        if (!isProjectOpened) {
+            return;
+        }
+        
+        if (!Texture.TEXTURES.isSparse()) {
+            MessageDialog.showInformation("Идентификаторы текстур и так идут подряд.");
+            return;
+        }
+        
+        if (!MessageDialog.showConfirmationYesNo("Перенумеровать текстуры? Проект будет сохранен, а материалы и скайбоксы перезаписаны с новыми id текстур.")) {
+            return;
+        }
+        
+        if (!projectSave()) {
+            MessageDialog.showError("Проект сохранен не полностью - перенумерация отменена.");
+            return;
+        }
+        
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        try {
+            if (!Texture.compactIds()) {
+                MessageDialog.showError("Не удалось перенумеровать текстуры! Прежние id восстановлены.");
+                return;
+            }
+            // индекс и манифест описывают уже перенумерованные файлы
+            ProjectIndex.save();
+            ProjectJournal.saved();
+            ContentManifest.save();
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
+        }
+        
+        MessageDialog.showInformation("Текстуры перенумерованы.");
     }
     
     /**
@@ -221,7 +438,13 @@ public class FormMain extends javax.swing.JFrame {
         // YES
         } else if (answer.booleanValue()) {
             projectSave();
+        // NO - несохраненные изменения не нужны и при следующем открытии
+        } else {
+            ProjectJournal.discard();
         }
+        ProjectJournal.stop();
+        ProjectLoader.stopWarmUp();
+        ProjectFiles.unmount();
     
         closeChildWindows();
         Texture.closeAll();
@@ -230,8 +453,12 @@ public class FormMain extends javax.swing.JFrame {
         Skybox.closeAll();
 
         MenuItemOpenProject.setEnabled (true );
+        MenuItemOpenArchive.setEnabled (true );
         MenuItemSaveProject.setEnabled (false);
+        MenuItemPackProject.setEnabled (false);
         MenuItemCloseProject.setEnabled(false);
+        MenuItemShardConfigs.setEnabled(false);
+        MenuItemCompactTextureIds.setEnabled(false);
 
         isProjectOpened = false;
         clearTreeFolders();
@@ -247,6 +474,23 @@ public class FormMain extends javax.swing.JFrame {
         return true;
     }
 
+    /**
+     * Перенести отметку использования с ресурса, ранее открытого в редакторе, на новый
+     * @param prev Ресурс, который был открыт в редакторе (может быть null)
+     * @param next Ресурс, который открывается в редакторе
+     */
+    static void selectResource(Resource prev, Resource next) {
+        if (prev == next) {
+            return;
+        }
+        if (prev != null) {
+            prev.release();
+        }
+        if (next != null) {
+            next.retain();
+        }
+    }
+    
     /**
      * Открыть форму редактирования текстуры
      */
@@ -265,6 +509,7 @@ public class FormMain extends javax.swing.JFrame {
                         firstRun = true;
                     }
 
+                    selectResource(FormTextureEditor.selectedTexture, txr);
                     formTextureEditor.selectedTexture = txr;
                     // свернуто?
                     if (formTextureEditor.isIcon()) {
@@ -308,6 +553,7 @@ public class FormMain extends javax.swing.JFrame {
                         firstRun = true;
                     }
 
+                    selectResource(FormMaterialEditor.selectedMaterial, mat);
                     formMaterialEditor.selectedMaterial = mat;
                     // свернуто?
                     if (formMaterialEditor.isIcon()) {
@@ -351,6 +597,7 @@ public class FormMain extends javax.swing.JFrame {
                         firstRun = true;
                     }
 
+                    selectResource(FormSoundEditor.selectedSound, snd);
                     formSoundEditor.selectedSound = snd;
                     // свернуто?
                     if (formSoundEditor.isIcon()) {
@@ -394,6 +641,7 @@ public class FormMain extends javax.swing.JFrame {
                         firstRun = true;
                     }
 
+                    selectResource(FormSkyboxEditor.selectedSkybox, sky);
                     formSkyboxEditor.selectedSkybox = sky;
                     // свернуто?
                     if (formSkyboxEditor.isIcon()) {
@@ -507,26 +755,26 @@ public class FormMain extends javax.swing.JFrame {
     }
         
     /**
-     * Проверка папки и обход подпапок
+     * Проверка папки и обход подпапок (на диске и в архиве проекта)
      * @param node Нода, к которой добавлять ветку с подпапкой, если есть
      * @param path Путь, в котором искать подпапки
      */
-    void fillNodeTreeFolders(DefaultMutableTreeNode node, File path) {
-        
-        class FolderFilter implements FileFilter {
-            @Override
-            public boolean accept(File path) {
-                return path.isDirectory();
-            }            
-        }
-        
-        if (path.isDirectory()) {
-            File[] files = path.listFiles(new FolderFilter());
-            Arrays.sort(files);
-            for (File file : files) {
-                DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(file.getName());
-                node.add(newNode);
-                fillNodeTreeFolders(newNode, file);
+    void fillNodeTreeFolders(DefaultMutableTreeNode node, Path path) {
+        if (ProjectFiles.isDirectory(path)) {
+            List<Path> files;
+            try {
+                files = ProjectFiles.list(path);
+            } catch (IOException ex) {
+                Logger.getLogger(FormMain.class.getName()).log(Level.SEVERE, null, ex);
+                MessageDialog.showException(ex);
+                return;
+            }
+            for (Path file : files) {
+                if (ProjectFiles.isDirectory(file)) {
+                    DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(file.getFileName().toString());
+                    node.add(newNode);
+                    fillNodeTreeFolders(newNode, file);
+                }
             }
         }
     }
@@ -607,13 +855,13 @@ public class FormMain extends javax.swing.JFrame {
         if (reloadAll) {
             root.removeAllChildren();
             // рекурсивно обходим дерево папок и рисуем дерево
-            fillNodeTreeFolders(root, Global.RESOURCES_PATH.toFile());
+            fillNodeTreeFolders(root, Global.RESOURCES_PATH);
             model.reload();
         // перегрузить только лист 
         } else {                            
             DefaultMutableTreeNode node = getNodeFromCurrentPath();
             node.removeAllChildren();
-            fillNodeTreeFolders(node, currentPath.toFile());
+            fillNodeTreeFolders(node, currentPath);
             model.reload(node);            
         }
                     
@@ -631,51 +879,51 @@ public class FormMain extends javax.swing.JFrame {
      * Заполнить представление содержимого папки
      */
     void fillListProjectView() {
+        ++projectViewFills;
         DefaultListModel listModel = new DefaultListModel();
         
         if (currentPath == null) {
             currentPath = Global.RESOURCES_PATH;
         }
         
-        File path = currentPath.toFile();
-        if (path != null) {
-            // добавить кнопку "Вверх", если это не корень
-            if (currentPath.compareTo(Global.RESOURCES_PATH) != 0) {
-                Path parent = currentPath.getParent();
-                if (parent != null) {
-                    listModel.addElement(new PreviewElement(parent, true));
-                }
+        // добавить кнопку "Вверх", если это не корень
+        if (currentPath.compareTo(Global.RESOURCES_PATH) != 0) {
+            Path parent = currentPath.getParent();
+            if (parent != null) {
+                listModel.addElement(new PreviewElement(parent, true));
             }
-            
-            File[] listFiles = path.listFiles();
-            if (listFiles != null && listFiles.length > 0) {
-                // теперь собираем массив папок и файлов
-                List<File> folders = new LinkedList<>();
-                List<File> files   = new LinkedList<>();
-                for (File file : listFiles) {
-                    if (file.isDirectory()) {
-                        folders.add(file);
-                    } else {
-                        files.add(file);
-                    }
-                }
-                
-                // первые для отображения папки
-                if (folders.size() > 0) {
-                    Collections.sort(folders);
-                    for (File file : folders) {
-                        listModel.addElement(new PreviewElement(file));            
-                    }
-                }
-                
-                // а затем файлы
-                if (files.size() > 0) {
-                    Collections.sort(files);
-                    for (File file : files) {
-                        listModel.addElement(new PreviewElement(file));            
-                    }
+        }
+
+        // содержимое папки на диске и в архиве проекта, уже по порядку имен
+        List<Path> listFiles;
+        try {
+            listFiles = ProjectFiles.list(currentPath);
+        } catch (IOException ex) {
+            Logger.getLogger(FormMain.class.getName()).log(Level.SEVERE, null, ex);
+            MessageDialog.showException(ex);
+            listFiles = Collections.emptyList();
+        }
+        if (listFiles.size() > 0) {
+            // теперь собираем массив папок и файлов
+            List<Path> folders = new LinkedList<>();
+            List<Path> files   = new LinkedList<>();
+            for (Path file : listFiles) {
+                if (ProjectFiles.isDirectory(file)) {
+                    folders.add(file);
+                } else {
+                    files.add(file);
                 }
             }
+
+            // первые для отображения папки
+            for (Path file : folders) {
+                listModel.addElement(new PreviewElement(file));            
+            }
+
+            // а затем файлы
+            for (Path file : files) {
+                listModel.addElement(new PreviewElement(file));            
+            }
         }
         
         listProjectView.setModel(listModel);
@@ -694,6 +942,157 @@ public class FormMain extends javax.swing.JFrame {
         }
     }
     
+    /**
+     * Обновить представление папки сразу: доставить накопившиеся события ресурсов
+     * и перестроить список, если обработчик событий этого не сделал (например, изменились только папки)
+     */
+    void refreshProjectView() {
+        int fills = projectViewFills;
+        ResourceEvents.flush();
+        if (fills == projectViewFills) {
+            fillListProjectView();
+        }
+    }
+    
+    /**
+     * Лежит ли ресурс (или папка) непосредственно в папке
+     * @param path Путь проекта ресурса или папки (со слэшем на конце)
+     * @param folder Путь проекта папки со слэшем на конце
+     * @return true, если лежит
+     */
+    static boolean isInFolder(String path, String folder) {
+        if (path == null) {
+            return false;
+        }
+        int end = path.endsWith("/") ? path.length() - 2 : path.length() - 1;
+        int slash = path.lastIndexOf('/', end);
+        return path.regionMatches(0, folder, 0, slash + 1) && folder.length() == slash + 1;
+    }
+    
+    /**
+     * Обработать пачку изменений ресурсов: один раз перестроить представление папки, 
+     * если состав папки изменился (изменение данных ресурса только обновляет его иконку), 
+     * и перезагрузить те открытые редакторы, которых касаются удаленные, перенесенные или измененные ресурсы
+     * @param events События за один проход очереди EDT
+     */
+    void resourcesChanged(List<ResourceEvent> events) {
+        if (!isProjectOpened || currentPath == null) {
+            return;
+        }
+        
+        String folder = FileSystemUtils.getProjectPath(currentPath);
+        if (!folder.endsWith("/")) {
+            folder += "/";
+        }
+        
+        boolean updateView = false;
+        Map<String, Resource> modified = new HashMap<>();
+        boolean reloadTexture  = false;
+        boolean reloadMaterial = false;
+        boolean reloadSound    = false;
+        boolean reloadSkybox   = false;
+        for (ResourceEvent event : events) {
+            if (event.getKind() != ResourceEvent.Kind.ADDED) {
+                Resource res = event.getResource();
+                reloadTexture  |= (formTextureEditor  != null && isEditing(FormTextureEditor.selectedTexture, res));
+                reloadMaterial |= (formMaterialEditor != null && isEditing(FormMaterialEditor.selectedMaterial, res));
+                reloadSound    |= (formSoundEditor    != null && isEditing(FormSoundEditor.selectedSound, res));
+                reloadSkybox   |= (formSkyboxEditor   != null && isEditing(FormSkyboxEditor.selectedSkybox, res));
+            }
+            if (isInFolder(event.getPath(), folder) || isInFolder(event.getOldPath(), folder)) {
+                if (event.getKind() == ResourceEvent.Kind.MODIFIED) {
+                    modified.put(event.getPath(), event.getResource());
+                } else {
+                    updateView = true;
+                }
+            }
+        }
+        
+        if (updateView) {
+            fillListProjectView();
+        } else if (!modified.isEmpty()) {
+            updateListProjectViewIcons(modified);
+        }
+        if (reloadTexture) {
+            formTextureEditor.prepareForm(false);
+        }
+        if (reloadMaterial) {
+            formMaterialEditor.prepareForm(false);
+        }
+        if (reloadSound) {
+            formSoundEditor.prepareForm(false);
+        }
+        if (reloadSkybox) {
+            formSkyboxEditor.prepareForm(false);
+        }
+    }
+    
+    /**
+     * Касается ли изменение ресурса редактора, открытого для ресурса edited
+     * @param edited Ресурс, открытый в редакторе
+     * @param res Измененный ресурс или null, если перенесена папка
+     * @return true, если редактор нужно перезагрузить
+     */
+    static boolean isEditing(Resource edited, Resource res) {
+        if (edited == null) {
+            return false;
+        }
+        // перенос папки мог сменить путь чего угодно
+        if (res == null || res == edited) {
+            return true;
+        }
+        if (!(res instanceof Texture)) {
+            return false;
+        }
+        
+        // материалы и скайбоксы показывают изображения своих текстур
+        if (edited instanceof Material) {
+            Material mat = (Material) edited;
+            synchronized (mat) {
+                for (int i = 0; i < mat.getFramesCount(); ++i) {
+                    if (mat.getFrame(i).getTexture() == res) {
+                        return true;
+                    }
+                }
+            }
+        } else if (edited instanceof Skybox) {
+            for (Skybox.Side side : Skybox.Side.values()) {
+                if (((Skybox) edited).getTexture(side) == res) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Обновить иконки элементов представления папки, у ресурсов которых изменились данные,
+     * не перечитывая остальные элементы с диска
+     * @param modified Измененные ресурсы по путям проекта
+     */
+    void updateListProjectViewIcons(Map<String, Resource> modified) {
+        ListModel model = listProjectView.getModel();
+        if (!(model instanceof DefaultListModel)) {
+            return;
+        }
+        DefaultListModel listModel = (DefaultListModel) model;
+        
+        for (int i = 0; i < listModel.getSize(); ++i) {
+            PreviewElement element = (PreviewElement) listModel.getElementAt(i);
+            Resource res = modified.get(element.getPath());
+            if (res == null) {
+                continue;
+            }
+            // изображение текстуры уже в памяти - иконку берем из него, а не из файла
+            if (res instanceof Texture && ((Texture) res).isImageReady()) {
+                element.setIcon(ImageUtils.resizeImage(((Texture) res).getImage(), 
+                                                       Const.ICON_PREVIEW_WIDTH, 
+                                                       Const.ICON_PREVIEW_HEIGHT));
+            }
+            listModel.set(i, element);
+        }
+    }
+    
     /**
      * Получить строковое представление пути из выбранной ноды в дереве
      * @param node Нода, для которой нужно вернуть путь
@@ -726,7 +1125,7 @@ public class FormMain extends javax.swing.JFrame {
                 PreviewElement element = (PreviewElement) it.next();
                 if (element.getType() != PreviewElement.Type.LEVELUP) {
                     Path path = Paths.get(element.getPath());
-                    if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (ProjectFiles.contains(path)) {
                         copyPaths.add(path);
                     }
                 }
@@ -751,6 +1150,9 @@ public class FormMain extends javax.swing.JFrame {
         // задаем кастомный рендерер
         listProjectView.setCellRenderer(new ProjectViewCellRenderer());        
         
+        // представления обновляются по пачкам событий изменения ресурсов
+        ResourceEvents.addListener(this::resourcesChanged);
+        
         setLocationRelativeTo(null);
         //fillListProjectView();        
     }
@@ -787,11 +1189,15 @@ public class FormMain extends javax.swing.JFrame {
         jMenuBar1 = new javax.swing.JMenuBar();
         MenuFile = new javax.swing.JMenu();
         MenuItemOpenProject = new javax.swing.JMenuItem();
+        MenuItemOpenArchive = new javax.swing.JMenuItem();
         MenuItemSaveProject = new javax.swing.JMenuItem();
+        MenuItemPackProject = new javax.swing.JMenuItem();
         MenuItemCloseProject = new javax.swing.JMenuItem();
         jSeparator1 = new javax.swing.JPopupMenu.Separator();
         MenuItemExit = new javax.swing.JMenuItem();
         jMenu2 = new javax.swing.JMenu();
+        MenuItemShardConfigs = new javax.swing.JMenuItem();
+        MenuItemCompactTextureIds = new javax.swing.JMenuItem();
 
         popupPVMenuAdd.setText("Добавить");
 
@@ -974,6 +1380,14 @@ public class FormMain extends javax.swing.JFrame {
         });
         MenuFile.add(MenuItemOpenProject);
 
+        MenuItemOpenArchive.setText("Open Project Archive...");
+        MenuItemOpenArchive.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                MenuItemOpenArchiveActionPerformed(evt);
+            }
+        });
+        MenuFile.add(MenuItemOpenArchive);
+
         MenuItemSaveProject.setText("Save Project");
         MenuItemSaveProject.setEnabled(false);
         MenuItemSaveProject.addActionListener(new java.awt.event.ActionListener() {
@@ -983,6 +1397,15 @@ public class FormMain extends javax.swing.JFrame {
         });
         MenuFile.add(MenuItemSaveProject);
 
+        MenuItemPackProject.setText("Pack Project...");
+        MenuItemPackProject.setEnabled(false);
+        MenuItemPackProject.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                MenuItemPackProjectActionPerformed(evt);
+            }
+        });
+        MenuFile.add(MenuItemPackProject);
+
         MenuItemCloseProject.setText("Close Project");
         MenuItemCloseProject.setEnabled(false);
         MenuItemCloseProject.addActionListener(new java.awt.event.ActionListener() {
@@ -1004,6 +1427,25 @@ public class FormMain extends javax.swing.JFrame {
         jMenuBar1.add(MenuFile);
 
         jMenu2.setText("Edit");
+
+        MenuItemShardConfigs.setText("Shard Configs by Folders...");
+        MenuItemShardConfigs.setEnabled(false);
+        MenuItemShardConfigs.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                MenuItemShardConfigsActionPerformed(evt);
+            }
+        });
+        jMenu2.add(MenuItemShardConfigs);
+
+        MenuItemCompactTextureIds.setText("Compact Texture Ids...");
+        MenuItemCompactTextureIds.setEnabled(false);
+        MenuItemCompactTextureIds.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                MenuItemCompactTextureIdsActionPerformed(evt);
+            }
+        });
+        jMenu2.add(MenuItemCompactTextureIds);
+
         jMenuBar1.add(jMenu2);
 
         setJMenuBar(jMenuBar1);
@@ -1036,6 +1478,22 @@ public class FormMain extends javax.swing.JFrame {
         projectOpen();
     }//GEN-LAST:event_MenuItemOpenProjectActionPerformed
 
+    private void MenuItemOpenArchiveActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_MenuItemOpenArchiveActionPerformed
+        projectOpenArchive();
+    }//GEN-LAST:event_MenuItemOpenArchiveActionPerformed
+
+    private void MenuItemPackProjectActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_MenuItemPackProjectActionPerformed
+        projectPack();
+    }//GEN-LAST:event_MenuItemPackProjectActionPerformed
+
+    private void MenuItemShardConfigsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_MenuItemShardConfigsActionPerformed
+        projectShardConfigs();
+    }//GEN-LAST:event_MenuItemShardConfigsActionPerformed
+
+    private void MenuItemCompactTextureIdsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_MenuItemCompactTextureIdsActionPerformed
+        projectCompactTextureIds();
+    }//GEN-LAST:event_MenuItemCompactTextureIdsActionPerformed
+
     private void MenuItemExitActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_MenuItemExitActionPerformed
         dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
     }//GEN-LAST:event_MenuItemExitActionPerformed
@@ -1155,7 +1613,7 @@ public class FormMain extends javax.swing.JFrame {
                     }
 
                     Path newPath = Paths.get(newPathStr);
-                    if (Files.exists(newPath)) {
+                    if (ProjectFiles.contains(newPath)) {
                         MessageDialog.showError("Файл \"" + newPathStr + "\" уже существует!");
                         continue;
                     }
@@ -1167,7 +1625,7 @@ public class FormMain extends javax.swing.JFrame {
             }
 
             fillTreeFolders(false);
-            fillListProjectView();
+            refreshProjectView();
             
             // выбираем "тот же" объект
             ListModel model = listProjectView.getModel();
@@ -1177,12 +1635,7 @@ public class FormMain extends javax.swing.JFrame {
                     listProjectView.setSelectedIndex(i);
                 }
             }      
-            
-            // проверяем валидность материалов
-            Material.checkAll();        
-                        
-            // перезагрузить окна на случай, если был переименован открытый объект в редакторе
-            reloadChildWindows();
+            // открытые редакторы перезагружены обработчиком событий, если был переименован ресурс
         }
     }//GEN-LAST:event_popupPVMIRenameActionPerformed
 
@@ -1215,7 +1668,19 @@ public class FormMain extends javax.swing.JFrame {
             // Элемент один? Спросить с именем
             String message;
             if (list.size() == 1) {
-                message = "Действительно удалить \"" + ((PreviewElement)list.get(0)).getName() + "\"?";     
+                PreviewElement element = (PreviewElement)list.get(0);
+                message = "Действительно удалить \"" + element.getName() + "\"?";     
+                // предупредить, если удаляемая текстура где-то используется
+                if (element.getType() == PreviewElement.Type.TEXTURE) {
+                    Texture txr = (Texture) Resource.getByPath(element.getPath(), Resource.Type.TEXTURE);
+                    if (txr != null && txr.isUsed()) {
+                        StringBuilder users = new StringBuilder();
+                        for (Resource user : txr.getUsers()) {
+                            users.append("\n").append(user.getPath());
+                        }
+                        message += "\nТекстура используется в:" + users.toString();
+                    }
+                }
             // с количеством
             } else if (list.size() > 1) {
                 message = "Действительно удалить " + list.size() + " элемента(-ов)?";                
@@ -1250,13 +1715,10 @@ public class FormMain extends javax.swing.JFrame {
                 }                
             }  
             
-            // проверяем валидность материалов
-            Material.checkAll();  
-
+            // кадры и стороны, ссылавшиеся на удаленные текстуры, уже обнулены индексом использования текстур,
+            // а открытые редакторы перезагружаются обработчиком событий удаления
             fillTreeFolders(false);
-            fillListProjectView();         
-
-            reloadChildWindows();          
+            refreshProjectView();
         }
     }//GEN-LAST:event_popupPVMIRemoveActionPerformed
     
@@ -1283,9 +1745,6 @@ public class FormMain extends javax.swing.JFrame {
                 }              
             }
         
-            // проверяем валидность материалов
-            Material.checkAll();
-                   
             // несколько раз вырезать нельзя
             if (isCutMode) {
                 isCutMode = false;
@@ -1294,9 +1753,7 @@ public class FormMain extends javax.swing.JFrame {
             }
             
             fillTreeFolders(true);
-            fillListProjectView();            
-        
-            reloadChildWindows();
+            refreshProjectView();
         
             System.gc();
         }
@@ -1323,7 +1780,7 @@ public class FormMain extends javax.swing.JFrame {
                 Path newPath = Paths.get(currentPath.toString() + "/" + baseName + extension);
 
                 // файл с таким же именем существует?
-                if (Files.exists(newPath)) {
+                if (ProjectFiles.contains(newPath)) {
                     Boolean answer = MessageDialog.showConfirmationYesNoCancel("\"" + baseName + "\"\nуже существует! Перезаписать?");
                     // CANCEL
                     if (answer == null) {
@@ -1331,7 +1788,7 @@ public class FormMain extends javax.swing.JFrame {
                     // NO
                     } else if (!answer.booleanValue()) {
                         // решил переименовать
-                        while (Files.exists(newPath)) {
+                        while (ProjectFiles.contains(newPath)) {
                             String newName = (String) MessageDialog.showInput("Введите новое имя для объекта\n\"" + baseName + "\":", baseName);
                             if (newName == null) {
                                 continue;    // отмена?
@@ -1356,13 +1813,15 @@ public class FormMain extends javax.swing.JFrame {
                     continue;
                 }
 
-                fillListProjectView();            
+                // представление обновится один раз после импорта всех файлов
                 new Texture(newPath);
                 
                 lastName = baseName;
             }
         }
         
+        refreshProjectView();
+        
         // открываем окно редактирования текстуры
         if (lastName != null) {
             DefaultListModel model = (DefaultListModel) listProjectView.getModel();
@@ -1387,7 +1846,7 @@ public class FormMain extends javax.swing.JFrame {
             Path matPath = Paths.get(currentPath.toString() + "/" + name + "." + Material.FORMAT_EXT);
             
             // файл с таким же именем существует?
-            if (Files.exists(matPath)) {
+            if (ProjectFiles.contains(matPath)) {
                 Boolean answer = MessageDialog.showConfirmationYesNoCancel("\"" + name + "\"\nуже существует! Перезаписать?");
                 // CANCEL
                 if (answer == null) {
@@ -1395,7 +1854,7 @@ public class FormMain extends javax.swing.JFrame {
                 // NO
                 } else if (!answer.booleanValue()) {
                     // решил переименовать
-                    while (Files.exists(matPath)) {
+                    while (ProjectFiles.contains(matPath)) {
                         String newName = (String) MessageDialog.showInput("Введите новое имя для объекта\n\"" + name + "\":", name);
                         if (newName == null) {
                             return;    // отмена?
@@ -1412,7 +1871,7 @@ public class FormMain extends javax.swing.JFrame {
             
             new Material(matPath);
             
-            fillListProjectView(); 
+            refreshProjectView();
             
             // открываем окно редактирования материала
             DefaultListModel model = (DefaultListModel) listProjectView.getModel();
@@ -1444,7 +1903,7 @@ public class FormMain extends javax.swing.JFrame {
                 Path newPath = Paths.get(currentPath.toString() + "/" + baseName + extension);
 
                 // файл с таким же именем существует?
-                if (Files.exists(newPath)) {
+                if (ProjectFiles.contains(newPath)) {
                     Boolean answer = MessageDialog.showConfirmationYesNoCancel("\"" + baseName + "\"\nуже существует! Перезаписать?");
                     // CANCEL
                     if (answer == null) {
@@ -1452,7 +1911,7 @@ public class FormMain extends javax.swing.JFrame {
                     // NO
                     } else if (!answer.booleanValue()) {
                         // решил переименовать
-                        while (Files.exists(newPath)) {
+                        while (ProjectFiles.contains(newPath)) {
                             String newName = (String) MessageDialog.showInput("Введите новое имя для объекта\n\"" + baseName + "\":", baseName);
                             if (newName == null) {
                                 return;    // отмена?
@@ -1488,13 +1947,15 @@ public class FormMain extends javax.swing.JFrame {
                     }
                 }
 
-                fillListProjectView();            
+                // представление обновится один раз после импорта всех файлов
                 new Sound(newPath);
                 
                 lastName = baseName;
             }
         }
         
+        refreshProjectView();
+        
         if (lastName != null) {
             // открываем окно редактирования
             DefaultListModel model = (DefaultListModel) listProjectView.getModel();
@@ -1519,7 +1980,7 @@ public class FormMain extends javax.swing.JFrame {
             Path skyPath = Paths.get(currentPath.toString() + "/" + name + "." + Skybox.FORMAT_EXT);
             
             // файл с таким же именем существует?
-            if (Files.exists(skyPath)) {
+            if (ProjectFiles.contains(skyPath)) {
                 Boolean answer = MessageDialog.showConfirmationYesNoCancel("\"" + name + "\"\nуже существует! Перезаписать?");
                 // CANCEL
                 if (answer == null) {
@@ -1527,7 +1988,7 @@ public class FormMain extends javax.swing.JFrame {
                 // NO
                 } else if (!answer.booleanValue()) {
                     // решил переименовать
-                    while (Files.exists(skyPath)) {
+                    while (ProjectFiles.contains(skyPath)) {
                         String newName = (String) MessageDialog.showInput("Введите новое имя для объекта\n\"" + name + "\":", name);
                         if (newName == null) {
                             return;    // отмена?
@@ -1544,7 +2005,7 @@ public class FormMain extends javax.swing.JFrame {
             
             new Skybox(skyPath);
             
-            fillListProjectView(); 
+            refreshProjectView();
             
             // открываем окно редактирования
             DefaultListModel model = (DefaultListModel) listProjectView.getModel();
@@ -1657,8 +2118,12 @@ public class FormMain extends javax.swing.JFrame {
     private javax.swing.JMenu MenuFile;
     private javax.swing.JMenuItem MenuItemCloseProject;
     private javax.swing.JMenuItem MenuItemExit;
+    private javax.swing.JMenuItem MenuItemOpenArchive;
     private javax.swing.JMenuItem MenuItemOpenProject;
+    private javax.swing.JMenuItem MenuItemPackProject;
     private javax.swing.JMenuItem MenuItemSaveProject;
+    private javax.swing.JMenuItem MenuItemShardConfigs;
+    private javax.swing.JMenuItem MenuItemCompactTextureIds;
     private javax.swing.JMenu jMenu2;
     private javax.swing.JMenuBar jMenuBar1;
     private javax.swing.JScrollPane jScrollPane1;
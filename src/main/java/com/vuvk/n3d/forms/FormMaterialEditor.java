@@ -237,6 +237,9 @@ public final class FormMaterialEditor extends javax.swing.JInternalFrame {
     }// </editor-fold>//GEN-END:initComponents
         
     private void formInternalFrameClosed(javax.swing.event.InternalFrameEvent evt) {//GEN-FIRST:event_formInternalFrameClosed
+        // окно закрыто - ресурс больше не используется редактором
+        FormMain.selectResource(selectedMaterial, null);
+        selectedMaterial = null;
         FormMain.formMaterialEditor = null;
     }//GEN-LAST:event_formInternalFrameClosed
 
@@ -423,6 +423,9 @@ public class FormSkyboxEditor extends javax.swing.JInternalFrame {
     }//GEN-LAST:event_btnPreviewActionPerformed
 
     private void formInternalFrameClosed(javax.swing.event.InternalFrameEvent evt) {//GEN-FIRST:event_formInternalFrameClosed
+        // окно закрыто - ресурс больше не используется редактором
+        FormMain.selectResource(selectedSkybox, null);
+        selectedSkybox = null;
         FormMain.formSkyboxEditor = null;
     }//GEN-LAST:event_formInternalFrameClosed
 
@@ -24,6 +24,8 @@ import com.badlogic.gdx.backends.lwjgl.LwjglApplicationConfiguration;
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.TextureData;
 import com.badlogic.gdx.graphics.VertexAttributes;
 import com.badlogic.gdx.graphics.g3d.Material;
 import com.badlogic.gdx.graphics.g3d.Model;
@@ -36,11 +38,14 @@ import com.badlogic.gdx.graphics.g3d.utils.MeshPartBuilder.VertexInfo;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
 import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.GdxRuntimeException;
 import com.vuvk.n3d.resources.Skybox;
 import com.vuvk.n3d.resources.Texture;
+import com.vuvk.n3d.resources.TexturePixels;
 import java.awt.BorderLayout;
 import java.awt.Frame;
 import java.awt.event.WindowEvent;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -60,6 +65,78 @@ public class FormSkyboxPreview extends javax.swing.JDialog {
             curMousePos  = new Vector2();
     Vector2 camLook = new Vector2();
     
+    /**
+     * Данные текстуры libGDX из пикселей текстуры редактора.
+     * Пиксели вне кучи отдаются в OpenGL прямо из их буфера, без копии в Pixmap
+     */
+    static class ImageTextureData implements TextureData {
+        final int width, height;
+        ByteBuffer pixels;
+        
+        ImageTextureData(TexturePixels image) {
+            width  = image.getWidth();
+            height = image.getHeight();
+            pixels = image.getBytes();
+        }
+        
+        @Override
+        public TextureDataType getType() {
+            return TextureDataType.Custom;
+        }
+        
+        @Override
+        public boolean isPrepared() {
+            return true;
+        }
+        
+        @Override
+        public void prepare() {
+        }
+        
+        @Override
+        public Pixmap consumePixmap() {
+            throw new GdxRuntimeException("Данные текстуры загружаются напрямую, без Pixmap");
+        }
+        
+        @Override
+        public boolean disposePixmap() {
+            return false;
+        }
+        
+        @Override
+        public void consumeCustomData(int target) {
+            Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+            Gdx.gl.glTexImage2D(target, 0, GL20.GL_RGBA, width, height, 0, GL20.GL_RGBA, GL20.GL_UNSIGNED_BYTE, pixels);
+            // буфер больше не нужен - в OpenGL уже своя копия
+            pixels = null;
+        }
+        
+        @Override
+        public int getWidth() {
+            return width;
+        }
+        
+        @Override
+        public int getHeight() {
+            return height;
+        }
+        
+        @Override
+        public Pixmap.Format getFormat() {
+            return Pixmap.Format.RGBA8888;
+        }
+        
+        @Override
+        public boolean useMipMaps() {
+            return false;
+        }
+        
+        @Override
+        public boolean isManaged() {
+            return false;
+        }
+    }
+    
     class SkyboxPlayer extends ApplicationAdapter {            
         @Override
         public void create() {
@@ -70,7 +147,7 @@ public class FormSkyboxPreview extends javax.swing.JDialog {
             for (int i = 0; i < skyTextures.length; ++i) {                
                 Texture txr = selectedSkybox.getTexture(Skybox.Side.getByNum(i));
                 if (txr != null) {  
-                    skyTextures[i] = new com.badlogic.gdx.graphics.Texture(Gdx.files.internal(txr.getPath()));
+                    skyTextures[i] = new com.badlogic.gdx.graphics.Texture(new ImageTextureData(txr.loadPixels()));
                 }
             }
             
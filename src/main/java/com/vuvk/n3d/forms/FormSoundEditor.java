@@ -22,11 +22,14 @@ import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.backends.lwjgl.LwjglAWTCanvas;
 import com.badlogic.gdx.backends.lwjgl.LwjglApplicationConfiguration;
 import com.badlogic.gdx.files.FileHandle;
+import com.vuvk.n3d.resources.ProjectFiles;
 import com.vuvk.n3d.resources.Sound;
 import com.vuvk.n3d.utils.MessageDialog;
 import java.awt.BorderLayout;
 import java.awt.Container;
 import java.beans.PropertyVetoException;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 /*
@@ -56,6 +59,15 @@ public final class FormSoundEditor extends javax.swing.JInternalFrame {
         public void create() {
             disposeFiles();
 
+            // libGDX читает только файлы на диске - звук из архива проекта выкладываем на диск
+            try {
+                ProjectFiles.materialize(Paths.get(selectedSound.getPath()));
+            } catch (IOException ex) {
+                Logger.getLogger(FormSoundEditor.class.getName()).log(Level.SEVERE, null, ex);
+                MessageDialog.showException(ex);
+                return;
+            }
+
             // если файл маленький, то загрузим его весь в память
             // а иначе воспроизводить в потоке
             FileHandle fh = Gdx.files.local(selectedSound.getPath());
@@ -315,6 +327,9 @@ public final class FormSoundEditor extends javax.swing.JInternalFrame {
     }//GEN-LAST:event_btnCloseActionPerformed
         
     private void formInternalFrameClosed(javax.swing.event.InternalFrameEvent evt) {//GEN-FIRST:event_formInternalFrameClosed
+        // окно закрыто - ресурс больше не используется редактором
+        FormMain.selectResource(selectedSound, null);
+        selectedSound = null;
         FormMain.formSoundEditor = null;               
     }//GEN-LAST:event_formInternalFrameClosed
 
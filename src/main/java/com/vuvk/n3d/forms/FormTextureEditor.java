@@ -164,12 +164,10 @@ public final class FormTextureEditor extends javax.swing.JInternalFrame {
                                 selectedTexture.setImage(newImage);
                                 setDeleteColorMode(false);
                                 tglDeleteColor.setSelected(false);
+                                // представление папки и открытые окна обновятся по событию изменения текстуры
                                 selectedTexture.save();
-                                FormMain.formMain.updateListProjectView(selectedTexture.getPath());
-                                
-                                FormMain.reloadChildWindows();
                             } else {
-                                image = selectedTexture.getImage();
+                                image = selectedTexture.loadImage();
                                 redraw();                                    
                             }
                         }
@@ -209,8 +207,9 @@ public final class FormTextureEditor extends javax.swing.JInternalFrame {
         
         // получить имя редактируемой текстуры
         txtName.setText(selectedTexture.getName());
-        // получить в панель предпросмотра ссылку на картинку
-        imagePreview.setImage(selectedTexture.getImage());
+        // получить в панель предпросмотра ссылку на картинку.
+        // картинку здесь редактируют, поэтому ждем декодирования, а не берем пустую
+        imagePreview.setImage(selectedTexture.loadImage());
         imagePreview.redraw();
         
         if (firstRun) {
@@ -419,6 +418,9 @@ public final class FormTextureEditor extends javax.swing.JInternalFrame {
     }//GEN-LAST:event_btnCloseActionPerformed
         
     private void formInternalFrameClosed(javax.swing.event.InternalFrameEvent evt) {//GEN-FIRST:event_formInternalFrameClosed
+        // окно закрыто - ресурс больше не используется редактором
+        FormMain.selectResource(selectedTexture, null);
+        selectedTexture = null;
         FormMain.formTextureEditor = null;
     }//GEN-LAST:event_formInternalFrameClosed
     
@@ -17,17 +17,19 @@
 */
 package com.vuvk.n3d.forms;
 
+import com.vuvk.n3d.components.ResourceListModel;
+import com.vuvk.n3d.resources.ResourceEvents;
 import com.vuvk.n3d.resources.Texture;
 import com.vuvk.n3d.utils.ImageUtils;
 import java.awt.Component;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowEvent;
 import javax.swing.DefaultListCellRenderer;
-import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.ListCellRenderer;
+import javax.swing.ListModel;
 import javax.swing.ListSelectionModel;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
@@ -42,6 +44,8 @@ public class FormTextureSelector extends javax.swing.JDialog {
     public boolean isApplyButtonVisible = true;
     /** выбранная текстура */
     public Texture selectedTexture = null;
+    /** модель списка - снимок базы текстур */
+    private final ResourceListModel<Texture> texturesModel = new ResourceListModel<>(Texture.TEXTURES);
     
     /**
      * кастомный рендерер для ячеек списка
@@ -69,8 +73,9 @@ public class FormTextureSelector extends javax.swing.JDialog {
             Texture txr = (Texture) value;
             ImageIcon icon = new ImageIcon();
             
-            double imageWidth = txr.getImage().getWidth();
-            double imageHeight = txr.getImage().getHeight();
+            // размеры известны и до декодирования изображения
+            double imageWidth = txr.getWidth();
+            double imageHeight = txr.getHeight();
             
             int iconWidth  = 96;
             int iconHeight = 96;
@@ -102,12 +107,8 @@ public class FormTextureSelector extends javax.swing.JDialog {
         
         setLocationRelativeTo(null);
         
-        DefaultListModel listModel = new DefaultListModel();
-        //model.setSize(Texture.list.size());
-        for (Texture txr : Texture.TEXTURES) {
-            listModel.addElement(txr);
-        }
-        lstTextures.setModel(listModel);       
+        lstTextures.setModel((ListModel) texturesModel);       
+        ResourceEvents.addListener(texturesModel);
         
         // задаем кастомный рендерер
         lstTextures.setCellRenderer(new TextureCellRenderer());
@@ -118,14 +119,20 @@ public class FormTextureSelector extends javax.swing.JDialog {
             @Override
             public void valueChanged(ListSelectionEvent e) {
                 int index = lstTextures.getSelectedIndex();
-                if (index > -1 && index < Texture.TEXTURES.size()) {
-                    selectedTexture = Texture.TEXTURES.get(index);
+                if (index > -1 && index < texturesModel.getSize()) {
+                    selectedTexture = texturesModel.getElementAt(index);
                 } else {
                     selectedTexture = null;
                 }
             }
         });
     }
+    
+    @Override
+    public void dispose() {
+        ResourceEvents.removeListener(texturesModel);
+        super.dispose();
+    }
 
     /**
      * This method is called from within the constructor to initialize the form.
@@ -221,6 +228,8 @@ public class FormTextureSelector extends javax.swing.JDialog {
 
     private void formWindowActivated(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowActivated
         btnApply.setVisible(isApplyButtonVisible);
+        // база текстур могла измениться, пока окно было неактивно
+        texturesModel.refresh();
     }//GEN-LAST:event_formWindowActivated
 
     private void btnCloseActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnCloseActionPerformed
@@ -0,0 +1,289 @@
+/**
+    Streaming codec of project configs (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.vuvk.n3d.utils.FileSystemUtils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Потоковое чтение и запись конфигов ресурсов проекта (config/*.sav).
+ * Конфиг не разбирается в дерево JsonObject целиком: записи массива data читаются
+ * и отдаются обработчику по одной, а при записи выводятся прямо из хранилища.
+ * Формат файлов не меняется
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+final class ConfigCodec {
+    
+    /** кодировка конфигов - та же, что использовали FileReader и FileWriter, чтобы читались старые проекты */
+    static final Charset CHARSET = Charset.defaultCharset();
+    
+    /**
+     * Запись конфига о ресурсе
+     */
+    static final class Entry {
+        /** идентификатор ресурса */
+        long id;
+        /** путь проекта ресурса */
+        String path;
+        /** признак фоновой музыки (только у звуков), null - не указан */
+        Boolean isMusic;
+        /** id текстур из файла (только у заглушек материалов и скайбоксов), null - не известны */
+        long[] textureIds;
+    }
+    
+    /**
+     * Обработчик прочитанных записей
+     */
+    interface EntryHandler {
+        /**
+         * Обработать очередную запись
+         * @param entry Запись (объект не переиспользуется, его можно хранить)
+         */
+        void handle(Entry entry);
+    }
+    
+    /**
+     * Запись дополнительных полей ресурса
+     * @param <T> тип ресурсов
+     */
+    interface ExtraWriter<T extends Resource> {
+        /**
+         * Дописать поля ресурса в текущий объект
+         * @param out Поток записи
+         * @param res Ресурс
+         * @throws IOException ошибка записи
+         */
+        void write(JsonWriter out, T res) throws IOException;
+    }
+    
+    /**
+     * Прочитать конфиг, передавая записи обработчику по мере чтения.
+     * Если массив data в файле встретился раньше заголовка, то записи придерживаются до проверки заголовка
+     * @param config Путь до конфига
+     * @param identificator Нужный идентификатор
+     * @param version Версия формата
+     * @param handler Обработчик записей
+     * @return количество переданных обработчику записей или -1, если конфиг невалидный или не содержит данных
+     * @throws IOException ошибка чтения или неверный JSON
+     */
+    static int read(Path config, String identificator, double version, EntryHandler handler) throws IOException {
+        try (JsonReader in = new JsonReader(ProjectFiles.newReader(config, CHARSET))) {
+            String configIdentificator = null;
+            String configVersion = null;
+            boolean hasData = false;
+            int entries = 0;
+            List<Entry> pending = null;
+            
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "identificator":
+                        configIdentificator = nextString(in);
+                        break;
+                        
+                    case "version":
+                        configVersion = nextString(in);
+                        break;
+                        
+                    case "data":
+                        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+                            in.skipValue();
+                            break;
+                        }
+                        
+                        // заголовок уже прочитан - можно сразу отказаться от чужого конфига
+                        boolean checked = Resource.checkConfig(configIdentificator, configVersion, identificator, version);
+                        if (!checked && configIdentificator != null && configVersion != null) {
+                            return -1;
+                        }
+                        if (!checked) {
+                            pending = new ArrayList<>();
+                        }
+                        
+                        hasData = true;
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            Entry entry = readEntry(in);
+                            if (entry == null) {
+                                continue;
+                            }
+                            if (pending != null) {
+                                pending.add(entry);
+                            } else {
+                                handler.handle(entry);
+                                ++entries;
+                            }
+                        }
+                        in.endArray();
+                        break;
+                        
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            
+            if (!hasData || 
+                !Resource.checkConfig(configIdentificator, configVersion, identificator, version)
+               ) {
+                return -1;
+            }
+            
+            if (pending != null) {
+                for (Entry entry : pending) {
+                    handler.handle(entry);
+                    ++entries;
+                }
+            }
+            return entries;
+        }
+    }
+    
+    /**
+     * Прочитать строковое значение
+     * @param in Поток чтения
+     * @return значение или null
+     * @throws IOException ошибка чтения
+     */
+    private static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+    
+    /**
+     * Прочитать одну запись массива data
+     * @param in Поток чтения
+     * @return запись или null, если в ней нет id или пути
+     * @throws IOException ошибка чтения
+     */
+    private static Entry readEntry(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return null;
+        }
+        
+        Entry entry = new Entry();
+        boolean hasId = false;
+        
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            
+            switch (name) {
+                case "id":
+                    entry.id = in.nextLong();
+                    hasId = true;
+                    break;
+                    
+                case "path":
+                    entry.path = in.nextString();
+                    break;
+                    
+                case "is_music":
+                    entry.isMusic = in.nextBoolean();
+                    break;
+                    
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        
+        return (hasId && entry.path != null) ? entry : null;
+    }
+    
+    
+    /**
+     * Записать конфиг, выводя записи прямо по ресурсам хранилища.
+     * Файл пишется атомарно - при сбое на диске остается предыдущая версия конфига
+     * @param <T> тип ресурсов
+     * @param config Путь до конфига
+     * @param identificator Идентификатор конфига
+     * @param version Версия формата
+     * @param resources Ресурсы
+     * @param extra Запись дополнительных полей ресурса (может быть null)
+     * @throws IOException ошибка записи
+     */
+    static <T extends Resource> void write(Path config, 
+                                           String identificator, 
+                                           String version, 
+                                           Iterable<T> resources, 
+                                           ExtraWriter<T> extra) throws IOException {
+        FileSystemUtils.writeAtomic(config, stream -> write(stream, identificator, version, resources, extra));
+    }
+    
+    /**
+     * Вывести конфиг в поток
+     * @param <T> тип ресурсов
+     * @param stream Поток вывода (не закрывается)
+     * @param identificator Идентификатор конфига
+     * @param version Версия формата
+     * @param resources Ресурсы
+     * @param extra Запись дополнительных полей ресурса (может быть null)
+     * @throws IOException ошибка записи
+     */
+    static <T extends Resource> void write(OutputStream stream, 
+                                           String identificator, 
+                                           String version, 
+                                           Iterable<T> resources, 
+                                           ExtraWriter<T> extra) throws IOException {
+        // JsonWriter не закрываем - потоком владеет вызывающий
+        JsonWriter out = new JsonWriter(new OutputStreamWriter(stream, CHARSET));
+        // экранирование как у Gson по умолчанию, чтобы файлы не менялись
+        out.setHtmlSafe(true);
+
+        out.beginObject();
+        out.name("identificator").value(identificator);
+        out.name("version").value(version);
+
+        out.name("data").beginArray();
+        for (T res : resources) {
+            out.beginObject();
+            out.name("id").value(res.getId());
+            if (extra != null) {
+                extra.write(out, res);
+            }
+            out.name("path").value(res.getPath());
+            out.endObject();
+        }
+        out.endArray();
+
+        out.endObject();
+        out.flush();
+    }
+    
+    private ConfigCodec() {}
+}
@@ -0,0 +1,377 @@
+/**
+    Sharded configs of resources (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.vuvk.n3d.Const;
+import com.vuvk.n3d.utils.FileSystemUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Конфиги ресурсов, разбитые по папкам - для очень больших проектов.
+ * Вместо одного textures.sav (materials.sav, ...) записи каждой папки ресурсов лежат в своём
+ * файле-осколке того же формата (config/shards/textures/...), а корневой config/shards.sav
+ * перечисляет осколки каждого типа вместе с CRC32 их содержимого.
+ * При сохранении все осколки собираются в памяти, а на диск пишутся только те, чей CRC изменился,
+ * поэтому правка в одной папке переписывает один небольшой файл, а не весь список ресурсов.
+ * Проект переходит на осколки только по явной команде пользователя (enable()).
+ * Если тип не упомянут в корневом файле, то читается его обычный конфиг.
+ * Обычный конфиг при переходе не удаляется и дальше не переписывается - он остается копией
+ * на момент перехода (её же увидят старые версии редактора)
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ConfigShards {
+
+    /** идентификатор корневого файла */
+    static final String IDENTIFICATOR = "N3D_CONFIG_SHARDS";
+    /** версия корневого файла */
+    static final int MAJOR = 0;
+    static final int MINOR = 1;
+    static final String VERSION = MAJOR + "." + MINOR;
+    /** Путь до корневого файла */
+    public static final String ROOT_STRING = Const.CONFIG_STRING + "shards.sav";
+    /** Папка осколков */
+    static final String SHARDS_STRING = Const.CONFIG_STRING + "shards/";
+
+    /**
+     * Осколок конфига - записи одной папки ресурсов
+     */
+    private static final class Shard {
+        /** папка ресурсов (путь проекта со слэшем на конце) */
+        final String folder;
+        /** путь до файла осколка */
+        final String file;
+        /** CRC32 содержимого файла */
+        final long crc;
+
+        Shard(String folder, String file, long crc) {
+            this.folder = folder;
+            this.file   = file;
+            this.crc    = crc;
+        }
+    }
+
+    private ConfigShards() {}
+
+    /**
+     * Разбит ли проект на осколки
+     * @return true, если есть корневой файл
+     */
+    public static boolean isEnabled() {
+        return ProjectFiles.exists(Paths.get(ROOT_STRING));
+    }
+
+    /**
+     * Перевести проект на осколки. Конфиги будут разбиты при следующем сохранении
+     * @throws IOException ошибка записи корневого файла
+     */
+    public static void enable() throws IOException {
+        if (!isEnabled()) {
+            writeRoot(new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Получить тип конфига по пути его обычного файла (config/textures.sav -> textures)
+     * @param config Путь до обычного конфига
+     * @return имя типа
+     */
+    private static String getType(Path config) {
+        String name = config.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0) ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Есть ли сохраненный конфиг - обычный или в осколках
+     * @param config Путь до обычного конфига
+     * @return true, если конфиг есть
+     */
+    static boolean isSaved(Path config) {
+        if (ProjectFiles.exists(config)) {
+            return true;
+        }
+        try {
+            return readRoot().containsKey(getType(config));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Прочитать конфиг, передавая записи обработчику по мере чтения.
+     * Осколки читаются по порядку корневого файла, без осколков читается обычный конфиг
+     * @param config Путь до обычного конфига
+     * @param identificator Нужный идентификатор
+     * @param version Версия формата
+     * @param handler Обработчик записей
+     * @return количество переданных обработчику записей или -1, если конфиг невалидный
+     * @throws IOException ошибка чтения или неверный JSON
+     */
+    static int read(Path config, String identificator, double version, ConfigCodec.EntryHandler handler) throws IOException {
+        List<Shard> shards = readRoot().get(getType(config));
+        if (shards == null) {
+            return ConfigCodec.read(config, identificator, version, handler);
+        }
+
+        int entries = 0;
+        for (Shard shard : shards) {
+            Path file = Paths.get(shard.file);
+            // пропавший или испорченный осколок - записи этой папки потеряны, остальные читаются
+            if (!ProjectFiles.exists(file)) {
+                continue;
+            }
+            int count = ConfigCodec.read(file, identificator, version, handler);
+            if (count > 0) {
+                entries += count;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Записать конфиг - обычным файлом или осколками, если проект на них переведен.
+     * Осколки пишутся только изменившиеся, лишние удаляются. Обычный конфиг при этом не трогается
+     * @param <T> тип ресурсов
+     * @param config Путь до обычного конфига
+     * @param identificator Идентификатор конфига
+     * @param version Версия формата
+     * @param resources Ресурсы
+     * @param extra Запись дополнительных полей ресурса (может быть null)
+     * @throws IOException ошибка записи
+     */
+    static <T extends Resource> void write(Path config, 
+                                           String identificator, 
+                                           String version, 
+                                           ResourceRegistry<T> resources, 
+                                           ConfigCodec.ExtraWriter<T> extra) throws IOException {
+        if (!isEnabled()) {
+            ConfigCodec.write(config, identificator, version, resources, extra);
+            return;
+        }
+
+        String type = getType(config);
+        Map<String, List<Shard>> root = readRoot();
+        Map<String, Shard> previous = new HashMap<>();
+        List<Shard> oldShards = root.get(type);
+        if (oldShards != null) {
+            for (Shard shard : oldShards) {
+                previous.put(shard.folder, shard);
+            }
+        }
+
+        // раскладываем ресурсы по папкам, сохраняя порядок хранилища
+        Map<String, List<T>> folders = new LinkedHashMap<>();
+        for (T res : resources) {
+            String path = res.getPath();
+            String folder = path.substring(0, path.lastIndexOf('/') + 1);
+            List<T> list = folders.get(folder);
+            if (list == null) {
+                list = new ArrayList<>();
+                folders.put(folder, list);
+            }
+            list.add(res);
+        }
+
+        // корневой файл переписывается, если изменился состав или порядок папок
+        List<String> oldFolders = new ArrayList<>();
+        if (oldShards != null) {
+            for (Shard shard : oldShards) {
+                oldFolders.add(shard.folder);
+            }
+        }
+        boolean changed = (oldShards == null || !oldFolders.equals(new ArrayList<>(folders.keySet())));
+        List<Shard> shards = new ArrayList<>(folders.size());
+        for (Map.Entry<String, List<T>> folder : folders.entrySet()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ConfigCodec.write(bytes, identificator, version, folder.getValue(), extra);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+
+            Shard old = previous.remove(folder.getKey());
+            Shard shard = new Shard(folder.getKey(), 
+                                    (old != null) ? old.file : getShardFile(type, folder.getKey()), 
+                                    crc.getValue());
+            if (old == null || old.crc != shard.crc || !ProjectFiles.exists(Paths.get(shard.file))) {
+                FileSystemUtils.writeAtomic(Paths.get(shard.file), bytes::writeTo);
+                changed = true;
+            }
+            shards.add(shard);
+        }
+
+        if (changed || !previous.isEmpty()) {
+            root.put(type, shards);
+            writeRoot(root);
+        }
+        // осколки папок, в которых ресурсов этого типа больше нет
+        for (Shard shard : previous.values()) {
+            Files.deleteIfExists(Paths.get(shard.file));
+        }
+    }
+
+    /**
+     * Получить путь до файла осколка.
+     * Имя собирается из пути папки, а CRC32 пути не дает совпасть папкам с похожими именами
+     * @param type Тип конфига
+     * @param folder Папка ресурсов
+     * @return путь проекта до осколка
+     */
+    private static String getShardFile(String type, String folder) {
+        String name = folder.startsWith(Const.RESOURCES_STRING) ? folder.substring(Const.RESOURCES_STRING.length()) : folder;
+        name = name.replaceAll("[^A-Za-z0-9_-]+", "_").replaceAll("^_+|_+$", "");
+        if (name.length() > 48) {
+            name = name.substring(name.length() - 48);
+        }
+        if (name.isEmpty()) {
+            name = "root";
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(folder.getBytes(ConfigCodec.CHARSET));
+        return SHARDS_STRING + type + "/" + name + "-" + String.format("%08x", crc.getValue()) + ".sav";
+    }
+
+    /**
+     * Прочитать корневой файл
+     * @return осколки по типам конфигов (пусто, если проект не разбит на осколки)
+     * @throws IOException ошибка чтения или неверный JSON
+     */
+    private static Map<String, List<Shard>> readRoot() throws IOException {
+        Map<String, List<Shard>> root = new LinkedHashMap<>();
+        Path file = Paths.get(ROOT_STRING);
+        if (!ProjectFiles.exists(file)) {
+            return root;
+        }
+
+        try (JsonReader in = new JsonReader(ProjectFiles.newReader(file, ConfigCodec.CHARSET))) {
+            String identificator = null;
+            String version = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("identificator")) {
+                    identificator = in.nextString();
+                } else if (name.equals("version")) {
+                    version = in.nextString();
+                } else if (in.peek() == JsonToken.BEGIN_ARRAY) {
+                    root.put(name, readShards(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+
+            if (!Resource.checkConfig(identificator, version, IDENTIFICATOR, Double.parseDouble(VERSION))) {
+                throw new IOException("Unsupported config shards: " + file);
+            }
+        } catch (IllegalStateException | NumberFormatException ex) {
+            throw new IOException("Damaged config shards: " + file, ex);
+        }
+        return root;
+    }
+
+    /**
+     * Прочитать список осколков одного типа
+     * @param in Поток чтения
+     * @return осколки в порядке файла
+     * @throws IOException ошибка чтения
+     */
+    private static List<Shard> readShards(JsonReader in) throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            String folder = null, file = null;
+            long crc = -1;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "folder":
+                        folder = in.nextString();
+                        break;
+                    case "file":
+                        file = in.nextString();
+                        break;
+                    case "crc":
+                        crc = in.nextLong();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+
+            if (folder != null && file != null) {
+                shards.add(new Shard(folder, file, crc));
+            }
+        }
+        in.endArray();
+        return shards;
+    }
+
+    /**
+     * Записать корневой файл
+     * @param root Осколки по типам конфигов
+     * @throws IOException ошибка записи
+     */
+    private static void writeRoot(Map<String, List<Shard>> root) throws IOException {
+        FileSystemUtils.writeAtomic(Paths.get(ROOT_STRING), stream -> {
+            JsonWriter out = new JsonWriter(new OutputStreamWriter(stream, ConfigCodec.CHARSET));
+            out.setHtmlSafe(true);
+
+            out.beginObject();
+            out.name("identificator").value(IDENTIFICATOR);
+            out.name("version").value(VERSION);
+            for (Map.Entry<String, List<Shard>> type : root.entrySet()) {
+                out.name(type.getKey()).beginArray();
+                for (Shard shard : type.getValue()) {
+                    out.beginObject();
+                    out.name("folder").value(shard.folder);
+                    out.name("file").value(shard.file);
+                    out.name("crc").value(shard.crc);
+                    out.endObject();
+                }
+                out.endArray();
+            }
+            out.endObject();
+            out.flush();
+        });
+    }
+}
@@ -0,0 +1,365 @@
+/**
+    Content manifest of project files (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.vuvk.n3d.Const;
+import com.vuvk.n3d.utils.FileSystemUtils;
+import java.awt.Dimension;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Манифест содержимого проекта (config/manifest.idx).
+ * Для каждого файла ресурса и конфига хранит размер, время изменения и CRC32 содержимого,
+ * а для текстур - ещё и размеры подготовленного изображения.
+ * По манифесту при открытии проекта выясняется, какие файлы не менялись: совпали размер и время -
+ * файл тот же; совпал только размер - сравнивается хеш (файл могли просто "потрогать").
+ * В отличие от индекса проекта манифест не устаревает целиком при изменении конфигов:
+ * каждая запись отвечает только за свой файл
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ContentManifest {
+
+    /** идентификатор манифеста */
+    static final String IDENTIFICATOR = "N3D_CONTENT_MANIFEST";
+    /** версия манифеста */
+    static final int MAJOR = 0;
+    static final int MINOR = 1;
+    static final String VERSION = MAJOR + "." + MINOR;
+    /** Путь до манифеста */
+    static final String MANIFEST_STRING = Const.CONFIG_STRING + "manifest.idx";
+
+    /** сигнатура файла - "N3DM" */
+    private static final int MAGIC = 0x4E33444D;
+    /** конфиги, которые тоже попадают в манифест */
+    private static final List<String> CONFIGS = Arrays.asList(
+        Texture.CONFIG_STRING,
+        Sound.CONFIG_STRING,
+        Material.CONFIG_STRING,
+        Skybox.CONFIG_STRING,
+        ConfigShards.ROOT_STRING
+    );
+
+    /** записи манифеста по путям файлов */
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private static final Logger LOG = Logger.getLogger(ContentManifest.class.getName());
+
+    /**
+     * Запись манифеста о файле
+     */
+    public static final class Entry {
+        /** размер файла */
+        final long size;
+        /** время изменения файла */
+        final long modified;
+        /** CRC32 содержимого */
+        final long hash;
+        /** ширина подготовленного изображения текстуры (0 - не текстура) */
+        final int width;
+        /** высота подготовленного изображения текстуры (0 - не текстура) */
+        final int height;
+
+        Entry(long size, long modified, long hash, int width, int height) {
+            this.size     = size;
+            this.modified = modified;
+            this.hash     = hash;
+            this.width    = width;
+            this.height   = height;
+        }
+
+        /**
+         * Совпадают ли размер и время изменения файла с записью
+         * @param attrs Атрибуты файла
+         * @return true, если совпадают
+         */
+        boolean matches(BasicFileAttributes attrs) {
+            return (attrs != null &&
+                    attrs.size() == size &&
+                    attrs.lastModifiedTime().toMillis() == modified);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    private ContentManifest() {}
+
+    /**
+     * Получить ключ записи - путь в том виде, в каком он хранится в конфигах
+     * @param path Путь до файла
+     * @return путь с прямыми слэшами
+     */
+    private static String key(Path path) {
+        return path.toString().replace('\\', '/');
+    }
+
+    /**
+     * Получить запись манифеста
+     * @param path Путь до файла
+     * @return запись или null, если файла нет в манифесте
+     */
+    public static Entry get(String path) {
+        return ENTRIES.get(path);
+    }
+
+    /**
+     * Проверить, что файл не менялся с момента записи в манифест.
+     * Если совпал только размер, то файл читается и сравнивается хеш содержимого;
+     * при совпадении запись получает новое время изменения
+     * @param path Путь до файла
+     * @param attrs Атрибуты файла (stat)
+     * @return true, если содержимое файла совпадает с манифестом
+     */
+    static boolean isUnchanged(Path path, BasicFileAttributes attrs) {
+        String key = key(path);
+        Entry entry = ENTRIES.get(key);
+        if (entry == null || attrs == null || attrs.size() != entry.size) {
+            return false;
+        }
+        if (entry.matches(attrs)) {
+            return true;
+        }
+
+        try {
+            if (hash(path) != entry.hash) {
+                return false;
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+        ENTRIES.put(key, new Entry(entry.size, attrs.lastModifiedTime().toMillis(), entry.hash, entry.width, entry.height));
+        return true;
+    }
+
+    /**
+     * Обновить запись о файле, содержимое которого уже прочитано в память.
+     * Если размер и время изменения совпали с записью, то хеш не пересчитывается
+     * @param path Путь до файла
+     * @param attrs Атрибуты файла на момент чтения
+     * @param data Содержимое файла
+     * @param width Ширина подготовленного изображения (0 - не текстура)
+     * @param height Высота подготовленного изображения (0 - не текстура)
+     */
+    static void update(Path path, BasicFileAttributes attrs, byte[] data, int width, int height) {
+        String key = key(path);
+        Entry entry = ENTRIES.get(key);
+        long hash;
+        if (entry != null && entry.matches(attrs)) {
+            hash = entry.hash;
+        } else {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            hash = crc.getValue();
+        }
+        ENTRIES.put(key, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), hash, width, height));
+    }
+
+    /**
+     * Посчитать CRC32 содержимого файла
+     * @param path Путь до файла
+     * @return хеш
+     * @throws IOException ошибка чтения
+     */
+    static long hash(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = ProjectFiles.newInputStream(path)) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, count);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Прочитать манифест проекта. Прежние записи забываются.
+     * Испорченный или несовместимый манифест просто не используется
+     */
+    static void load() {
+        ENTRIES.clear();
+
+        Path file = Paths.get(MANIFEST_STRING);
+        if (!ProjectFiles.exists(file)) {
+            return;
+        }
+
+        try {
+            // читаем в кучу: отображение держало бы файл до сборки мусора, и под Windows его не перезаписать
+            parse(ByteBuffer.wrap(ProjectFiles.readAllBytes(file)));
+        } catch (IOException | RuntimeException ex) {
+            // манифест можно построить заново, поэтому ошибку только логируем
+            LOG.log(Level.WARNING, null, ex);
+            ENTRIES.clear();
+        }
+    }
+
+    /**
+     * Разобрать прочитанный манифест
+     * @param buffer Содержимое файла
+     */
+    private static void parse(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC ||
+            !Resource.checkConfig(readString(buffer), readString(buffer), IDENTIFICATOR, Double.parseDouble(VERSION))) {
+            return;
+        }
+
+        Map<String, Entry> entries = new HashMap<>();
+        for (int i = buffer.getInt(); i > 0; --i) {
+            String path   = readString(buffer);
+            long size     = buffer.getLong();
+            long modified = buffer.getLong();
+            long hash     = buffer.getLong();
+            int width     = buffer.getInt();
+            int height    = buffer.getInt();
+            entries.put(path, new Entry(size, modified, hash, width, height));
+        }
+        ENTRIES.putAll(entries);
+    }
+
+    /**
+     * Прочитать строку (длина и байты UTF-8)
+     * @param buffer Содержимое файла
+     * @return строка
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Записать строку (длина и байты UTF-8)
+     * @param out Поток вывода
+     * @param string Строка
+     * @throws IOException ошибка записи
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Записать манифест по файлам, которые сейчас лежат на диске.
+     * Хеш пересчитывается только для файлов, изменившихся после прошлой записи.
+     * Файлы, которых больше нет в проекте, из манифеста выпадают
+     * @return true в случае успеха
+     */
+    public static boolean save() {
+        List<String> paths = new ArrayList<>(CONFIGS);
+        Map<String, Texture> textures = new HashMap<>();
+        for (Texture txr : Texture.TEXTURES) {
+            paths.add(txr.getPath());
+            textures.put(txr.getPath(), txr);
+        }
+        for (Material mat : Material.MATERIALS) {
+            paths.add(mat.getPath());
+        }
+        for (Sound snd : Sound.SOUNDS) {
+            paths.add(snd.getPath());
+        }
+        for (Skybox sky : Skybox.SKYBOXES) {
+            paths.add(sky.getPath());
+        }
+
+        Map<String, Entry> entries = new HashMap<>();
+        for (String key : paths) {
+            Path path = Paths.get(key);
+            BasicFileAttributes attrs = ProjectFiles.stat(path);
+            if (attrs == null) {
+                continue;
+            }
+
+            Entry entry = ENTRIES.get(key);
+            if (entry == null || !entry.matches(attrs)) {
+                int width = 0, height = 0;
+                Texture txr = textures.get(key);
+                // размеры берем только у декодированного изображения - файл изменился, и старые неверны
+                Dimension size = (txr != null) ? txr.peekSize() : null;
+                if (size != null) {
+                    width  = size.width;
+                    height = size.height;
+                }
+                try {
+                    entry = new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), hash(path), width, height);
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, null, ex);
+                    continue;
+                }
+            }
+            entries.put(key, entry);
+        }
+
+        try {
+            FileSystemUtils.writeAtomic(Paths.get(MANIFEST_STRING), stream -> {
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(MAGIC);
+                writeString(out, IDENTIFICATOR);
+                writeString(out, VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                    Entry entry = item.getValue();
+                    writeString(out, item.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeLong(entry.hash);
+                    out.writeInt(entry.width);
+                    out.writeInt(entry.height);
+                }
+                out.flush();
+            });
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return false;
+        }
+
+        ENTRIES.clear();
+        ENTRIES.putAll(entries);
+        return true;
+    }
+}
@@ -29,11 +29,11 @@ import com.vuvk.n3d.utils.FileSystemUtils;
 import com.vuvk.n3d.utils.MessageDialog;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -77,9 +77,11 @@ public class Material extends Resource {
     /** один кадр анимации */
     public static class Frame {
         /** ссылка на текстуру кадра */
-        private Texture texture;
+        private volatile Texture texture;
         /** задержка на кадре в сек */
-        private double delay;
+        private volatile double delay;
+        /** материал, которому принадлежит кадр */
+        private volatile Material material;
         
         /** конструктор */
         public Frame() {
@@ -102,7 +104,20 @@ public class Material extends Resource {
          * @param texture новая текстура кадра
          */
         public void setTexture(Texture texture) {
+            if (this.texture == texture) {
+                return;
+            }
+            Material owner = material;
+            if (owner != null && this.texture != null) {
+                this.texture.removeFrameUser(this);
+            }
             this.texture = texture;
+            if (owner != null) {
+                if (texture != null) {
+                    texture.addFrameUser(this);
+                }
+                owner.markDirty();
+            }
         }
         /**
          * Получить текстуру кадра
@@ -111,6 +126,39 @@ public class Material extends Resource {
         public Texture getTexture() {
             return texture;
         }
+        /**
+         * Получить материал, которому принадлежит кадр
+         * @return материал или null, если кадр не добавлен в материал
+         */
+        public Material getMaterial() {
+            return material;
+        }
+        /**
+         * Привязать кадр к материалу и отметить текстуру кадра как используемую
+         * @param material материал-владелец или null для отвязки
+         */
+        void setMaterial(Material material) {
+            if (this.material != null && texture != null) {
+                texture.removeFrameUser(this);
+            }
+            this.material = material;
+            if (material != null && texture != null) {
+                texture.addFrameUser(this);
+            }
+        }
+        /**
+         * Обнулить текстуру кадра без обновления индекса (текстура удалена из базы)
+         * @param texture удаленная текстура. Если в кадре уже другая, то кадр не меняется
+         */
+        void invalidate(Texture texture) {
+            if (this.texture == texture) {
+                this.texture = null;
+                Material owner = material;
+                if (owner != null) {
+                    owner.markDirty();
+                }
+            }
+        }
         /**
          * Получить изображение кадра
          * @return изображение кадра
@@ -126,7 +174,14 @@ public class Material extends Resource {
          * @param pause время в сек
          */
         public void setDelay(double delay) {
-            this.delay = (delay < 0.0) ? 0.0 : delay;
+            delay = (delay < 0.0) ? 0.0 : delay;
+            if (this.delay != delay) {
+                this.delay = delay;
+                Material owner = material;
+                if (owner != null) {
+                    owner.markDirty();
+                }
+            }
         }
         /**
          * Получить задрежку на кадре
@@ -145,19 +200,23 @@ public class Material extends Resource {
             if (this.texture != null && Texture.TEXTURES.contains(this.texture)) {
                 return true;
             } else {
-                this.texture = null;
+                setTexture(null);
                 return false;
             }
         }
     }
     
     /** тип материала */
-    private Type type;    
-    /** Список кадров материала */
-    private ArrayList<Frame> frames;
+    private volatile Type type;    
+    /** Список кадров материала (доступ под блокировкой материала) */
+    private final ArrayList<Frame> frames = new ArrayList<>();
+    /** прочитан ли файл материала. Заглушка, созданная при открытии проекта, читает его при первом обращении */
+    private volatile boolean loaded = true;
     
     /** Список всех материалов (контейнер) */
-    public static final ArrayList<Material> MATERIALS = new ArrayList<>();
+    public static final ResourceRegistry<Material> MATERIALS = new ResourceRegistry<>();
+    /** заглушки по id текстур, упомянутых в их файлах */
+    static final StubIndex<Material> STUBS = new StubIndex<>(Material::ensureLoaded);
     private static final Logger LOG = Logger.getLogger(Material.class.getName());
     
     /**
@@ -167,8 +226,7 @@ public class Material extends Resource {
      */
     public static boolean pathIsMaterial(Path path) {
         return (path != null &&
-                Files.exists(path) && 
-                !Files.isDirectory(path) && 
+                ProjectFiles.exists(path) && 
                 FileSystemUtils.getFileExtension(path).equals(FORMAT_EXT));
     }
     
@@ -178,71 +236,88 @@ public class Material extends Resource {
      */
     public static boolean loadAll() {
         closeAll();
+        int entries = readConfig(Material::loadEntry);
+        if (entries < 0) {
+            return false;
+        }
         
-        File materialConfig = new File(CONFIG_STRING);
+        // на всякий случай проверим валидность всех материалов (заглушки проверятся при чтении)
+        checkAll();
         
-        if (!Files.exists(Global.CONFIG_PATH) || 
-            !materialConfig.exists()) {
-            return false;
+        MATERIALS.markLoaded(entries);
+        return true;
+    }
+    
+    /**
+     * Прочитать конфиг материалов, передавая записи обработчику по мере чтения
+     * @param handler Обработчик записей
+     * @return количество записей в конфиге или -1 в случае ошибки
+     */
+    static int readConfig(ConfigCodec.EntryHandler handler) {
+        Path materialConfig = Paths.get(CONFIG_STRING);
+        
+        // конфиг может лежать и в архиве проекта, и в осколках
+        if (!ConfigShards.isSaved(materialConfig)) {
+            return -1;
         }
         
-        // читаем конфиг
-        JsonObject config = new JsonObject();        
-        try (Reader reader = new FileReader(materialConfig)){
-            Gson gson = new GsonBuilder().create();  
-            config = gson.fromJson(reader, JsonObject.class);
+        try {
+            return ConfigShards.read(materialConfig, CONFIG_IDENTIFICATOR, Double.parseDouble(CONFIG_VERSION), handler);
         } catch (Exception ex) {
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
-            return false;
+            return -1;
         }
-        
-        // проверяем правильность конфига
-        if (!Resource.checkConfig(config, 
-                                  CONFIG_IDENTIFICATOR, 
-                                  Double.parseDouble(CONFIG_VERSION))
-           ) {
-            return false;
+    }
+    
+    /**
+     * Создать заглушку материала по записи конфига, если файл существует.
+     * Сам файл материала будет прочитан при первом обращении к кадрам
+     * @param entry Запись конфига
+     */
+    static void loadEntry(ConfigCodec.Entry entry) {
+        // если материал существует
+        Path path = Paths.get(entry.path);
+        if (pathIsMaterial(path)) {
+            createEntry(entry);
         }
-        
-        // данные
-        JsonElement jsonData = config.get("data");
-        if (jsonData == null) {
-            return false;
+    }
+    
+    /**
+     * Создать заглушку материала по записи конфига, не проверяя файл
+     * (существование файла уже выяснено загрузчиком)
+     * @param entry Запись конфига
+     */
+    static void createEntry(ConfigCodec.Entry entry) {
+        // загрузчик просматривает файл в пуле заранее, остальные - здесь
+        if (entry.textureIds == null) {
+            StubIndex.scanEntry(entry);
         }
-        
-        // создаем материалы по данным из конфига
-        for (JsonElement element : jsonData.getAsJsonArray()) {
-            JsonElement jsonId   = ((JsonObject)element).get("id");
-            JsonElement jsonPath = ((JsonObject)element).get("path");
-            
-            if (jsonId == null || jsonPath == null) {
-                continue;
-            }
-            
-            // если материал существует
-            Path path = Paths.get(jsonPath.getAsString());
-            if (pathIsMaterial(path)) {
-                // добавляем в базу новый материал
-                new Material(path)
-                    .setId(jsonId.getAsInt());
-            }
+        // добавляем в базу новый материал
+        Material mat = new Material(Paths.get(entry.path), entry.id);
+        STUBS.add(mat, entry.textureIds);
+    }
+    
+    /**
+     * Прочитать файлы всех материалов, которые ещё остаются заглушками
+     */
+    static void loadStubs() {
+        for (Material mat : MATERIALS) {
+            mat.ensureLoaded();
         }
-        
-        // на всякий случай проверим валидность всех материалов
-        checkAll();
-        
-        return true;
     }
     
     /** 
-     * Сохранить все материалы
+     * Сохранить все измененные материалы (и те, чьи файлы пропали с диска)
      * @return true в случае успеха
      */
     public static boolean saveAll() {
         boolean allOk = true;
         
         for (Material mat : MATERIALS) {
+            if (!mat.isDirty() && ProjectFiles.exists(Paths.get(mat.getPath()))) {
+                continue;
+            }
             if (!mat.save()) {
                 allOk = false;
             }
@@ -255,6 +330,11 @@ public class Material extends Resource {
      * @return true в случае успеха
      */
     public static boolean saveConfig() {        
+        // конфиг не изменился с последней загрузки или сохранения
+        if (!MATERIALS.isConfigDirty() && ConfigShards.isSaved(Paths.get(CONFIG_STRING))) {
+            return true;
+        }
+        
         // создадим папку с конфигами, если нужно
         if (!Files.exists(Global.CONFIG_PATH)) {
             try {
@@ -266,24 +346,17 @@ public class Material extends Resource {
             }
         }
         
-        // формируем конфиг с описанием
-        JsonArray array = new JsonArray(MATERIALS.size());
-        for (Material mat : MATERIALS) {
-            JsonObject object = new JsonObject();
-            object.addProperty("id", mat.getId());
-            object.addProperty("path", mat.getPath());
-            array.add(object);
-        }
-        JsonObject config = new JsonObject();
-        config.addProperty("identificator", CONFIG_IDENTIFICATOR);
-        config.addProperty("version", CONFIG_VERSION);
-        config.add("data", array);
-        
-        // сохраняем конфиг
-        try (Writer writer = new FileWriter(CONFIG_STRING)) { 
-            Gson gson = new GsonBuilder().create();   
-            gson.toJson(config, writer);             
+        // пишем конфиг потоком - по записи на каждый ресурс, без промежуточного дерева.
+        // отметку снимаем до записи, чтобы изменение во время записи не потерялось
+        MATERIALS.markConfigClean();
+        try {
+            ConfigShards.write(Paths.get(CONFIG_STRING), 
+                               CONFIG_IDENTIFICATOR, 
+                               CONFIG_VERSION, 
+                               MATERIALS, 
+                               null);
         } catch (IOException ex) {
+            MATERIALS.markConfigDirty();
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
             return false;
@@ -307,7 +380,9 @@ public class Material extends Resource {
      */
     public static void checkAll() {
         for (Material mat : MATERIALS) {
-            mat.check();
+            if (mat.isLoaded()) {
+                mat.check();
+            }
         }
     }
     
@@ -317,9 +392,65 @@ public class Material extends Resource {
     }
     public Material(Path path) {
         super(path);
-        
+        init(path);
+        register();
+    }
+    /** конструктор для загрузки проекта - id уже известен, файл будет прочитан при первом обращении */
+    Material(Path path, long id) {
+        super(path, id);
+        type = Type.Default;
+        loaded = false;
+        register();
+    }
+    /** конструктор для загрузки проекта из индекса - содержимое файла уже известно */
+    Material(Path path, long id, Type type, List<Frame> frames) {
+        super(path, id);
+        this.type = type;
+        synchronized (this) {
+            for (Frame frm : frames) {
+                pushFrame(frm);
+            }
+        }
+        markClean();
+        register();
+    }
+    
+    /**
+     * Прочитан ли файл материала
+     * @return false, если материал пока заглушка
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+    
+    /**
+     * Прочитать файл материала, если материал ещё заглушка.
+     * Чтение не считается правкой и не попадает в журнал изменений
+     */
+    void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                loaded = true;
+                STUBS.remove(this);
+                setLoading(true);
+                try {
+                    load(Paths.get(getPath()));
+                } finally {
+                    setLoading(false);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Общая часть конструкторов - загрузить материал или создать файл нового
+     * @param path Путь до файла
+     */
+    private void init(Path path) {
         type = Type.Default; 
-        frames = new ArrayList<>();        
         
         if (Files.exists(path)) {
             load(path);
@@ -333,14 +464,16 @@ public class Material extends Resource {
      * @param path Путь до файла
      * @return true в случае успеха
      */
-    protected boolean load(Path path) {
-        frames.clear();
+    protected synchronized boolean load(Path path) {
+        clearFrames();
+        // пока файл не прочитан полностью, материал не совпадает с ним
+        markDirty();
         
         /** если файл существует и он является текстурой */
         if (pathIsMaterial(path)) {            
             // читаем конфиг
             JsonObject config = new JsonObject();        
-            try (Reader reader = new FileReader(path.toFile())) {
+            try (Reader reader = ProjectFiles.newReader(path, Charset.defaultCharset())) {
                 Gson gson = new GsonBuilder().create();  
                 config = gson.fromJson(reader, JsonObject.class);
             } catch (Exception ex) {
@@ -378,6 +511,7 @@ public class Material extends Resource {
                 return false;
             }        
             // получаем текстуры по данным из конфига
+            boolean lostTextures = false;
             for (JsonElement element : jsonFrames.getAsJsonArray()) {
                 JsonElement jsonTxrId = ((JsonObject)element).get("texture_id");
                 JsonElement jsonDelay = ((JsonObject)element).get("delay");
@@ -390,10 +524,17 @@ public class Material extends Resource {
                 long id = jsonTxrId.getAsLong();
                 double delay = jsonDelay.getAsDouble();
                 Texture txr = (Texture) Resource.getById(id, Resource.Type.TEXTURE);
+                if (txr == null && id != -1) {
+                    lostTextures = true;
+                }
                 
                 pushFrame(new Frame(txr, delay));
             }
             
+            // ссылки на пропавшие текстуры при сохранении обнулятся - файл нужно переписать
+            if (!lostTextures) {
+                markClean();
+            }
             return true;
         }
         
@@ -404,8 +545,10 @@ public class Material extends Resource {
      * Сохранить материал в файл, к которому он привязан
      * @return true в случае успеха
      */
-    public boolean save() { 
+    public synchronized boolean save() { 
+        ensureLoaded();
         check();
+        markClean();
         
         // информация о кадрах
         JsonArray jsonFrames = new JsonArray();
@@ -430,11 +573,16 @@ public class Material extends Resource {
         object.addProperty("type",  type.toString());
         object.add("frames", jsonFrames);
         
-        // сохраняем в привязанный файл
-        try (Writer writer = new FileWriter(getPath())) { 
-            Gson gson = new GsonBuilder().create();   
-            gson.toJson(object, writer);             
+        // сохраняем в привязанный файл (атомарно - при сбое останется прежняя версия)
+        try {
+            FileSystemUtils.writeAtomic(Paths.get(getPath()), out -> {
+                Writer writer = new OutputStreamWriter(out, Charset.defaultCharset());
+                Gson gson = new GsonBuilder().create();   
+                gson.toJson(object, writer);
+                writer.flush();
+            });
         } catch (IOException ex) {
+            markDirty();
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
             return false;
@@ -443,13 +591,29 @@ public class Material extends Resource {
         return true;
     }
     
+    /**
+     * Материал удален из базы - снять отметки об использовании текстур
+     */
+    @Override
+    synchronized void unregistered() {
+        // у заглушки кадров нет - отмечать нечего, только убрать её из индекса
+        STUBS.remove(this);
+        for (Frame frm : frames) {
+            frm.setMaterial(null);
+        }
+        
+        super.unregistered();
+    }
+    
     /**
      * Деструктор
      */
     @Override
     public void dispose() {
         super.dispose();
-        frames.clear();
+        if (loaded) {
+            clearFrames();
+        }
     }
         
     /**
@@ -457,7 +621,11 @@ public class Material extends Resource {
      * @param type новый тип
      */
     public void setType(Type type) {
-        this.type = type;
+        ensureLoaded();
+        if (this.type != type) {
+            this.type = type;
+            markDirty();
+        }
     }
     /**
      * Установить количество кадров (не менее 1).
@@ -465,7 +633,8 @@ public class Material extends Resource {
      * Если новое количество меньше текущего, то лишние будут отсечены.
      * @param count количество кадров
      */
-    public void setFramesCount(int count) {
+    public synchronized void setFramesCount(int count) {
+        ensureLoaded();
         if (count > 0) {
             // сокращаем количество
             if (count < frames.size()) {
@@ -475,7 +644,7 @@ public class Material extends Resource {
             // наращиваем
             } else if (count > frames.size()) {                
                 while (frames.size() < count) {
-                    frames.add(new Frame());
+                    pushFrame(new Frame());
                 }
             }
         }
@@ -485,13 +654,14 @@ public class Material extends Resource {
      * @return тип Type
      */
     public Type getType() {
+        ensureLoaded();
         return type;
     }
     /**
      * Добавить кадр в конец (то же, что pushFrame)
      * @param frame Добавляемый кадр
      */
-    public void addFrame(Frame frame) {
+    public synchronized void addFrame(Frame frame) {
         pushFrame(frame);
     }
     /**
@@ -499,43 +669,69 @@ public class Material extends Resource {
      * @param position Позиция для добавления нового кадра
      * @param frame Добавляемый кадр
      */
-    public void addFrame(int position, Frame frame) {
+    public synchronized void addFrame(int position, Frame frame) {
+        ensureLoaded();
         frames.add(position, frame);
+        frame.setMaterial(this);
+        markDirty();
     }
     /**
      * Добавить кадр в конец
      * @param frame Добавляемый кадр
      */
-    public void pushFrame(Frame frame) {
+    public synchronized void pushFrame(Frame frame) {
+        ensureLoaded();
         frames.add(frame);
+        frame.setMaterial(this);
+        markDirty();
     }
     /**
      * Удалить последний кадр
      */
-    public void popFrame() {
-        frames.remove(frames.size() - 1);
+    public synchronized void popFrame() {
+        removeFrame(frames.size() - 1);
     }
     /**
      * Удалить кадр
      * @param position Позиция для удаления
      */
-    public void removeFrame(int position) {
+    public synchronized void removeFrame(int position) {
+        ensureLoaded();
         if (position > -1 && position < frames.size()) {
-            frames.remove(position);
+            detachFrame(frames.remove(position));
+            markDirty();
         }
     }
     /**
      * Удалить все кадры
      */
-    public void clearFrames() {
+    public synchronized void clearFrames() {
+        ensureLoaded();
+        if (frames.isEmpty()) {
+            return;
+        }
+        for (Frame frm : frames) {
+            frm.setMaterial(null);
+        }
         frames.clear();
+        markDirty();
+    }
+    /**
+     * Отвязать кадр от материала, если он больше не встречается среди кадров
+     * @param frame убранный кадр
+     */
+    private void detachFrame(Frame frame) {
+        if (frame != null && !frames.contains(frame)) {
+            frame.setMaterial(null);
+        }
     }
     /**
      * Получить кадр из анимации
      * @param index номер кадра
      * @return кадр в классе MaterialFrame или null, если такого нет
      */
-    public Frame getFrame(int index) {
+    public synchronized Frame getFrame(int index) {
+        ensureLoaded();
         if (index >= 0 && index < frames.size()) {
             return frames.get(index);
         } else {
@@ -546,7 +742,8 @@ public class Material extends Resource {
      * Получить количество кадров
      * @return целое число - количество кадров анимации
      */
-    public int getFramesCount() {
+    public synchronized int getFramesCount() {
+        ensureLoaded();
         return frames.size();
     }    
     /**
@@ -554,14 +751,23 @@ public class Material extends Resource {
      * @param index позиция для замены
      * @param frame новый кадр
      */
-    public void setFrame(int index, Frame frame) {
+    public synchronized void setFrame(int index, Frame frame) {
+        ensureLoaded();
         if (index >= 0 && index < frames.size()) {
-            frames.set(index, frame);
+            Frame old = frames.set(index, frame);
+            frame.setMaterial(this);
+            detachFrame(old);
+            markDirty();
         }
     }    
     
     @Override
-    protected List getContainer() {
+    public Resource.Type getResourceType() {
+        return Resource.Type.MATERIAL;
+    }
+    
+    @Override
+    protected ResourceRegistry getContainer() {
         return MATERIALS;
     }
     
@@ -570,7 +776,8 @@ public class Material extends Resource {
      * Если текстуры нет в базе, то она будет ОБНУЛЕНА.
      * @return true, если все кадры валидные
      */
-    public boolean check() {
+    public synchronized boolean check() {
+        ensureLoaded();
         int counter = 0;
         for (Frame frm : frames) {
             if (frm.check()) {
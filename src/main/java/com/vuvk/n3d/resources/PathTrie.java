@@ -0,0 +1,339 @@
+/**
+    Shared trie of resource paths (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Общее для всех ресурсов дерево путей проекта.
+ * Каждая папка хранится один раз в виде узла, а ресурс ссылается на узел своей папки
+ * и хранит только имя файла. Узлы одновременно служат индексом путь -> ресурс для всех типов:
+ * поиск идёт по сегментам пути, выборка по префиксу - обход поддерева,
+ * а перенос или переименование папки - смена родителя у одного узла
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+final class PathTrie {
+
+    /**
+     * Узел дерева - папка проекта
+     */
+    static final class Node {
+        /** имя папки */
+        private volatile String segment;
+        /** родительская папка, null - корень */
+        private volatile Node parent;
+        /** вложенные папки */
+        private final HashMap<String, Node> folders = new HashMap<>();
+        /** ресурсы в папке по имени файла */
+        private final HashMap<String, Resource> files = new HashMap<>();
+        /** закэшированный путь папки */
+        private volatile CachedPath cached;
+
+        private Node(Node parent, String segment) {
+            this.parent  = parent;
+            this.segment = segment;
+        }
+
+        /**
+         * Получить путь папки со слэшем на конце (для корня - пустая строка).
+         * Строка собирается один раз и пересобирается только после переноса какой-либо папки
+         * @return путь папки
+         */
+        String getPath() {
+            // сначала читаем счётчик, затем структуру - тогда кэш не переживёт перенос
+            long stamp = STAMP.get();
+            CachedPath c = cached;
+            if (c != null && c.stamp == stamp) {
+                return c.path;
+            }
+
+            Node p = parent;
+            String path = (p == null) ? "" : p.getPath() + segment + "/";
+            cached = new CachedPath(stamp, path);
+            return path;
+        }
+
+        /**
+         * Пуст ли узел (нет ни файлов, ни вложенных папок)
+         * @return true, если пуст
+         */
+        private boolean isEmpty() {
+            return files.isEmpty() && folders.isEmpty();
+        }
+    }
+
+    /**
+     * Расположение ресурса - папка и имя файла. Неизменяемое
+     */
+    static final class Location {
+        /** папка */
+        final Node folder;
+        /** имя файла */
+        final String fileName;
+
+        private Location(Node folder, String fileName) {
+            this.folder   = folder;
+            this.fileName = fileName;
+        }
+
+        /**
+         * Получить полный путь
+         * @return путь проекта
+         */
+        String getPath() {
+            return folder.getPath() + fileName;
+        }
+    }
+
+    /**
+     * Путь папки, собранный при определённом значении счётчика переносов
+     */
+    private static final class CachedPath {
+        final long stamp;
+        final String path;
+
+        CachedPath(long stamp, String path) {
+            this.stamp = stamp;
+            this.path  = path;
+        }
+    }
+
+    /** корень дерева */
+    private static final Node ROOT = new Node(null, "");
+    /** счётчик переносов папок - при изменении все закэшированные пути устаревают */
+    private static final AtomicLong STAMP = new AtomicLong();
+    /** блокировка структуры дерева */
+    private static final ReentrantReadWriteLock LOCK = new ReentrantReadWriteLock();
+
+    /**
+     * Получить расположение для пути, создав при необходимости узлы папок
+     * @param path Путь проекта
+     * @return расположение
+     */
+    static Location locate(String path) {
+        int slash = path.lastIndexOf('/');
+        String fileName = path.substring(slash + 1);
+
+        LOCK.writeLock().lock();
+        try {
+            Node node = ROOT;
+            int start = 0;
+            while (start <= slash) {
+                int end = path.indexOf('/', start);
+                String segment = path.substring(start, end);
+                Node child = node.folders.get(segment);
+                if (child == null) {
+                    child = new Node(node, segment);
+                    node.folders.put(segment, child);
+                }
+                node = child;
+                start = end + 1;
+            }
+            return new Location(node, fileName);
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Найти узел папки, ничего не создавая (вызывать под блокировкой)
+     * @param folderPath Путь папки со слэшем на конце или пустая строка для корня
+     * @return узел или null
+     */
+    private static Node find(String folderPath) {
+        Node node = ROOT;
+        int start = 0;
+        int end;
+        while (node != null && (end = folderPath.indexOf('/', start)) != -1) {
+            node = node.folders.get(folderPath.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Удалить пустые узлы вверх по дереву (вызывать под блокировкой записи)
+     * @param node Узел, с которого начинать
+     */
+    private static void prune(Node node) {
+        while (node != ROOT && node.isEmpty() && node.parent != null) {
+            Node parent = node.parent;
+            parent.folders.remove(node.segment, node);
+            node = parent;
+        }
+    }
+
+    /**
+     * Добавить ресурс в дерево
+     * @param res Ресурс
+     */
+    static void put(Resource res) {
+        Location loc = res.getLocation();
+        LOCK.writeLock().lock();
+        try {
+            loc.folder.files.put(loc.fileName, res);
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Убрать ресурс из дерева
+     * @param res Ресурс
+     * @param loc Расположение, по которому ресурс был добавлен
+     */
+    static void remove(Resource res, Location loc) {
+        if (loc == null) {
+            return;
+        }
+        LOCK.writeLock().lock();
+        try {
+            loc.folder.files.remove(loc.fileName, res);
+            prune(loc.folder);
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Найти ресурс любого типа по пути
+     * @param path Путь проекта
+     * @return ресурс или null
+     */
+    static Resource get(String path) {
+        if (path == null) {
+            return null;
+        }
+        int slash = path.lastIndexOf('/');
+        LOCK.readLock().lock();
+        try {
+            Node folder = find(path.substring(0, slash + 1));
+            return (folder != null) ? folder.files.get(path.substring(slash + 1)) : null;
+        } finally {
+            LOCK.readLock().unlock();
+        }
+    }
+
+    /**
+     * Найти все ресурсы, пути которых начинаются с префикса
+     * @param prefix Начало пути. Обычно путь папки со слэшем на конце
+     * @return список ресурсов
+     */
+    static List<Resource> getByPrefix(String prefix) {
+        List<Resource> result = new ArrayList<>();
+        int slash = prefix.lastIndexOf('/');
+        String partial = prefix.substring(slash + 1);
+
+        LOCK.readLock().lock();
+        try {
+            Node folder = find(prefix.substring(0, slash + 1));
+            if (folder == null) {
+                return result;
+            }
+
+            // в папке - только то, что начинается с неполного последнего сегмента
+            Deque<Node> stack = new ArrayDeque<>();
+            for (Map.Entry<String, Resource> file : folder.files.entrySet()) {
+                if (file.getKey().startsWith(partial)) {
+                    result.add(file.getValue());
+                }
+            }
+            for (Map.Entry<String, Node> child : folder.folders.entrySet()) {
+                if (child.getKey().startsWith(partial)) {
+                    stack.push(child.getValue());
+                }
+            }
+
+            // вложенные папки - целиком
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                result.addAll(node.files.values());
+                for (Node child : node.folders.values()) {
+                    stack.push(child);
+                }
+            }
+        } finally {
+            LOCK.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Перенести или переименовать папку вместе со всем содержимым.
+     * Меняется только родитель и имя одного узла, пути вложенных ресурсов не переписываются
+     * @param from Путь папки со слэшем на конце
+     * @param to Новый путь папки со слэшем на конце
+     * @return true в случае успеха, false - папки нет в дереве, новая папка уже есть
+     *         (нужно слияние) или папка переносится сама в себя
+     */
+    static boolean moveFolder(String from, String to) {
+        if (from == null || to == null ||
+            !from.endsWith("/") || !to.endsWith("/") ||
+            from.isEmpty() || to.startsWith(from)
+           ) {
+            return false;
+        }
+
+        String toParent = to.substring(0, to.lastIndexOf('/', to.length() - 2) + 1);
+        String toSegment = to.substring(toParent.length(), to.length() - 1);
+
+        LOCK.writeLock().lock();
+        try {
+            Node node = find(from);
+            if (node == null || node == ROOT || find(to) != null) {
+                return false;
+            }
+
+            // узел нового родителя (создаем при необходимости)
+            Node newParent = ROOT;
+            int start = 0;
+            int end;
+            while ((end = toParent.indexOf('/', start)) != -1) {
+                String segment = toParent.substring(start, end);
+                Node child = newParent.folders.get(segment);
+                if (child == null) {
+                    child = new Node(newParent, segment);
+                    newParent.folders.put(segment, child);
+                }
+                newParent = child;
+                start = end + 1;
+            }
+
+            Node oldParent = node.parent;
+            oldParent.folders.remove(node.segment, node);
+            node.segment = toSegment;
+            node.parent  = newParent;
+            newParent.folders.put(toSegment, node);
+            prune(oldParent);
+
+            STAMP.incrementAndGet();
+            return true;
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    private PathTrie() {}
+}
@@ -0,0 +1,241 @@
+/**
+    Disk cache of decoded texture pixels (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.vuvk.n3d.Const;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Дисковый кеш декодированных изображений текстур (config/cache/).
+ * Для каждой текстуры хранит пиксели уже подготовленного изображения (prepareImage) в порядке байт RGBA,
+ * а также путь, размер и время изменения PNG, из которого они получены.
+ * При повторном открытии проекта пиксели читаются из файла кеша одним блоком прямо в буфер пикселей текстуры,
+ * и изображение текстуры получается без чтения PNG, распаковки и подготовки. Файл кеша не остается
+ * открытым, поэтому его можно перезаписать или удалить в любой момент (в том числе в Windows).
+ * Файлы кеша удаленных и переименованных текстур удаляются.
+ * Кеш не переносится в архив проекта и может быть удален в любой момент
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class PixelCache {
+    
+    /** папка кеша */
+    public static final String CACHE_STRING = Const.CONFIG_STRING + "cache/";
+    /** расширение файлов кеша */
+    static final String FORMAT_EXT = "px";
+    /** сигнатура файла кеша */
+    static final int MAGIC = 0x4E335058;
+    /** версия формата файла кеша */
+    static final int VERSION = 1;
+    
+    /** пользоваться ли кешем (можно выключить свойством n3d.pixelCache=false) */
+    private static volatile boolean enabled = !"false".equals(System.getProperty("n3d.pixelCache"));
+    
+    private static final Logger LOG = Logger.getLogger(PixelCache.class.getName());
+    
+    private PixelCache() {
+    }
+    
+    /**
+     * Пользоваться ли кешем
+     * @return true, если изображения читаются из кеша и записываются в него
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Включить или выключить кеш
+     * @param enabled true - пользоваться кешем
+     */
+    public static void setEnabled(boolean enabled) {
+        PixelCache.enabled = enabled;
+    }
+    
+    /**
+     * Получить путь до файла кеша текстуры. Имя - 64-битный хеш FNV-1a пути текстуры,
+     * а сам путь лежит в файле, поэтому совпадение хешей не перепутает изображения
+     * @param key Путь до текстуры
+     * @return путь до файла кеша
+     */
+    static Path getFile(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xFF);
+            hash *= 0x100000001b3L;
+        }
+        return Paths.get(CACHE_STRING + String.format("%016x.%s", hash, FORMAT_EXT));
+    }
+    
+    /**
+     * Прочитать изображение текстуры из кеша, если оно получено из файла с теми же размером и временем изменения
+     * @param path Путь до файла текстуры
+     * @param attrs Атрибуты файла текстуры
+     * @return пиксели (вне кучи, если хранение вне кучи включено) или null, если в кеше их нет или они устарели
+     */
+    static TexturePixels read(Path path, BasicFileAttributes attrs) {
+        if (!enabled) {
+            return null;
+        }
+        
+        String key = path.toString().replace('\\', '/');
+        try (FileChannel channel = FileChannel.open(getFile(key), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(12);
+            if (!readFully(channel, header) || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+            int nameLength = header.getInt();
+            if (nameLength < 0 || nameLength > fileSize) {
+                return null;
+            }
+            
+            ByteBuffer info = ByteBuffer.allocate(nameLength + 24);
+            if (!readFully(channel, info)) {
+                return null;
+            }
+            byte[] name = new byte[nameLength];
+            info.get(name);
+            long size     = info.getLong();
+            long modified = info.getLong();
+            int  width    = info.getInt();
+            int  height   = info.getInt();
+            if (!key.equals(new String(name, StandardCharsets.UTF_8)) ||
+                size != attrs.size() ||
+                modified != attrs.lastModifiedTime().toMillis() ||
+                width  <= 0 || width  > Texture.MAX_WIDTH ||
+                height <= 0 || height > Texture.MAX_HEIGHT ||
+                fileSize - channel.position() != (long) width * height * 4
+               ) {
+                return null;
+            }
+            
+            // пиксели читаются одним блоком - файл после чтения не держится
+            ByteBuffer pixels = TexturePixels.isEnabled() ? ByteBuffer.allocateDirect(width * height * 4) 
+                                                          : ByteBuffer.allocate(width * height * 4);
+            return readFully(channel, pixels) ? new TexturePixels(pixels, width, height) : null;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            // обрезанный или испорченный файл - просто промах
+            LOG.log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Дочитать буфер из файла до конца
+     * @param channel Файл
+     * @param buffer Буфер - после чтения позиция на начале
+     * @return true, если буфер заполнен, false - файл закончился раньше
+     * @throws IOException ошибка чтения
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+    
+    /**
+     * Записать изображение текстуры в кеш. Ошибка записи не мешает работе - кеш просто не пополнится.
+     * Файл пишется во временный и переименовывается, но без сброса на диск: после сбоя
+     * испорченный файл кеша будет просто промахом
+     * @param path Путь до файла текстуры
+     * @param attrs Атрибуты файла текстуры, из которого получено изображение
+     * @param image Пиксели подготовленного изображения
+     */
+    static void write(Path path, BasicFileAttributes attrs, TexturePixels image) {
+        if (!enabled || image == null) {
+            return;
+        }
+        
+        String key = path.toString().replace('\\', '/');
+        ByteBuffer pixels = image.getBytes();
+        byte[] name = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(12 + name.length + 24);
+        header.putInt(MAGIC)
+              .putInt(VERSION)
+              .putInt(name.length)
+              .put(name)
+              .putLong(attrs.size())
+              .putLong(attrs.lastModifiedTime().toMillis())
+              .putInt(image.getWidth())
+              .putInt(image.getHeight())
+              .flip();
+        
+        Path file = getFile(key);
+        Path temp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (pixels.hasRemaining()) {
+                    channel.write(pixels);
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, null, ex);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, null, e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Удалить из кеша изображения текстур (текстуры удалены или сменили путь - по старым путям их больше не ищут)
+     * @param keys Прежние пути до файлов текстур
+     */
+    static void remove(Collection<String> keys) {
+        for (String key : keys) {
+            try {
+                Files.deleteIfExists(getFile(key));
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, null, ex);
+            }
+        }
+    }
+}
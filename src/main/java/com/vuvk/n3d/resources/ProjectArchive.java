@@ -0,0 +1,622 @@
+/**
+    Packed project archive (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.vuvk.n3d.Const;
+import com.vuvk.n3d.utils.FileSystemUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Упакованный проект - один файл с папками resources/ и config/.
+ * Сразу за заголовком фиксированного размера лежит каталог всех файлов (путь, смещение, размеры,
+ * способ сжатия, время изменения и CRC32), за ним - данные файлов.
+ * Каталог читается при открытии целиком, а данные - только при обращении к файлу:
+ * архив отображается в память, и каждый файл - срез этого отображения.
+ * Каждый файл сжимается отдельно и только если это выгодно (PNG и OGG уже сжаты и хранятся как есть)
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ProjectArchive implements Closeable {
+
+    /** идентификатор архива */
+    static final String IDENTIFICATOR = "N3D_PROJECT_ARCHIVE";
+    /** версия архива */
+    static final int MAJOR = 0;
+    static final int MINOR = 1;
+    static final String VERSION = MAJOR + "." + MINOR;
+    /** расширение файла архива */
+    public static final String FORMAT_EXT = "n3dp";
+
+    /** сигнатура файла - "N3DA" */
+    private static final int MAGIC = 0x4E334441;
+    /** размер заголовка: сигнатура, размер каталога, CRC32 каталога, количество файлов */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4;
+    /** файл хранится как есть */
+    private static final byte STORED = 0;
+    /** файл сжат Deflate */
+    private static final byte DEFLATED = 1;
+    /** сжатие должно экономить хотя бы столько от размера файла, иначе файл хранится как есть */
+    private static final double MIN_SAVING = 0.1;
+    /** папки проекта, которые попадают в архив */
+    private static final String[] FOLDERS = { Const.RESOURCES_STRING, Const.CONFIG_STRING };
+
+    /**
+     * Файл в архиве. Атрибуты те же, что у исходного файла, поэтому запись может заменять атрибуты файла на диске
+     */
+    public static final class Entry implements BasicFileAttributes {
+        /** путь файла в проекте (resources/... или config/...) */
+        final String path;
+        /** способ хранения */
+        final byte method;
+        /** смещение данных от начала архива */
+        final long offset;
+        /** размер данных в архиве */
+        final long stored;
+        /** размер файла */
+        final long size;
+        /** время изменения файла */
+        final long modified;
+        /** CRC32 содержимого файла */
+        final int crc;
+        /** проверено ли уже содержимое по CRC32 (архив открыт только для чтения, повторно проверять незачем) */
+        volatile boolean verified;
+
+        Entry(String path, byte method, long offset, long stored, long size, long modified, int crc) {
+            this.path     = path;
+            this.method   = method;
+            this.offset   = offset;
+            this.stored   = stored;
+            this.size     = size;
+            this.modified = modified;
+            this.crc      = crc;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isCompressed() {
+            return method == DEFLATED;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.fromMillis(modified);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+
+    /** файл архива */
+    private final Path file;
+    /** канал, через который отображаются данные */
+    private final FileChannel channel;
+    /** каталог по путям файлов в порядке записи */
+    private final Map<String, Entry> entries;
+    /** каталог, упорядоченный по путям - для поиска содержимого папок */
+    private final NavigableMap<String, Entry> sorted;
+    /** отображение всего архива, создается при первом чтении (null - ещё не нужно или архив больше 2 Гб) */
+    private ByteBuffer mapped;
+
+    private ProjectArchive(Path file, FileChannel channel, Map<String, Entry> entries) {
+        this.file    = file;
+        this.channel = channel;
+        this.entries = entries;
+        this.sorted  = new TreeMap<>(entries);
+    }
+
+    /**
+     * Открыть архив: прочитать заголовок и каталог. Данные файлов не читаются
+     * @param file Путь до архива
+     * @return открытый архив
+     * @throws IOException архив не читается, испорчен или несовместим
+     */
+    public static ProjectArchive open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {}
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a project archive: " + file);
+            }
+            int directorySize = header.getInt();
+            int directoryCrc  = header.getInt();
+            int count         = header.getInt();
+            if (directorySize < 0 || HEADER_SIZE + (long) directorySize > channel.size()) {
+                throw new IOException("Damaged project archive: " + file);
+            }
+
+            ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, directorySize);
+            CRC32 crc = new CRC32();
+            crc.update(directory.duplicate());
+            if ((int) crc.getValue() != directoryCrc) {
+                throw new IOException("Damaged project archive: " + file);
+            }
+
+            if (!Resource.checkConfig(readString(directory), readString(directory), IDENTIFICATOR, Double.parseDouble(VERSION))) {
+                throw new IOException("Unsupported project archive: " + file);
+            }
+
+            Map<String, Entry> entries = new LinkedHashMap<>();
+            for (int i = 0; i < count; ++i) {
+                Entry entry = new Entry(readString(directory),
+                                        directory.get(),
+                                        directory.getLong(),
+                                        directory.getLong(),
+                                        directory.getLong(),
+                                        directory.getLong(),
+                                        directory.getInt());
+                if (entry.offset < 0 || entry.stored < 0 || entry.offset + entry.stored > channel.size()) {
+                    throw new IOException("Damaged project archive: " + file);
+                }
+                entries.put(entry.path, entry);
+            }
+
+            return new ProjectArchive(file, channel, entries);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            if (ex instanceof IOException) {
+                throw (IOException) ex;
+            }
+            throw new IOException("Damaged project archive: " + file, ex);
+        }
+    }
+
+    /**
+     * Получить путь до файла архива
+     * @return путь
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Получить запись о файле
+     * @param path Путь файла в проекте
+     * @return запись или null, если такого файла в архиве нет
+     */
+    public Entry getEntry(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Получить все файлы архива
+     * @return записи в порядке каталога
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Есть ли в архиве папка (файлы внутри неё)
+     * @param folder Путь папки в проекте
+     * @return true, если в папке есть хоть один файл
+     */
+    public boolean hasFolder(String folder) {
+        String prefix = folder.endsWith("/") ? folder : folder + "/";
+        String first = sorted.ceilingKey(prefix);
+        return (first != null && first.startsWith(prefix));
+    }
+
+    /**
+     * Получить файлы архива внутри папки, включая вложенные папки
+     * @param folder Путь папки в проекте
+     * @return записи в порядке путей
+     */
+    public Collection<Entry> getEntries(String folder) {
+        String prefix = folder.endsWith("/") ? folder : folder + "/";
+        return Collections.unmodifiableCollection(sorted.subMap(prefix, prefix + Character.MAX_VALUE).values());
+    }
+
+    /**
+     * Получить имена файлов и папок, лежащих в папке архива непосредственно.
+     * Вложенные папки не перебираются - поиск перескакивает через них
+     * @param folder Путь папки в проекте
+     * @return имена по порядку, у папок в конце стоит "/"
+     */
+    public List<String> list(String folder) {
+        String prefix = folder.endsWith("/") ? folder : folder + "/";
+        List<String> names = new ArrayList<>();
+        String key = sorted.ceilingKey(prefix);
+        while (key != null && key.startsWith(prefix)) {
+            int slash = key.indexOf('/', prefix.length());
+            if (slash < 0) {
+                names.add(key.substring(prefix.length()));
+                key = sorted.higherKey(key);
+            } else {
+                names.add(key.substring(prefix.length(), slash + 1));
+                key = sorted.ceilingKey(key.substring(0, slash + 1) + Character.MAX_VALUE);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Получить данные файла в том виде, в каком они лежат в архиве (срез отображения)
+     * @param entry Запись о файле
+     * @return буфер только для чтения
+     * @throws IOException ошибка отображения
+     */
+    private ByteBuffer slice(Entry entry) throws IOException {
+        if (channel.size() > Integer.MAX_VALUE) {
+            // такой архив целиком не отобразить - отображаем только сам файл
+            return channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.stored);
+        }
+
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (mapped == null) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            buffer = mapped.duplicate();
+        }
+        buffer.position((int) entry.offset);
+        buffer.limit((int) (entry.offset + entry.stored));
+        return buffer.slice();
+    }
+
+    /**
+     * Получить содержимое файла.
+     * Несжатый файл отдается срезом отображения без копирования, сжатый - распаковывается.
+     * При первом чтении содержимое сверяется с CRC32 из каталога
+     * @param entry Запись о файле
+     * @return буфер только для чтения с содержимым файла
+     * @throws IOException ошибка чтения или испорченные данные
+     */
+    public ByteBuffer read(Entry entry) throws IOException {
+        ByteBuffer data = (entry.method == STORED) ? slice(entry).asReadOnlyBuffer() : inflate(entry);
+        verify(entry, data);
+        return data;
+    }
+
+    /**
+     * Сверить содержимое файла с CRC32 из каталога, если оно ещё не проверялось
+     * @param entry Запись о файле
+     * @param data Содержимое файла (позиция буфера не меняется)
+     * @throws IOException содержимое не совпадает с CRC32
+     */
+    private static void verify(Entry entry, ByteBuffer data) throws IOException {
+        if (entry.verified) {
+            return;
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        if ((int) crc.getValue() != entry.crc) {
+            throw new IOException("Damaged file in project archive: " + entry.path);
+        }
+        entry.verified = true;
+    }
+
+    /**
+     * Распаковать сжатый файл
+     * @param entry Запись о файле
+     * @return буфер только для чтения с содержимым файла
+     * @throws IOException испорченные данные
+     */
+    private ByteBuffer inflate(Entry entry) throws IOException {
+        ByteBuffer data = slice(entry);
+
+        byte[] packed = new byte[data.remaining()];
+        data.get(packed);
+        byte[] unpacked = new byte[(int) entry.size];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            int count = 0;
+            while (count < unpacked.length && !inflater.finished()) {
+                int n = inflater.inflate(unpacked, count, unpacked.length - count);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += n;
+            }
+            if (count != unpacked.length) {
+                throw new IOException("Damaged file in project archive: " + entry.path);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Damaged file in project archive: " + entry.path, ex);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(unpacked).asReadOnlyBuffer();
+    }
+
+    /**
+     * Открыть поток чтения файла
+     * @param entry Запись о файле
+     * @return поток с содержимым файла
+     * @throws IOException ошибка чтения
+     */
+    public InputStream newInputStream(Entry entry) throws IOException {
+        ByteBuffer data = read(entry);
+        if (data.hasArray()) {
+            return new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            mapped = null;
+        }
+        channel.close();
+    }
+
+    /**
+     * Упаковать проект в архив.
+     * В архив попадают папки resources/ и config/ (кроме журнала, списка удаленных файлов и временных файлов),
+     * а если проект сам открыт из архива, то и те его файлы, которых нет на диске и которые не удалены.
+     * Архив пишется атомарно
+     * @param archive Путь до архива
+     * @throws IOException ошибка чтения файлов проекта или записи архива, или это архив, из которого открыт проект
+     */
+    public static void pack(Path archive) throws IOException {
+        ProjectArchive mounted = ProjectFiles.getArchive();
+        if (mounted != null && archive.toAbsolutePath().equals(mounted.getFile().toAbsolutePath())) {
+            // данные открытого архива читаются прямо из него - перезаписать его нельзя
+            throw new IOException("Project is opened from this archive: " + archive);
+        }
+        
+        Map<String, Path> files = new LinkedHashMap<>();
+        for (String folder : FOLDERS) {
+            Path root = Paths.get(folder);
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    // кеш изображений собирается заново на любой машине
+                    return dir.equals(Paths.get(PixelCache.CACHE_STRING)) ? FileVisitResult.SKIP_SUBTREE 
+                                                                          : FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    String name = path.getFileName().toString();
+                    // временные файлы атомарной записи и журнал в архив не нужны
+                    if (attrs.isRegularFile() && 
+                        !name.startsWith(".") && 
+                        !path.equals(Paths.get(ProjectJournal.JOURNAL_STRING)) &&
+                        !path.equals(Paths.get(ProjectFiles.OVERLAY_STRING)) &&
+                        !path.toAbsolutePath().equals(archive.toAbsolutePath())) {
+                        files.put(path.toString().replace('\\', '/'), path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        List<String> fromArchive = new ArrayList<>();
+        if (mounted != null) {
+            for (String path : mounted.entries.keySet()) {
+                if (!files.containsKey(path) && !ProjectFiles.isDeleted(path)) {
+                    fromArchive.add(path);
+                }
+            }
+        }
+
+        // данные пишутся во временный файл, пока не известен каталог
+        Path data = Files.createTempFile(archive.toAbsolutePath().getParent(), ".", ".data");
+        try {
+            List<Entry> written = new ArrayList<>();
+            try (OutputStream out = Files.newOutputStream(data)) {
+                long offset = 0;
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                try {
+                    for (Map.Entry<String, Path> file : files.entrySet()) {
+                        byte[] bytes = Files.readAllBytes(file.getValue());
+                        long modified = Files.getLastModifiedTime(file.getValue()).toMillis();
+                        Entry entry = writeData(out, deflater, file.getKey(), bytes, modified, offset);
+                        written.add(entry);
+                        offset += entry.stored;
+                    }
+                    for (String path : fromArchive) {
+                        Entry source = mounted.entries.get(path);
+                        ByteBuffer content = mounted.read(source);
+                        byte[] bytes = new byte[content.remaining()];
+                        content.get(bytes);
+                        Entry entry = writeData(out, deflater, path, bytes, source.modified, offset);
+                        written.add(entry);
+                        offset += entry.stored;
+                    }
+                } finally {
+                    deflater.end();
+                }
+            }
+
+            // каталог: смещения считаются от начала архива, т.е. после заголовка и самого каталога
+            ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+            DataOutputStream directory = new DataOutputStream(directoryBytes);
+            writeString(directory, IDENTIFICATOR);
+            writeString(directory, VERSION);
+            long base = HEADER_SIZE + directorySize(written);
+            for (Entry entry : written) {
+                writeString(directory, entry.path);
+                directory.writeByte(entry.method);
+                directory.writeLong(base + entry.offset);
+                directory.writeLong(entry.stored);
+                directory.writeLong(entry.size);
+                directory.writeLong(entry.modified);
+                directory.writeInt(entry.crc);
+            }
+            directory.flush();
+
+            CRC32 crc = new CRC32();
+            crc.update(directoryBytes.toByteArray());
+
+            FileSystemUtils.writeAtomic(archive, stream -> {
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(MAGIC);
+                out.writeInt(directoryBytes.size());
+                out.writeInt((int) crc.getValue());
+                out.writeInt(written.size());
+                directoryBytes.writeTo(out);
+                out.flush();
+                try (FileChannel in = FileChannel.open(data, StandardOpenOption.READ)) {
+                    in.transferTo(0, in.size(), Channels.newChannel(stream));
+                }
+            });
+        } finally {
+            Files.deleteIfExists(data);
+        }
+    }
+
+    /**
+     * Записать данные файла, сжав их, если это выгодно
+     * @param out Поток данных архива
+     * @param deflater Сжатие (сбрасывается перед использованием)
+     * @param path Путь файла в проекте
+     * @param bytes Содержимое файла
+     * @param modified Время изменения файла
+     * @param offset Смещение от начала данных
+     * @return запись о файле со смещением от начала данных
+     * @throws IOException ошибка записи
+     */
+    private static Entry writeData(OutputStream out, Deflater deflater, String path, byte[] bytes, long modified, long offset) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        // дальше этого размера сжатие уже невыгодно
+        long limit = (long) (bytes.length * (1.0 - MIN_SAVING));
+        while (!deflater.finished() && packed.size() < limit) {
+            packed.write(buffer, 0, deflater.deflate(buffer));
+        }
+
+        if (deflater.finished() && packed.size() < limit) {
+            packed.writeTo(out);
+            return new Entry(path, DEFLATED, offset, packed.size(), bytes.length, modified, (int) crc.getValue());
+        }
+        out.write(bytes);
+        return new Entry(path, STORED, offset, bytes.length, bytes.length, modified, (int) crc.getValue());
+    }
+
+    /**
+     * Посчитать размер каталога
+     * @param written Записи о файлах
+     * @return размер каталога в байтах
+     */
+    private static long directorySize(List<Entry> written) {
+        long size = 4 + IDENTIFICATOR.getBytes(StandardCharsets.UTF_8).length +
+                    4 + VERSION.getBytes(StandardCharsets.UTF_8).length;
+        for (Entry entry : written) {
+            size += 4 + entry.path.getBytes(StandardCharsets.UTF_8).length + 1 + 8 + 8 + 8 + 8 + 4;
+        }
+        return size;
+    }
+
+    /**
+     * Прочитать строку (длина и байты UTF-8)
+     * @param buffer Каталог
+     * @return строка
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Записать строку (длина и байты UTF-8)
+     * @param out Поток вывода
+     * @param string Строка
+     * @throws IOException ошибка записи
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
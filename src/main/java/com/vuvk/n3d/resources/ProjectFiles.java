@@ -0,0 +1,452 @@
+/**
+    Virtual file system of project (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.vuvk.n3d.Const;
+import com.vuvk.n3d.utils.FileSystemUtils;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Чтение файлов проекта.
+ * Если проект открыт из архива, то файл ищется сначала на диске, а потом в архиве:
+ * всё, что редактор сохранил, ложится в папку проекта поверх архива и дальше читается уже с диска.
+ * Запись всегда идет на диск. Удаленные файлы и папки архива запоминаются в списке удаленных
+ * (config/archive.lst, там же путь до архива) и дальше не видны, пока проект открыт поверх этого архива
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ProjectFiles {
+
+    /** путь до архива, поверх которого открыт проект, и удаленные из него пути (по строке на путь) */
+    public static final String OVERLAY_STRING = Const.CONFIG_STRING + "archive.lst";
+
+    /** архив, из которого открыт проект (null - проект лежит только на диске) */
+    private static volatile ProjectArchive archive = null;
+    /** пути файлов и папок архива, удаленных из проекта */
+    private static final NavigableSet<String> DELETED = new ConcurrentSkipListSet<>();
+
+    private static final Logger LOG = Logger.getLogger(ProjectFiles.class.getName());
+
+    private ProjectFiles() {}
+
+    /**
+     * Подключить архив проекта. Ранее подключенный архив закрывается.
+     * Папка проекта запоминает архив, чтобы при следующем открытии проекта он подключился снова;
+     * список удаленных файлов сохраняется, только если папка уже была открыта поверх этого же архива
+     * @param projectArchive Архив (null - только отключить прежний)
+     * @throws IOException не удалось записать путь до архива в папку проекта
+     */
+    public static synchronized void mount(ProjectArchive projectArchive) throws IOException {
+        unmount();
+        if (projectArchive == null) {
+            return;
+        }
+        
+        try {
+            List<String> overlay = readOverlay();
+            String file = projectArchive.getFile().toAbsolutePath().toString();
+            if (!overlay.isEmpty() && overlay.get(0).equals(file)) {
+                DELETED.addAll(overlay.subList(1, overlay.size()));
+            } else {
+                writeOverlay(file);
+            }
+        } catch (IOException ex) {
+            projectArchive.close();
+            throw ex;
+        }
+        archive = projectArchive;
+    }
+
+    /**
+     * Отключить и закрыть архив проекта. Папка проекта продолжает помнить архив
+     */
+    public static synchronized void unmount() {
+        ProjectArchive previous = archive;
+        archive = null;
+        DELETED.clear();
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Открыть архив, поверх которого папка проекта была открыта в прошлый раз
+     * @return архив или null, если проект лежит только на диске
+     * @throws IOException архив пропал или не читается
+     */
+    public static ProjectArchive openLinked() throws IOException {
+        List<String> overlay = readOverlay();
+        return overlay.isEmpty() ? null : ProjectArchive.open(Paths.get(overlay.get(0)));
+    }
+
+    /**
+     * Прочитать файл наложения на архив
+     * @return путь до архива и удаленные пути или пустой список, если файла нет
+     * @throws IOException ошибка чтения
+     */
+    private static List<String> readOverlay() throws IOException {
+        Path file = Paths.get(OVERLAY_STRING);
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Записать файл наложения на архив: путь до архива и текущий список удаленных путей
+     * @param file Абсолютный путь до архива
+     * @throws IOException ошибка записи
+     */
+    private static void writeOverlay(String file) throws IOException {
+        FileSystemUtils.writeAtomic(Paths.get(OVERLAY_STRING), stream -> {
+            Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+            writer.write(file);
+            writer.write('\n');
+            for (String path : DELETED) {
+                writer.write(path);
+                writer.write('\n');
+            }
+            writer.flush();
+        });
+    }
+
+    /**
+     * Получить подключенный архив
+     * @return архив или null, если проект открыт с диска
+     */
+    public static ProjectArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Найти файл в архиве
+     * @param current Архив (может быть null)
+     * @param path Путь до файла
+     * @return запись архива или null
+     */
+    private static ProjectArchive.Entry findEntry(ProjectArchive current, Path path) {
+        if (current == null) {
+            return null;
+        }
+        String key = toKey(path);
+        return isDeleted(key) ? null : current.getEntry(key);
+    }
+
+    /**
+     * Получить путь файла в архиве
+     * @param path Путь до файла
+     * @return путь с разделителями "/" без завершающего "/"
+     */
+    private static String toKey(Path path) {
+        String key = path.toString().replace('\\', '/');
+        return key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+    }
+
+    /**
+     * Удален ли путь архива из проекта (сам или вместе с одной из папок, в которых лежит)
+     * @param path Путь в архиве
+     * @return true, если удален
+     */
+    static boolean isDeleted(String path) {
+        if (DELETED.isEmpty()) {
+            return false;
+        }
+        String key = path;
+        while (true) {
+            if (DELETED.contains(key)) {
+                return true;
+            }
+            int slash = key.lastIndexOf('/');
+            if (slash <= 0) {
+                return false;
+            }
+            key = key.substring(0, slash);
+        }
+    }
+
+    /**
+     * Есть ли папка в архиве (и не удалена ли она)
+     * @param current Архив (может быть null)
+     * @param key Путь в архиве
+     * @return true, если в архиве есть такая папка
+     */
+    private static boolean hasFolder(ProjectArchive current, String key) {
+        return (current != null && !isDeleted(key) && current.hasFolder(key));
+    }
+
+    /**
+     * Является ли путь папкой на диске или в архиве
+     * @param path Путь
+     * @return true, если это папка
+     */
+    public static boolean isDirectory(Path path) {
+        return Files.isDirectory(path) || hasFolder(archive, toKey(path));
+    }
+
+    /**
+     * Есть ли в проекте файл или папка - на диске или в архиве
+     * @param path Путь
+     * @return true, если есть
+     */
+    public static boolean contains(Path path) {
+        if (Files.exists(path)) {
+            return true;
+        }
+        ProjectArchive current = archive;
+        return (findEntry(current, path) != null || hasFolder(current, toKey(path)));
+    }
+
+    /**
+     * Получить содержимое папки - файлы и папки с диска и из архива
+     * @param folder Папка
+     * @return пути в порядке имен
+     * @throws IOException ошибка чтения папки на диске
+     */
+    public static List<Path> list(Path folder) throws IOException {
+        Set<String> names = new TreeSet<>();
+        if (Files.isDirectory(folder)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                for (Path path : stream) {
+                    names.add(path.getFileName().toString());
+                }
+            }
+        }
+        ProjectArchive current = archive;
+        String key = toKey(folder);
+        if (current != null && !isDeleted(key)) {
+            for (String name : current.list(key)) {
+                if (name.endsWith("/")) {
+                    name = name.substring(0, name.length() - 1);
+                }
+                if (!isDeleted(key + "/" + name)) {
+                    names.add(name);
+                }
+            }
+        }
+        
+        List<Path> paths = new ArrayList<>(names.size());
+        for (String name : names) {
+            paths.add(folder.resolve(name));
+        }
+        return paths;
+    }
+
+    /**
+     * Выложить на диск файлы архива: сам файл или все файлы папки, которых ещё нет на диске.
+     * Нужно перед операциями, работающими с файлами на диске напрямую (перенос, копирование, проигрывание звука).
+     * Время изменения сохраняется, чтобы манифест и индекс проекта остались верны
+     * @param path Путь до файла или папки
+     * @throws IOException ошибка чтения архива или записи на диск
+     */
+    public static void materialize(Path path) throws IOException {
+        ProjectArchive current = archive;
+        String key = toKey(path);
+        if (current == null || isDeleted(key)) {
+            return;
+        }
+        
+        List<ProjectArchive.Entry> entries = new ArrayList<>(current.getEntries(key));
+        ProjectArchive.Entry single = current.getEntry(key);
+        if (single != null) {
+            entries.add(single);
+        }
+        for (ProjectArchive.Entry entry : entries) {
+            Path file = Paths.get(entry.getPath());
+            if (Files.exists(file) || isDeleted(entry.getPath())) {
+                continue;
+            }
+            ByteBuffer data = current.read(entry);
+            FileSystemUtils.writeAtomic(file, stream -> {
+                WritableByteChannel channel = Channels.newChannel(stream);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            });
+            Files.setLastModifiedTime(file, entry.lastModifiedTime());
+        }
+    }
+
+    /**
+     * Отметить файл или папку удаленными из архива (с диска они удаляются отдельно).
+     * Пути, которых нет в архиве, не запоминаются
+     * @param path Путь до файла или папки
+     * @throws IOException не удалось записать список удаленных путей
+     */
+    public static void delete(Path path) throws IOException {
+        delete(Collections.singletonList(path));
+    }
+
+    /**
+     * Отметить файлы и папки удаленными из архива. Список удаленных записывается один раз
+     * @param paths Пути до файлов или папок
+     * @throws IOException не удалось записать список удаленных путей
+     */
+    public static synchronized void delete(Collection<Path> paths) throws IOException {
+        ProjectArchive current = archive;
+        if (current == null) {
+            return;
+        }
+        boolean changed = false;
+        for (Path path : paths) {
+            String key = toKey(path);
+            if (!isDeleted(key) && (current.getEntry(key) != null || current.hasFolder(key))) {
+                DELETED.add(key);
+                changed = true;
+            }
+        }
+        if (changed) {
+            writeOverlay(current.getFile().toAbsolutePath().toString());
+        }
+    }
+
+    /**
+     * Получить атрибуты файла одним обращением к диску (или к каталогу архива)
+     * @param path Путь до файла
+     * @return атрибуты или null, если файла нет или это не обычный файл
+     */
+    static BasicFileAttributes stat(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return attrs.isRegularFile() ? attrs : null;
+        } catch (IOException | RuntimeException ex) {
+            return findEntry(archive, path);
+        }
+    }
+
+    /**
+     * Существует ли файл на диске или в архиве
+     * @param path Путь до файла
+     * @return true, если файл есть
+     */
+    static boolean exists(Path path) {
+        return stat(path) != null;
+    }
+
+    /**
+     * Открыть поток чтения файла
+     * @param path Путь до файла
+     * @return поток
+     * @throws IOException файла нет или ошибка чтения
+     */
+    public static InputStream newInputStream(Path path) throws IOException {
+        if (Files.exists(path)) {
+            return Files.newInputStream(path);
+        }
+        ProjectArchive current = archive;
+        ProjectArchive.Entry entry = findEntry(current, path);
+        if (entry == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return current.newInputStream(entry);
+    }
+
+    /**
+     * Открыть текстовый файл для чтения
+     * @param path Путь до файла
+     * @param charset Кодировка
+     * @return буферизованный поток символов
+     * @throws IOException файла нет или ошибка чтения
+     */
+    static Reader newReader(Path path, Charset charset) throws IOException {
+        if (Files.exists(path)) {
+            return Files.newBufferedReader(path, charset);
+        }
+        return new InputStreamReader(newInputStream(path), charset);
+    }
+
+    /**
+     * Прочитать файл целиком
+     * @param path Путь до файла
+     * @return содержимое
+     * @throws IOException файла нет или ошибка чтения
+     */
+    static byte[] readAllBytes(Path path) throws IOException {
+        if (Files.exists(path)) {
+            return Files.readAllBytes(path);
+        }
+        ByteBuffer data = map(path);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Получить содержимое файла буфером только для чтения.
+     * Файл на диске отображается в память, несжатый файл архива - срез отображения архива
+     * @param path Путь до файла
+     * @return буфер с содержимым
+     * @throws IOException файла нет, он больше 2 Гб или ошибка чтения
+     */
+    static ByteBuffer map(Path path) throws IOException {
+        if (Files.exists(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("File is too large: " + path);
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        ProjectArchive current = archive;
+        ProjectArchive.Entry entry = findEntry(current, path);
+        if (entry == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return current.read(entry);
+    }
+}
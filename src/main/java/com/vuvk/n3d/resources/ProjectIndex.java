@@ -0,0 +1,552 @@
+/**
+    Binary project index (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.vuvk.n3d.Const;
+import com.vuvk.n3d.utils.FileSystemUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Двоичный индекс проекта (config/project.idx).
+ * В одном файле лежит всё, что иначе читается из четырёх конфигов .sav и из каждого файла
+ * материала и скайбокса: заголовок, пул строк и таблицы ресурсов по типам.
+ * Файл читается целиком и разбирается одним проходом, без JSON.
+ * Индекс необязателен и только дублирует JSON, который остается основным форматом проекта:
+ * индекс пишется после успешного сохранения проекта и используется, только если конфиги
+ * не менялись с момента его записи. Материал или скайбокс, чей файл изменился, создается заглушкой
+ * и читается из файла при первом обращении
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ProjectIndex {
+
+    /** идентификатор индекса */
+    static final String IDENTIFICATOR = "N3D_PROJECT_INDEX";
+    /** версия индекса */
+    static final int MAJOR = 0;
+    static final int MINOR = 1;
+    static final String VERSION = MAJOR + "." + MINOR;
+    /** Путь до индекса */
+    static final String INDEX_STRING = Const.CONFIG_STRING + "project.idx";
+
+    /** сигнатура файла - "N3DI" */
+    private static final int MAGIC = 0x4E334449;
+    /** конфиги, размер и время изменения которых запоминаются в заголовке */
+    private static final String[] CONFIGS = {
+        Texture.CONFIG_STRING,
+        Sound.CONFIG_STRING,
+        Material.CONFIG_STRING,
+        Skybox.CONFIG_STRING,
+        ConfigShards.ROOT_STRING
+    };
+    /** количество секций (пул строк и четыре таблицы) */
+    private static final int SECTIONS = 5;
+    /** размер заголовка: сигнатура, номера строк идентификатора и версии, состояние конфигов, смещения секций */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + CONFIGS.length * 16 + SECTIONS * 4;
+
+    private static final Logger LOG = Logger.getLogger(ProjectIndex.class.getName());
+
+    /**
+     * Запись индекса о ресурсе, который ссылается на текстуры (материал или скайбокс)
+     */
+    static class Record {
+        /** id и путь ресурса */
+        final ConfigCodec.Entry entry;
+        /** время изменения файла ресурса при записи индекса, -1 - неизвестно */
+        final long modified;
+        /** id текстур (кадров или сторон), -1 - нет текстуры */
+        final long[] textureIds;
+        /** совпадает ли файл ресурса с индексом (выясняется при загрузке) */
+        volatile boolean fresh;
+
+        Record(ConfigCodec.Entry entry, long modified, long[] textureIds) {
+            this.entry      = entry;
+            this.modified   = modified;
+            this.textureIds = textureIds;
+        }
+
+        /**
+         * Сравнить время изменения файла ресурса с запомненным в индексе,
+         * а при расхождении - содержимое с манифестом
+         * @return true, если файл не менялся и данные индекса можно использовать
+         */
+        boolean checkFresh() {
+            Path path = Paths.get(entry.path);
+            BasicFileAttributes attrs = ProjectFiles.stat(path);
+            // время могло измениться и без правки файла - тогда решает манифест
+            fresh = (modified != -1 &&
+                     attrs != null &&
+                     (attrs.lastModifiedTime().toMillis() == modified || ContentManifest.isUnchanged(path, attrs)));
+            return fresh;
+        }
+
+        /**
+         * Получить id используемых текстур.
+         * Если файл ресурса изменился, то ресурс создается заглушкой и текстур не ждет -
+         * тогда id текстур для индекса заглушек выбираются из самого файла
+         * @return список идентификаторов
+         */
+        List<Long> getTextureIds() {
+            if (!checkFresh()) {
+                StubIndex.scanEntry(entry);
+                return Collections.emptyList();
+            }
+
+            List<Long> ids = new ArrayList<>(textureIds.length);
+            for (long id : textureIds) {
+                if (id != -1) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Запись индекса о материале
+     */
+    static final class MaterialRecord extends Record {
+        /** тип материала */
+        final Material.Type type;
+        /** задержки кадров */
+        final double[] delays;
+
+        MaterialRecord(ConfigCodec.Entry entry, long modified, Material.Type type, long[] textureIds, double[] delays) {
+            super(entry, modified, textureIds);
+            this.type   = type;
+            this.delays = delays;
+        }
+    }
+
+    /** записи конфига текстур */
+    private final List<ConfigCodec.Entry> textures = new ArrayList<>();
+    /** записи конфига звуков */
+    private final List<ConfigCodec.Entry> sounds = new ArrayList<>();
+    /** материалы вместе с содержимым их файлов */
+    private final List<MaterialRecord> materials = new ArrayList<>();
+    /** скайбоксы вместе с содержимым их файлов */
+    private final List<Record> skyboxes = new ArrayList<>();
+
+    private ProjectIndex() {}
+
+    /**
+     * Прочитать индекс проекта
+     * @return индекс или null, если его нет, он испорчен или устарел (тогда проект читается из JSON)
+     */
+    static ProjectIndex read() {
+        Path file = Paths.get(INDEX_STRING);
+        if (!ProjectFiles.exists(file)) {
+            return null;
+        }
+
+        try {
+            // читаем в кучу, а не отображаем: отображение держит файл открытым до сборки мусора,
+            // и под Windows индекс потом нельзя перезаписать или удалить
+            ByteBuffer buffer = ByteBuffer.wrap(ProjectFiles.readAllBytes(file));
+            if (buffer.remaining() < HEADER_SIZE) {
+                return null;
+            }
+            return parse(buffer);
+        } catch (IOException | RuntimeException ex) {
+            // индекс - лишь копия JSON, поэтому ошибку только логируем
+            LOG.log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Разобрать прочитанный индекс
+     * @param buffer Содержимое файла
+     * @return индекс или null, если он не подходит
+     */
+    private static ProjectIndex parse(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        int identificator = buffer.getInt();
+        int version       = buffer.getInt();
+
+        // конфиги изменены после записи индекса - индекс устарел (просто пересохраненный конфиг проверяется по манифесту)
+        for (String config : CONFIGS) {
+            long size     = buffer.getLong();
+            long modified = buffer.getLong();
+            Path path = Paths.get(config);
+            long[] stamp = getStamp(path);
+            if (stamp[0] != size || 
+                (stamp[1] != modified && !ContentManifest.isUnchanged(path, ProjectFiles.stat(path)))) {
+                return null;
+            }
+        }
+
+        int[] offsets = new int[SECTIONS];
+        for (int i = 0; i < SECTIONS; ++i) {
+            offsets[i] = buffer.getInt();
+        }
+
+        // пул строк
+        buffer.position(offsets[0]);
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; ++i) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        if (!Resource.checkConfig(strings[identificator], strings[version], IDENTIFICATOR, Double.parseDouble(VERSION))) {
+            return null;
+        }
+
+        ProjectIndex index = new ProjectIndex();
+
+        // текстуры
+        buffer.position(offsets[1]);
+        for (int i = buffer.getInt(); i > 0; --i) {
+            index.textures.add(readEntry(buffer, strings));
+        }
+
+        // звуки
+        buffer.position(offsets[2]);
+        for (int i = buffer.getInt(); i > 0; --i) {
+            ConfigCodec.Entry entry = readEntry(buffer, strings);
+            entry.isMusic = (buffer.get() != 0);
+            index.sounds.add(entry);
+        }
+
+        // материалы
+        Material.Type[] types = Material.Type.values();
+        buffer.position(offsets[3]);
+        for (int i = buffer.getInt(); i > 0; --i) {
+            ConfigCodec.Entry entry = readEntry(buffer, strings);
+            long modified = buffer.getLong();
+            Material.Type type = types[buffer.get()];
+
+            int framesCount = buffer.getInt();
+            long[] textureIds = new long[framesCount];
+            double[] delays = new double[framesCount];
+            for (int f = 0; f < framesCount; ++f) {
+                textureIds[f] = buffer.getLong();
+                delays[f]     = buffer.getDouble();
+            }
+
+            index.materials.add(new MaterialRecord(entry, modified, type, textureIds, delays));
+        }
+
+        // скайбоксы
+        buffer.position(offsets[4]);
+        for (int i = buffer.getInt(); i > 0; --i) {
+            ConfigCodec.Entry entry = readEntry(buffer, strings);
+            long modified = buffer.getLong();
+
+            long[] textureIds = new long[Skybox.Side.values().length];
+            for (int s = 0; s < textureIds.length; ++s) {
+                textureIds[s] = buffer.getLong();
+            }
+
+            index.skyboxes.add(new Record(entry, modified, textureIds));
+        }
+
+        return index;
+    }
+
+    /**
+     * Прочитать id и путь ресурса
+     * @param buffer Содержимое файла
+     * @param strings Пул строк
+     * @return запись
+     */
+    private static ConfigCodec.Entry readEntry(ByteBuffer buffer, String[] strings) {
+        ConfigCodec.Entry entry = new ConfigCodec.Entry();
+        entry.id   = buffer.getLong();
+        entry.path = strings[buffer.getInt()];
+        return entry;
+    }
+
+    /**
+     * Получить размер и время изменения файла
+     * @param path Путь до файла
+     * @return массив из размера и времени изменения, -1 - файла нет
+     */
+    private static long[] getStamp(Path path) {
+        BasicFileAttributes attrs = ProjectFiles.stat(path);
+        if (attrs == null) {
+            return new long[] { -1, -1 };
+        }
+        return new long[] { attrs.size(), attrs.lastModifiedTime().toMillis() };
+    }
+
+    /**
+     * Получить время изменения файла ресурса, если ресурс сохранен
+     * @param res Ресурс
+     * @return время изменения или -1, если файл не совпадает с ресурсом
+     */
+    private static long getModified(Resource res) {
+        if (res.isDirty()) {
+            return -1;
+        }
+        return getStamp(Paths.get(res.getPath()))[1];
+    }
+
+    /**
+     * Передать обработчику записи конфига текстур (как при чтении конфига)
+     * @param handler Обработчик записей
+     * @return количество записей
+     */
+    int readTextures(ConfigCodec.EntryHandler handler) {
+        textures.forEach(handler::handle);
+        return textures.size();
+    }
+
+    /**
+     * Передать обработчику записи конфига звуков (как при чтении конфига)
+     * @param handler Обработчик записей
+     * @return количество записей
+     */
+    int readSounds(ConfigCodec.EntryHandler handler) {
+        sounds.forEach(handler::handle);
+        return sounds.size();
+    }
+
+    /**
+     * Получить записи о материалах
+     * @return список записей в порядке конфига
+     */
+    List<MaterialRecord> getMaterials() {
+        return materials;
+    }
+
+    /**
+     * Получить записи о скайбоксах
+     * @return список записей в порядке конфига
+     */
+    List<Record> getSkyboxes() {
+        return skyboxes;
+    }
+
+    /**
+     * Создать материал по записи индекса. Текстуры материала уже должны быть загружены.
+     * Если файл материала изменился, то создается заглушка
+     * @param record Запись индекса
+     */
+    static void loadMaterial(MaterialRecord record) {
+        Path path = Paths.get(record.entry.path);
+        if (!record.fresh) {
+            Material.loadEntry(record.entry);
+            return;
+        }
+
+        boolean lostTextures = false;
+        List<Material.Frame> frames = new ArrayList<>(record.textureIds.length);
+        for (int i = 0; i < record.textureIds.length; ++i) {
+            long id = record.textureIds[i];
+            Texture txr = (Texture) Resource.getById(id, Resource.Type.TEXTURE);
+            if (txr == null && id != -1) {
+                lostTextures = true;
+            }
+            frames.add(new Material.Frame(txr, record.delays[i]));
+        }
+
+        Material mat = new Material(path, record.entry.id, record.type, frames);
+        // ссылки на пропавшие текстуры при сохранении обнулятся - файл нужно переписать
+        if (lostTextures) {
+            mat.markDirty();
+        }
+    }
+
+    /**
+     * Создать скайбокс по записи индекса. Текстуры скайбокса уже должны быть загружены.
+     * Если файл скайбокса изменился, то создается заглушка
+     * @param record Запись индекса
+     */
+    static void loadSkybox(Record record) {
+        Path path = Paths.get(record.entry.path);
+        if (!record.fresh) {
+            Skybox.loadEntry(record.entry);
+            return;
+        }
+
+        boolean lostTextures = false;
+        Texture[] sides = new Texture[record.textureIds.length];
+        for (int i = 0; i < sides.length; ++i) {
+            long id = record.textureIds[i];
+            sides[i] = (Texture) Resource.getById(id, Resource.Type.TEXTURE);
+            if (sides[i] == null && id != -1) {
+                lostTextures = true;
+            }
+        }
+
+        Skybox sky = new Skybox(path, record.entry.id, sides);
+        // ссылки на пропавшие текстуры при сохранении обнулятся - файл нужно переписать
+        if (lostTextures) {
+            sky.markDirty();
+        }
+    }
+
+    /**
+     * Записать индекс по текущему состоянию хранилищ.
+     * Вызывать только сразу после успешного сохранения конфигов и файлов ресурсов,
+     * иначе индекс разойдется с ними
+     * @return true в случае успеха
+     */
+    public static boolean save() {
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> stringNums = new HashMap<>();
+        ByteArrayOutputStream[] sections = new ByteArrayOutputStream[SECTIONS];
+        for (int i = 0; i < SECTIONS; ++i) {
+            sections[i] = new ByteArrayOutputStream();
+        }
+
+        try {
+            int identificator = addString(IDENTIFICATOR, strings, stringNums);
+            int version       = addString(VERSION, strings, stringNums);
+
+            // текстуры
+            List<Texture> txrs = Texture.TEXTURES.snapshot();
+            DataOutputStream out = new DataOutputStream(sections[1]);
+            out.writeInt(txrs.size());
+            for (Texture txr : txrs) {
+                out.writeLong(txr.getId());
+                out.writeInt(addString(txr.getPath(), strings, stringNums));
+            }
+
+            // звуки
+            List<Sound> snds = Sound.SOUNDS.snapshot();
+            out = new DataOutputStream(sections[2]);
+            out.writeInt(snds.size());
+            for (Sound snd : snds) {
+                out.writeLong(snd.getId());
+                out.writeInt(addString(snd.getPath(), strings, stringNums));
+                out.writeByte(snd.isMusic() ? 1 : 0);
+            }
+
+            // материалы
+            List<Material> mats = Material.MATERIALS.snapshot();
+            out = new DataOutputStream(sections[3]);
+            out.writeInt(mats.size());
+            for (Material mat : mats) {
+                synchronized (mat) {
+                    out.writeLong(mat.getId());
+                    out.writeInt(addString(mat.getPath(), strings, stringNums));
+                    out.writeLong(getModified(mat));
+                    out.writeByte(mat.getType().ordinal());
+
+                    int framesCount = mat.getFramesCount();
+                    out.writeInt(framesCount);
+                    for (int i = 0; i < framesCount; ++i) {
+                        Material.Frame frm = mat.getFrame(i);
+                        Texture txr = frm.getTexture();
+                        out.writeLong((txr != null) ? txr.getId() : -1);
+                        out.writeDouble(frm.getDelay());
+                    }
+                }
+            }
+
+            // скайбоксы
+            List<Skybox> skies = Skybox.SKYBOXES.snapshot();
+            out = new DataOutputStream(sections[4]);
+            out.writeInt(skies.size());
+            for (Skybox sky : skies) {
+                out.writeLong(sky.getId());
+                out.writeInt(addString(sky.getPath(), strings, stringNums));
+                out.writeLong(getModified(sky));
+                for (Skybox.Side side : Skybox.Side.values()) {
+                    Texture txr = sky.getTexture(side);
+                    out.writeLong((txr != null) ? txr.getId() : -1);
+                }
+            }
+
+            // пул строк собирается последним - в него попали все пути
+            out = new DataOutputStream(sections[0]);
+            out.writeInt(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            FileSystemUtils.writeAtomic(Paths.get(INDEX_STRING), stream -> {
+                DataOutputStream file = new DataOutputStream(stream);
+                file.writeInt(MAGIC);
+                file.writeInt(identificator);
+                file.writeInt(version);
+                for (String config : CONFIGS) {
+                    long[] stamp = getStamp(Paths.get(config));
+                    file.writeLong(stamp[0]);
+                    file.writeLong(stamp[1]);
+                }
+
+                int offset = HEADER_SIZE;
+                for (ByteArrayOutputStream section : sections) {
+                    file.writeInt(offset);
+                    offset += section.size();
+                }
+                for (ByteArrayOutputStream section : sections) {
+                    section.writeTo(file);
+                }
+                file.flush();
+            });
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            delete();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Добавить строку в пул
+     * @param string Строка
+     * @param strings Пул строк
+     * @param stringNums Номера уже добавленных строк
+     * @return номер строки в пуле
+     */
+    private static int addString(String string, List<String> strings, Map<String, Integer> stringNums) {
+        Integer num = stringNums.get(string);
+        if (num == null) {
+            num = strings.size();
+            strings.add(string);
+            stringNums.put(string, num);
+        }
+        return num;
+    }
+
+    /**
+     * Удалить индекс (например, если проект сохранен не полностью и индекс разошелся бы с JSON)
+     */
+    public static void delete() {
+        try {
+            Files.deleteIfExists(Paths.get(INDEX_STRING));
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+    }
+}
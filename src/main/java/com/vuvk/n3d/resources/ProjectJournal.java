@@ -0,0 +1,757 @@
+/**
+    Journal of project changes (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.vuvk.n3d.Const;
+import com.vuvk.n3d.utils.FileSystemUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал изменений проекта (config/journal.log).
+ * Пока проект открыт, каждое изменение хранилищ (создание, удаление и перенос ресурса,
+ * перенос папки, правка кадров материала, смена текстуры стороны скайбокса, признак музыки)
+ * дописывается в конец журнала компактной записью. После успешного сохранения проекта
+ * в журнал ставится отметка сохранения - всё, что до нее, уже есть в конфигах и файлах ресурсов.
+ * Записи после последней отметки - несохраненные изменения: если редактор завершился аварийно,
+ * их можно повторить поверх сохраненного проекта при следующем открытии.
+ * Уже сохраненная часть журнала периодически отбрасывается в фоновом потоке.
+ * Каждая запись: длина, тело (вид, время, данные) и CRC32 тела - оборванный хвост отбрасывается
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ProjectJournal {
+
+    /**
+     * Вид записи журнала
+     */
+    public static enum Kind {
+        /** ресурс добавлен */
+        ADDED,
+        /** ресурс удален */
+        REMOVED,
+        /** ресурс перенесен или переименован */
+        MOVED,
+        /** папка перенесена или переименована целиком */
+        FOLDER_MOVED,
+        /** изменены тип или кадры материала */
+        MATERIAL,
+        /** изменены текстуры сторон скайбокса */
+        SKYBOX,
+        /** изменен признак фоновой музыки у звука */
+        SOUND,
+        /** проект сохранен */
+        SAVED
+    }
+
+    /**
+     * Прочитанная запись журнала
+     */
+    public static final class Change {
+        /** вид записи */
+        private final Kind kind;
+        /** время изменения (мс) */
+        private final long time;
+        /** тип ресурса (для записей о ресурсах) */
+        private Resource.Type type;
+        /** id ресурса */
+        private long id;
+        /** новый путь ресурса или папки */
+        private String path;
+        /** прежний путь папки */
+        private String oldPath;
+        /** тип материала */
+        private Material.Type materialType;
+        /** id текстур кадров или сторон, -1 - нет текстуры */
+        private long[] textureIds;
+        /** задержки кадров */
+        private double[] delays;
+        /** признак фоновой музыки */
+        private boolean music;
+
+        private Change(Kind kind, long time) {
+            this.kind = kind;
+            this.time = time;
+        }
+
+        /**
+         * Получить вид записи
+         * @return вид записи
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Получить время изменения
+         * @return время в мс
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Получить тип измененного ресурса
+         * @return тип или null для записей не о ресурсе
+         */
+        public Resource.Type getType() {
+            return type;
+        }
+
+        /**
+         * Получить id измененного ресурса
+         * @return идентификатор
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Получить новый путь ресурса или папки
+         * @return путь или null
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Получить прежний путь папки
+         * @return путь или null
+         */
+        public String getOldPath() {
+            return oldPath;
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case FOLDER_MOVED:
+                    return kind + " " + oldPath + " -> " + path;
+                case SAVED:
+                    return kind.toString();
+                default:
+                    return kind + " " + type + " " + id + ((path != null) ? " " + path : "");
+            }
+        }
+    }
+
+    /** Путь до журнала */
+    static final String JOURNAL_STRING = Const.CONFIG_STRING + "journal.log";
+    /** период проверки журнала фоновым потоком (сек) */
+    private static final long COMPACT_PERIOD = 30;
+    /** размер журнала, начиная с которого сохраненная часть отбрасывается */
+    private static final long COMPACT_SIZE = 64 * 1024;
+
+    private static final Logger LOG = Logger.getLogger(ProjectJournal.class.getName());
+
+    /** блокировка журнала */
+    private static final Object LOCK = new Object();
+    /** открытый на запись журнал, null - журнал не ведется */
+    private static FileChannel channel = null;
+    /** конец последней отметки сохранения в файле, 0 - отметок нет */
+    private static long savedEnd = 0;
+    /** фоновое сжатие журнала */
+    private static ScheduledExecutorService compactor = null;
+    /** идет ли запись изменений. Пока загружается или восстанавливается проект - нет */
+    private static volatile boolean recording = false;
+
+    /**
+     * Начать вести журнал открытого проекта.
+     * Вызывать после загрузки проекта (и восстановления изменений, если оно нужно)
+     */
+    public static void start() {
+        synchronized (LOCK) {
+            if (channel != null) {
+                return;
+            }
+            try {
+                Path file = Paths.get(JOURNAL_STRING);
+                // оборванную последнюю запись отрезаем, чтобы новые не оказались за ней
+                long[] lastSaved = { 0 };
+                long validEnd = scan(file, null, lastSaved);
+                savedEnd = lastSaved[0];
+                channel = FileChannel.open(file,
+                                           StandardOpenOption.CREATE,
+                                           StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE);
+                channel.truncate(validEnd);
+                channel.position(validEnd);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+                channel = null;
+                return;
+            }
+
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(ProjectJournal::compact, COMPACT_PERIOD, COMPACT_PERIOD, TimeUnit.SECONDS);
+            recording = true;
+        }
+    }
+
+    /**
+     * Перестать вести журнал (проект закрывается)
+     */
+    public static void stop() {
+        synchronized (LOCK) {
+            recording = false;
+            if (compactor != null) {
+                compactor.shutdownNow();
+                compactor = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    LOG.log(Level.SEVERE, null, ex);
+                }
+                channel = null;
+            }
+            savedEnd = 0;
+        }
+    }
+
+    /**
+     * Отметить в журнале, что проект полностью сохранен
+     */
+    public static void saved() {
+        synchronized (LOCK) {
+            if (append(Kind.SAVED, null) && channel != null) {
+                try {
+                    savedEnd = channel.position();
+                } catch (IOException ex) {
+                    LOG.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Есть ли в журнале несохраненные изменения (после последней отметки сохранения)
+     * @return true, если есть
+     */
+    public static boolean hasUnsavedChanges() {
+        return !readUnsaved().isEmpty();
+    }
+
+    /**
+     * Отбросить несохраненные изменения из журнала (проект закрывается без сохранения)
+     */
+    public static void discard() {
+        synchronized (LOCK) {
+            Path file = Paths.get(JOURNAL_STRING);
+            try {
+                if (channel != null) {
+                    channel.truncate(savedEnd);
+                    channel.position(savedEnd);
+                } else if (Files.exists(file)) {
+                    long[] lastSaved = { 0 };
+                    scan(file, null, lastSaved);
+                    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        ch.truncate(lastSaved[0]);
+                    }
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Повторить несохраненные изменения из журнала поверх загруженного проекта.
+     * Вызывать до start() - повторенные изменения не записываются в журнал заново
+     * @return количество повторенных записей
+     */
+    public static int replay() {
+        List<Change> changes = readUnsaved();
+        for (Change change : changes) {
+            try {
+                apply(change);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+        return changes.size();
+    }
+
+    /**
+     * Прочитать всю историю изменений, сохраненную в журнале
+     * @return записи в порядке изменений
+     */
+    public static List<Change> readHistory() {
+        List<Change> changes = new ArrayList<>();
+        synchronized (LOCK) {
+            try {
+                scan(Paths.get(JOURNAL_STRING), changes::add);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Прочитать записи после последней отметки сохранения
+     * @return несохраненные изменения
+     */
+    private static List<Change> readUnsaved() {
+        List<Change> changes = readHistory();
+        for (int i = changes.size() - 1; i >= 0; --i) {
+            if (changes.get(i).kind == Kind.SAVED) {
+                return new ArrayList<>(changes.subList(i + 1, changes.size()));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Отметить добавление ресурса в хранилище
+     * @param res Ресурс
+     */
+    static void added(Resource res) {
+        if (recording) {
+            append(Kind.ADDED, out -> {
+                writeResource(out, res);
+                writeString(out, res.getPath());
+            });
+        }
+    }
+
+    /**
+     * Отметить удаление ресурса из хранилища
+     * @param res Ресурс
+     */
+    static void removed(Resource res) {
+        if (recording) {
+            append(Kind.REMOVED, out -> writeResource(out, res));
+        }
+    }
+
+    /**
+     * Отметить смену пути ресурса
+     * @param res Ресурс
+     */
+    static void moved(Resource res) {
+        if (recording) {
+            append(Kind.MOVED, out -> {
+                writeResource(out, res);
+                writeString(out, res.getPath());
+            });
+        }
+    }
+
+    /**
+     * Отметить перенос папки целиком
+     * @param oldFolder Прежний путь папки
+     * @param newFolder Новый путь папки
+     */
+    static void folderMoved(String oldFolder, String newFolder) {
+        if (recording) {
+            append(Kind.FOLDER_MOVED, out -> {
+                writeString(out, oldFolder);
+                writeString(out, newFolder);
+            });
+        }
+    }
+
+    /**
+     * Отметить изменение данных ресурса (кадры материала, стороны скайбокса, признак музыки).
+     * В журнал пишется полное состояние ресурса, поэтому повтор записи не зависит от предыдущих правок
+     * @param res Ресурс
+     */
+    static void changed(Resource res) {
+        if (!recording || !res.getContainer().contains(res)) {
+            return;
+        }
+
+        if (res instanceof Material) {
+            Material mat = (Material) res;
+            synchronized (mat) {
+                append(Kind.MATERIAL, out -> {
+                    out.writeLong(mat.getId());
+                    out.writeByte(mat.getType().ordinal());
+                    int framesCount = mat.getFramesCount();
+                    out.writeInt(framesCount);
+                    for (int i = 0; i < framesCount; ++i) {
+                        Material.Frame frm = mat.getFrame(i);
+                        Texture txr = frm.getTexture();
+                        out.writeLong((txr != null) ? txr.getId() : -1);
+                        out.writeDouble(frm.getDelay());
+                    }
+                });
+            }
+        } else if (res instanceof Skybox) {
+            Skybox sky = (Skybox) res;
+            append(Kind.SKYBOX, out -> {
+                out.writeLong(sky.getId());
+                for (Skybox.Side side : Skybox.Side.values()) {
+                    Texture txr = sky.getTexture(side);
+                    out.writeLong((txr != null) ? txr.getId() : -1);
+                }
+            });
+        } else if (res instanceof Sound) {
+            Sound snd = (Sound) res;
+            append(Kind.SOUND, out -> {
+                out.writeLong(snd.getId());
+                out.writeByte(snd.isMusic() ? 1 : 0);
+            });
+        }
+    }
+
+    /**
+     * Записать тип и id ресурса
+     * @param out Поток записи
+     * @param res Ресурс
+     * @throws IOException ошибка записи
+     */
+    private static void writeResource(DataOutputStream out, Resource res) throws IOException {
+        out.writeByte(res.getResourceType().ordinal());
+        out.writeLong(res.getId());
+    }
+
+    /**
+     * Записать строку в UTF-8 с длиной
+     * @param out Поток записи
+     * @param string Строка
+     * @throws IOException ошибка записи
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Прочитать строку в UTF-8 с длиной
+     * @param in Тело записи
+     * @return строка
+     */
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Запись данных в тело записи журнала
+     */
+    private interface BodyWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Дописать запись в конец журнала
+     * @param kind Вид записи
+     * @param body Запись данных или null
+     * @return true, если запись добавлена
+     */
+    private static boolean append(Kind kind, BodyWriter body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            // место под длину
+            out.writeInt(0);
+            out.writeByte(kind.ordinal());
+            out.writeLong(System.currentTimeMillis());
+            if (body != null) {
+                body.write(out);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return false;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(bytes.size() + 4);
+        record.put(bytes.toByteArray());
+        int length = record.position() - 4;
+        record.putInt(0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        synchronized (LOCK) {
+            if (channel == null) {
+                return false;
+            }
+            try {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Обработчик прочитанных записей
+     */
+    private interface ChangeHandler {
+        void handle(Change change);
+    }
+
+    /**
+     * Прочитать журнал (вызывать под блокировкой)
+     * @param file Путь до журнала
+     * @param handler Обработчик записей или null
+     * @return конец последней целой записи
+     * @throws IOException ошибка чтения
+     */
+    private static long scan(Path file, ChangeHandler handler) throws IOException {
+        return scan(file, handler, new long[1]);
+    }
+
+    /**
+     * Прочитать журнал (вызывать под блокировкой)
+     * @param file Путь до журнала
+     * @param handler Обработчик записей или null
+     * @param lastSaved сюда записывается конец последней отметки сохранения
+     * @return конец последней целой записи
+     * @throws IOException ошибка чтения
+     */
+    private static long scan(Path file, ChangeHandler handler, long[] lastSaved) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        CRC32 crc = new CRC32();
+        long validEnd = 0;
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < 9 || length > buffer.remaining() - 4) {
+                break;
+            }
+
+            crc.reset();
+            crc.update(buffer.array(), start + 4, length);
+            if (buffer.getInt(start + 4 + length) != (int) crc.getValue()) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.wrap(buffer.array(), start + 4, length);
+            buffer.position(start + 8 + length);
+            Change change;
+            try {
+                change = readChange(body);
+            } catch (RuntimeException ex) {
+                break;
+            }
+            validEnd = buffer.position();
+            if (change.kind == Kind.SAVED) {
+                lastSaved[0] = validEnd;
+            }
+            if (handler != null) {
+                handler.handle(change);
+            }
+        }
+        return validEnd;
+    }
+
+    /**
+     * Разобрать тело записи
+     * @param in Тело записи
+     * @return запись
+     */
+    private static Change readChange(ByteBuffer in) {
+        Change change = new Change(Kind.values()[in.get()], in.getLong());
+        switch (change.kind) {
+            case ADDED:
+            case MOVED:
+                change.type = Resource.Type.values()[in.get()];
+                change.id   = in.getLong();
+                change.path = readString(in);
+                break;
+
+            case REMOVED:
+                change.type = Resource.Type.values()[in.get()];
+                change.id   = in.getLong();
+                break;
+
+            case FOLDER_MOVED:
+                change.oldPath = readString(in);
+                change.path    = readString(in);
+                break;
+
+            case MATERIAL:
+                change.type = Resource.Type.MATERIAL;
+                change.id   = in.getLong();
+                change.materialType = Material.Type.values()[in.get()];
+                int framesCount = in.getInt();
+                change.textureIds = new long[framesCount];
+                change.delays     = new double[framesCount];
+                for (int i = 0; i < framesCount; ++i) {
+                    change.textureIds[i] = in.getLong();
+                    change.delays[i]     = in.getDouble();
+                }
+                break;
+
+            case SKYBOX:
+                change.type = Resource.Type.SKYBOX;
+                change.id   = in.getLong();
+                change.textureIds = new long[Skybox.Side.values().length];
+                for (int i = 0; i < change.textureIds.length; ++i) {
+                    change.textureIds[i] = in.getLong();
+                }
+                break;
+
+            case SOUND:
+                change.type  = Resource.Type.SOUND;
+                change.id    = in.getLong();
+                change.music = (in.get() != 0);
+                break;
+
+            case SAVED:
+                break;
+        }
+        return change;
+    }
+
+    /**
+     * Повторить изменение поверх текущего состояния хранилищ
+     * @param change Запись журнала
+     */
+    private static void apply(Change change) {
+        Resource res = (change.type != null) ? Resource.getById(change.id, change.type) : null;
+
+        switch (change.kind) {
+            case ADDED:
+                if (res == null) {
+                    ConfigCodec.Entry entry = new ConfigCodec.Entry();
+                    entry.id   = change.id;
+                    entry.path = change.path;
+                    switch (change.type) {
+                        case TEXTURE:  Texture.loadEntry(entry);  break;
+                        case MATERIAL: Material.loadEntry(entry); break;
+                        case SOUND:    Sound.loadEntry(entry);    break;
+                        case SKYBOX:   Skybox.loadEntry(entry);   break;
+                    }
+                }
+                break;
+
+            case REMOVED:
+                if (res != null) {
+                    res.dispose();
+                }
+                break;
+
+            case MOVED:
+                if (res != null) {
+                    res.setPath(change.path);
+                }
+                break;
+
+            case FOLDER_MOVED:
+                if (!Resource.moveFolder(change.oldPath, change.path)) {
+                    for (Resource inner : Resource.getByPathPrefix(change.oldPath)) {
+                        inner.setPath(change.path + inner.getPath().substring(change.oldPath.length()));
+                    }
+                }
+                break;
+
+            case MATERIAL:
+                if (res != null) {
+                    Material mat = (Material) res;
+                    synchronized (mat) {
+                        mat.setType(change.materialType);
+                        mat.clearFrames();
+                        for (int i = 0; i < change.textureIds.length; ++i) {
+                            Texture txr = (Texture) Resource.getById(change.textureIds[i], Resource.Type.TEXTURE);
+                            mat.pushFrame(new Material.Frame(txr, change.delays[i]));
+                        }
+                    }
+                }
+                break;
+
+            case SKYBOX:
+                if (res != null) {
+                    Skybox sky = (Skybox) res;
+                    for (Skybox.Side side : Skybox.Side.values()) {
+                        Texture txr = (Texture) Resource.getById(change.textureIds[side.getNum()], Resource.Type.TEXTURE);
+                        sky.setTexture(txr, side);
+                    }
+                }
+                break;
+
+            case SOUND:
+                if (res != null) {
+                    ((Sound) res).setMusic(change.music);
+                }
+                break;
+
+            case SAVED:
+                break;
+        }
+    }
+
+    /**
+     * Отбросить уже сохраненную часть журнала, если журнал разросся.
+     * Выполняется в фоновом потоке; несохраненный хвост переносится в новый файл
+     */
+    private static void compact() {
+        synchronized (LOCK) {
+            try {
+                if (channel == null || savedEnd == 0 || channel.size() < COMPACT_SIZE) {
+                    return;
+                }
+
+                ByteBuffer tail = ByteBuffer.allocate((int) (channel.size() - savedEnd));
+                channel.read(tail, savedEnd);
+                tail.flip();
+
+                channel.close();
+                channel = null;
+                Path file = Paths.get(JOURNAL_STRING);
+                FileSystemUtils.writeAtomic(file, out -> out.write(tail.array(), 0, tail.limit()));
+
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                savedEnd = 0;
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+                // журнал недоступен - дальше не пишем, проект сохраняется как обычно
+                recording = false;
+            }
+        }
+    }
+
+    private ProjectJournal() {}
+}
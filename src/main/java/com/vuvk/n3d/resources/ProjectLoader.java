@@ -0,0 +1,337 @@
+/**
+    Parallel loader of project resources (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.vuvk.n3d.utils.FileSystemUtils;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Параллельная загрузка ресурсов проекта.
+ * Текстуры регистрируются без декодирования - изображения читаются в фоне при первом обращении,
+ * звуки загружаются одновременно с ними.
+ * Материалы и скайбоксы из конфигов регистрируются заглушками, а их файлы читаются при первом обращении
+ * или фоновым прогревом; из индекса проекта они создаются целиком, как только готовы их текстуры.
+ * Ресурсы каждого типа регистрируются в порядке конфига, поэтому порядок списков не зависит от потоков.
+ * Наличие файлов проверяется в пуле одним обращением к диску на файл, а манифест содержимого
+ * подсказывает, какие файлы не менялись с прошлого сохранения
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ProjectLoader {
+    
+    /**
+     * Чтение конфига ресурсов одного типа
+     */
+    private interface ConfigReader {
+        int read(ConfigCodec.EntryHandler handler);
+    }
+    
+    /** поколение фонового прогрева заглушек - меняется при открытии и закрытии проекта */
+    private static final AtomicInteger WARM_UP_GENERATION = new AtomicInteger();
+    /** количество рабочих потоков */
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    
+    private static final Logger LOG = Logger.getLogger(ProjectLoader.class.getName());
+    
+    /** пул рабочих потоков загрузки */
+    private final ExecutorService pool;
+    /** регистрация текстур по id. Заполняется при чтении конфига текстур, до загрузки материалов и скайбоксов */
+    private final Map<Long, CompletableFuture<Void>> textures = new ConcurrentHashMap<>();
+    
+    /**
+     * Начать загрузку ресурсов проекта. Ранее загруженные ресурсы удаляются сразу.
+     * Если папка проекта была открыта поверх архива, то архив подключается снова
+     * @return future, завершающийся после регистрации всех ресурсов (в рабочем потоке)
+     */
+    public static CompletableFuture<Void> open() {
+        ProjectArchive linked;
+        try {
+            linked = ProjectFiles.openLinked();
+        } catch (IOException ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        return open(linked);
+    }
+    
+    /**
+     * Начать загрузку проекта из архива, не распаковывая его.
+     * Файлы, которые есть в папке проекта на диске, перекрывают файлы архива
+     * @param archive Открытый архив проекта (null - проект только на диске)
+     * @return future, завершающийся после регистрации всех ресурсов (в рабочем потоке)
+     */
+    public static CompletableFuture<Void> open(ProjectArchive archive) {
+        stopWarmUp();
+        Texture.closeAll();
+        Material.closeAll();
+        Sound.closeAll();
+        Skybox.closeAll();
+        try {
+            ProjectFiles.mount(archive);
+        } catch (IOException ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        
+        AtomicInteger threadNum = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "project-loader-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        CompletableFuture<Void> result = new ProjectLoader(pool).start();
+        result.whenComplete((v, ex) -> pool.shutdown());
+        return result;
+    }
+    
+    /**
+     * Запустить фоновый прогрев: прочитать файлы материалов и скайбоксов, оставшихся заглушками.
+     * Поток с низшим приоритетом читает по одному файлу и прекращает работу при закрытии проекта
+     */
+    public static void warmUp() {
+        int generation = WARM_UP_GENERATION.incrementAndGet();
+        Thread thread = new Thread(() -> {
+            for (Material mat : Material.MATERIALS) {
+                if (WARM_UP_GENERATION.get() != generation) {
+                    return;
+                }
+                mat.ensureLoaded();
+                Thread.yield();
+            }
+            for (Skybox sky : Skybox.SKYBOXES) {
+                if (WARM_UP_GENERATION.get() != generation) {
+                    return;
+                }
+                sky.ensureLoaded();
+                Thread.yield();
+            }
+        }, "project-warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+    
+    /**
+     * Остановить фоновый прогрев (проект закрывается или открывается заново)
+     */
+    public static void stopWarmUp() {
+        WARM_UP_GENERATION.incrementAndGet();
+    }
+    
+    private ProjectLoader(ExecutorService pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * Запустить загрузку всех типов ресурсов.
+     * Если есть актуальный двоичный индекс проекта, то ресурсы берутся из него, иначе - из JSON
+     * @return future окончания загрузки
+     */
+    private CompletableFuture<Void> start() {
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    // манифест нужен уже для проверки индекса
+                    ContentManifest.load();
+                    return ProjectIndex.read();
+                }, pool)
+                .thenComposeAsync(index -> (index != null) ? loadIndexed(index) : loadConfigs(), pool);
+    }
+    
+    /**
+     * Загрузить ресурсы по конфигам .sav и файлам материалов и скайбоксов
+     * @return future окончания загрузки
+     */
+    private CompletableFuture<Void> loadConfigs() {
+        // звуки ни от чего не зависят
+        CompletableFuture<Void> sounds = CompletableFuture
+                .supplyAsync(() -> loadEntries(Sound::readConfig, Sound.FORMAT_EXT, null, Sound::createEntry), pool)
+                .thenCompose(count -> count)
+                .thenAccept(Sound.SOUNDS::markLoaded);
+        
+        CompletableFuture<Void> allTextures = CompletableFuture
+                .supplyAsync(() -> loadTextures(Texture::readConfig), pool)
+                .thenCompose(last -> last);
+        
+        // материалы и скайбоксы - заглушки, их файлы (и текстуры) понадобятся только при первом обращении
+        CompletableFuture<Void> materials = CompletableFuture
+                .supplyAsync(() -> loadEntries(Material::readConfig, Material.FORMAT_EXT, StubIndex::scanEntry, Material::createEntry), pool)
+                .thenCompose(count -> count)
+                .thenAccept(Material.MATERIALS::markLoaded);
+        CompletableFuture<Void> skyboxes = CompletableFuture
+                .supplyAsync(() -> loadEntries(Skybox::readConfig, Skybox.FORMAT_EXT, StubIndex::scanEntry, Skybox::createEntry), pool)
+                .thenCompose(count -> count)
+                .thenAccept(Skybox.SKYBOXES::markLoaded);
+        
+        return CompletableFuture.allOf(allTextures, sounds, materials, skyboxes);
+    }
+    
+    /**
+     * Загрузить ресурсы по двоичному индексу проекта.
+     * Содержимое материалов и скайбоксов берется из индекса, файлы читаются только у измененных
+     * @param index Прочитанный индекс
+     * @return future окончания загрузки
+     */
+    private CompletableFuture<Void> loadIndexed(ProjectIndex index) {
+        CompletableFuture<Void> sounds = CompletableFuture
+                .supplyAsync(() -> loadEntries(index::readSounds, Sound.FORMAT_EXT, null, Sound::createEntry), pool)
+                .thenCompose(count -> count)
+                .thenAccept(Sound.SOUNDS::markLoaded);
+        
+        CompletableFuture<CompletableFuture<Void>> texturesRead = CompletableFuture.supplyAsync(() -> loadTextures(index::readTextures), pool);
+        CompletableFuture<Void> allTextures = texturesRead.thenCompose(last -> last);
+        
+        CompletableFuture<Void> materials = texturesRead
+                .thenComposeAsync(t -> loadRecords(index.getMaterials(), ProjectIndex::loadMaterial), pool)
+                .thenAccept(entries -> {
+                    Material.checkAll();
+                    Material.MATERIALS.markLoaded(entries);
+                });
+        CompletableFuture<Void> skyboxes = texturesRead
+                .thenComposeAsync(t -> loadRecords(index.getSkyboxes(), ProjectIndex::loadSkybox), pool)
+                .thenAccept(entries -> {
+                    Skybox.checkAll();
+                    Skybox.SKYBOXES.markLoaded(entries);
+                });
+        
+        return CompletableFuture.allOf(allTextures, sounds, materials, skyboxes);
+    }
+    
+    /**
+     * Прочитать конфиг текстур и зарегистрировать текстуры без декодирования изображений.
+     * Файлы проверяются в пуле параллельно, а регистрация идет по цепочке в порядке конфига
+     * @param reader Чтение конфига
+     * @return future регистрации всех текстур
+     */
+    private CompletableFuture<Void> loadTextures(ConfigReader reader) {
+        CompletableFuture<?>[] last = { CompletableFuture.completedFuture(null) };
+        
+        int entries = reader.read(entry -> {
+            CompletableFuture<Void> registered = registerEntry(entry, Texture.FORMAT_EXT, null, Texture::createEntry, last[0]);
+            textures.put(entry.id, registered);
+            last[0] = registered;
+        });
+        
+        return CompletableFuture.allOf(last[0]).thenRun(() -> Texture.TEXTURES.markLoaded(entries));
+    }
+    
+    /**
+     * Прочитать конфиг и создать ресурсы по записям, файлы которых существуют.
+     * Файлы проверяются в пуле параллельно, а ресурсы создаются по цепочке в порядке конфига
+     * @param reader Чтение конфига
+     * @param extension Расширение файлов ресурсов этого типа
+     * @param preparer Подготовка записи в пуле, если файл найден (может быть null)
+     * @param creator Создание ресурса по записи
+     * @return future количества записей в конфиге (-1 - ошибка), завершающийся после создания всех ресурсов
+     */
+    private CompletableFuture<Integer> loadEntries(ConfigReader reader, String extension, 
+                                                   ConfigCodec.EntryHandler preparer, ConfigCodec.EntryHandler creator) {
+        CompletableFuture<?>[] last = { CompletableFuture.completedFuture(null) };
+        
+        int entries = reader.read(entry -> last[0] = registerEntry(entry, extension, preparer, creator, last[0]));
+        
+        return CompletableFuture.allOf(last[0]).thenApply(v -> entries);
+    }
+    
+    /**
+     * Проверить (и подготовить) файл записи в пуле и создать ресурс после создания предыдущего
+     * @param entry Запись конфига
+     * @param extension Расширение файлов ресурсов этого типа
+     * @param preparer Подготовка записи в пуле, если файл найден (может быть null)
+     * @param creator Создание ресурса по записи
+     * @param previous Создание предыдущего ресурса
+     * @return future создания ресурса (если файла нет - просто завершается)
+     */
+    private CompletableFuture<Void> registerEntry(ConfigCodec.Entry entry, String extension, ConfigCodec.EntryHandler preparer,
+                                                  ConfigCodec.EntryHandler creator, CompletableFuture<?> previous) {
+        Path path = Paths.get(entry.path);
+        CompletableFuture<Boolean> exists = CompletableFuture.supplyAsync(() -> {
+            boolean found = ProjectFiles.stat(path) != null && FileSystemUtils.getFileExtension(path).equals(extension);
+            // заглушки просматривают свои файлы здесь, а не в цепочке регистрации
+            if (found && preparer != null) {
+                preparer.handle(entry);
+            }
+            return found;
+        }, pool);
+        return logged(exists.thenAcceptBoth(previous, (found, prev) -> {
+            if (Boolean.TRUE.equals(found)) {
+                creator.handle(entry);
+            }
+        }));
+    }
+    
+    /**
+     * Создать ресурсы по записям индекса после готовности их текстур.
+     * Регистрация идет по цепочке в порядке записей
+     * @param <R> тип записей
+     * @param records Записи индекса
+     * @param loader Создание ресурса по записи
+     * @return future регистрации последнего ресурса с количеством записей
+     */
+    private <R extends ProjectIndex.Record> CompletableFuture<Integer> loadRecords(List<R> records, Consumer<R> loader) {
+        CompletableFuture<?> last = CompletableFuture.completedFuture(null);
+        
+        for (R record : records) {
+            CompletableFuture<Void> dependencies = CompletableFuture
+                    .supplyAsync(record::getTextureIds, pool)
+                    .thenCompose(this::texturesReady);
+            last = logged(dependencies.thenAcceptBoth(last, (deps, prev) -> loader.accept(record)));
+        }
+        
+        return CompletableFuture.allOf(last).thenApply(v -> records.size());
+    }
+    
+    /**
+     * Получить future готовности указанных текстур. Неизвестные id пропускаются
+     * @param ids Идентификаторы текстур
+     * @return future, завершающийся после регистрации всех найденных текстур
+     */
+    private CompletableFuture<Void> texturesReady(List<Long> ids) {
+        return CompletableFuture.allOf(ids.stream()
+                                          .map(textures::get)
+                                          .filter(Objects::nonNull)
+                                          .toArray(CompletableFuture[]::new));
+    }
+    
+    /**
+     * Записать в лог ошибку шага загрузки, не обрывая цепочку следующих шагов
+     * @param <T> тип результата
+     * @param future Шаг загрузки
+     * @return шаг, который всегда завершается нормально (при ошибке - с null)
+     */
+    private static <T> CompletableFuture<T> logged(CompletableFuture<T> future) {
+        return future.exceptionally(ex -> {
+            LOG.log(Level.SEVERE, null, ex);
+            return null;
+        });
+    }
+}
@@ -20,19 +20,18 @@ package com.vuvk.n3d.resources;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.vuvk.n3d.utils.FileSystemUtils;
-import com.vuvk.n3d.utils.MessageDialog;
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.FilenameUtils;
 
 /**
  * Класс-предок всех ресурсов
- * Путь содержит путь относительно корневой папки resources
+ * Путь содержит путь относительно корневой папки resources.
+ * Поля объявлены volatile, чтобы ресурс, созданный в рабочем потоке, был корректно виден из EDT и потоков предпросмотра
  * @author Anton "Vuvk" Shcherbatykh
  */
 public abstract class Resource {
@@ -49,13 +48,17 @@ public abstract class Resource {
     
     
     /** идентификатор */
-    protected long id;
+    protected volatile long id;
     /** имя */
-    protected String name;  
-    /** Путь до ресурса */
-    protected String path;
-    
-    private static final Logger LOG = Logger.getLogger(Resource.class.getName());
+    protected volatile String name;  
+    /** Расположение ресурса - узел папки в общем дереве путей и имя файла */
+    private volatile PathTrie.Location location;
+    /** количество пользователей ресурса (открытые редакторы и т.п.) */
+    private final AtomicInteger refCount = new AtomicInteger();
+    /** данные ресурса изменены после последней загрузки или сохранения файла */
+    private volatile boolean dirty = false;
+    /** идет отложенное чтение файла ресурса - изменения при чтении не являются правками */
+    private volatile boolean loading = false;
     
     /**
      * Проверить конфиг ресурса на валидность
@@ -69,21 +72,35 @@ public abstract class Resource {
             return false;
         }
         
-        // идентификатор
         JsonElement jsonIdentificator = config.get("identificator");
-        if (jsonIdentificator == null || 
-            !jsonIdentificator.getAsString().equals(identificator)
+        JsonElement jsonVersion = config.get("version");
+        return checkConfig((jsonIdentificator != null) ? jsonIdentificator.getAsString() : null,
+                           (jsonVersion != null) ? jsonVersion.getAsString() : null,
+                           identificator, 
+                           version);
+    }
+    
+    /**
+     * Проверить заголовок конфига ресурса на валидность
+     * @param configIdentificator Идентификатор, прочитанный из конфига
+     * @param configVersion Версия, прочитанная из конфига
+     * @param identificator Нужный идентификатор
+     * @param version Версия формата
+     * @return true, если конфиг валидный
+     */
+    static boolean checkConfig(String configIdentificator, String configVersion, String identificator, double version) {
+        // идентификатор
+        if (configIdentificator == null || 
+            !configIdentificator.equals(identificator)
            ) {
             return false;
         }
         
         // версия
-        JsonElement jsonVersion = config.get("version");
-        if (jsonVersion == null) {
+        if (configVersion == null) {
             return false;
         }
-        double configVersion = jsonVersion.getAsDouble();
-        if (version < configVersion) {
+        if (version < Double.parseDouble(configVersion)) {
             return false;
         }
         
@@ -91,41 +108,38 @@ public abstract class Resource {
     }
     
     /**
-     * Получить ссылку на ресурс по пути до файла
-     * @param path Путь до файла
-     * @param type Тип ресурса для поиска
-     * @return ресурс, если есть такой в базе, иначе null
+     * Получить хранилище ресурсов заданного типа
+     * @param type Тип ресурса
+     * @return хранилище ресурсов
      */
-    public static Resource getByPath(String path, Type type) {
-        List searchList = null;
-        
+    static ResourceRegistry getRegistry(Type type) {
         switch (type) {
             case TEXTURE:
-                searchList = Texture.TEXTURES;
-                break;
+                return Texture.TEXTURES;
                 
             case MATERIAL:
-                searchList = Material.MATERIALS;
-                break;
+                return Material.MATERIALS;
                 
             case SOUND:
-                searchList = Sound.SOUNDS;
-                break;
+                return Sound.SOUNDS;
                 
             case SKYBOX:
-                searchList = Skybox.SKYBOXES;
-                break;
+                return Skybox.SKYBOXES;
         }
-        
-        if (searchList != null) {
-            for (Iterator it = searchList.iterator(); it.hasNext(); ) {
-                Resource res = (Resource) it.next();
-                if (res.getPath().equals(path)) {
-                    return res;
-                }
-            }
+        return null;
+    }
+    
+    /**
+     * Получить ссылку на ресурс по пути до файла
+     * @param path Путь до файла
+     * @param type Тип ресурса для поиска
+     * @return ресурс, если есть такой в базе, иначе null
+     */
+    public static Resource getByPath(String path, Type type) {
+        ResourceRegistry registry = getRegistry(type);
+        if (registry != null) {
+            return registry.getByPath(path);
         }
-        
         return null;
     }
     
@@ -140,26 +154,16 @@ public abstract class Resource {
     }
     
     /**
-     * Получить ссылку на неизвестный ресурс по пути до файла. Долго
+     * Получить ссылку на неизвестный ресурс по пути до файла
      * @param path Путь до файла
      * @return ресурс, если есть такой в базе, иначе null
      */
     public static Resource getByPath(String path) {
-        Resource res = null;
-        if ((res = getByPath(path, Type.TEXTURE)) != null) {
-            return res;
-        } else if ((res = getByPath(path, Type.MATERIAL)) != null) {
-            return res;
-        } else if ((res = getByPath(path, Type.SOUND)) != null) {
-            return res;
-        } else if ((res = getByPath(path, Type.SKYBOX)) != null) {
-            return res;
-        }
-        return null;
+        return ResourceRegistry.getAnyByPath(path);
     }
     
     /**
-     * Получить ссылку на неизвестный ресурс по пути до файла. Долго
+     * Получить ссылку на неизвестный ресурс по пути до файла
      * @param path Путь до файла
      * @return ресурс, если есть такой в базе, иначе null
      */
@@ -167,6 +171,16 @@ public abstract class Resource {
         return getByPath(path.toString());
     }
     
+    /**
+     * Получить все ресурсы любого типа, расположенные по пути с заданным началом.
+     * Для выборки содержимого папки передавать путь папки со слэшем на конце
+     * @param prefix Начало пути ресурса
+     * @return список ресурсов (без определённого порядка)
+     */
+    public static List<Resource> getByPathPrefix(String prefix) {
+        return ResourceRegistry.getAnyByPathPrefix(prefix);
+    }
+    
     /**
      * Получить ссылку на ресурс по id
      * @param id Идентификатор материала
@@ -174,54 +188,69 @@ public abstract class Resource {
      * @return ресурс, если есть такой в базе, иначе null
      */
     public static Resource getById(long id, Type type) {
-        List searchList = null;
-        
-        switch (type) {
-            case TEXTURE:
-                searchList = Texture.TEXTURES;
-                break;
-                
-            case MATERIAL:
-                searchList = Material.MATERIALS;
-                break;
-                
-            case SOUND:
-                searchList = Sound.SOUNDS;
-                break;
-                
-            case SKYBOX:
-                searchList = Skybox.SKYBOXES;
-                break;
+        ResourceRegistry registry = getRegistry(type);
+        if (registry != null) {
+            return registry.getById(id);
         }
-        
-        if (searchList != null) {
-            for (Iterator it = searchList.iterator(); it.hasNext(); ) {
-                Resource res = (Resource) it.next();
-                if (res.getId() == id) {
-                    return res;
-                }
+        return null;
+    }
+    
+    /**
+     * Перенести или переименовать папку со всеми ресурсами внутри.
+     * Пути вложенных ресурсов не переписываются - папка переподвешивается в дереве путей целиком
+     * @param oldFolder Путь проекта папки со слэшем на конце
+     * @param newFolder Новый путь проекта папки со слэшем на конце
+     * @return true в случае успеха. Если false, то пути нужно менять по одному ресурсу через setPath
+     */
+    public static boolean moveFolder(String oldFolder, String newFolder) {
+        // пути текстур меняются без setPath - старые пути для кеша пикселей запоминаем здесь
+        List<String> oldTextures = new ArrayList<>();
+        for (Resource res : getByPathPrefix(oldFolder)) {
+            if (res instanceof Texture) {
+                oldTextures.add(res.getPath());
             }
         }
         
-        return null;
+        if (!PathTrie.moveFolder(oldFolder, newFolder)) {
+            return false;
+        }
+        for (Type type : Type.values()) {
+            getRegistry(type).pathsChanged();
+        }
+        PixelCache.remove(oldTextures);
+        ProjectJournal.folderMoved(oldFolder, newFolder);
+        ResourceEvents.post(new ResourceEvent(ResourceEvent.Kind.MOVED, null, newFolder, oldFolder));
+        return true;
     }
         
     
+    /**
+     * Конструктор. Ресурс получает новый id, но в хранилище ещё не добавлен -
+     * наследник вызывает register() в конце своего конструктора
+     * @param path Путь до ресурса
+     */
     protected Resource(Path path) {        
-        List<Resource> container = getContainer();
-        
-        // ищем максимальный id и инкрементируем его
-        long newId = 0;
-        for (Resource res : container) {
-            if (res.getId() > newId) {
-                newId = res.getId();
-            }
-        }
-        ++newId;
-        
-        setId(newId);
+        setId(getContainer().allocateId());
         setPath(path);   
-        container.add(this);        
+    }
+    
+    /**
+     * Конструктор с заранее известным id (например, при загрузке проекта).
+     * Новый id не выделяется
+     * @param path Путь до ресурса
+     * @param id Идентификатор ресурса
+     */
+    protected Resource(Path path, long id) {
+        setId(id);
+        setPath(path);
+    }
+    
+    /**
+     * Добавить полностью созданный ресурс в хранилище.
+     * Только после этого ресурс становится виден другим потокам
+     */
+    protected final void register() {
+        getContainer().add(this);
     }
     
     /**
@@ -229,7 +258,9 @@ public abstract class Resource {
      * @param id новый идентификатор
      */
     protected void setId(long id) {
+        long oldId = this.id;
         this.id = id;
+        getContainer().updateId(this, oldId);
     }
     
     /**
@@ -245,13 +276,19 @@ public abstract class Resource {
      * @param path Новый путь
      */
     public void setPath(Path path) {
+        PathTrie.Location oldLocation = this.location;
         if (path != null) {
-            this.path = FileSystemUtils.getProjectPath(path);   
-            setName(FilenameUtils.getBaseName(this.path));
+            String projectPath = FileSystemUtils.getProjectPath(path);
+            this.location = PathTrie.locate(projectPath);   
+            setName(FilenameUtils.getBaseName(projectPath));
         } else {
-            this.path = "";
+            this.location = PathTrie.locate("");
             setName("");
         }
+        getContainer().updatePath(this, oldLocation);
+        if (oldLocation != null && oldLocation != this.location) {
+            pathChanged(oldLocation.getPath());
+        }
     }
     
     /**
@@ -297,7 +334,15 @@ public abstract class Resource {
      * @return path путь ресурса
      */
     public String getPath() {
-        return path;
+        return location.getPath();
+    }
+    
+    /**
+     * Получить расположение ресурса в дереве путей
+     * @return расположение
+     */
+    PathTrie.Location getLocation() {
+        return location;
     }
     
     /**
@@ -313,11 +358,17 @@ public abstract class Resource {
         }        
     }
     
+    /**
+     * Получить тип ресурса
+     * @return тип
+     */
+    public abstract Type getResourceType();
+    
     /**
      * Получить хранилище всех ресурсов данного типа
-     * @return Список ресурсов
+     * @return Хранилище ресурсов
      */
-    protected abstract List getContainer();
+    protected abstract ResourceRegistry getContainer();
     
     /**
      * Загрузить из файла
@@ -333,22 +384,101 @@ public abstract class Resource {
     protected abstract boolean save();
     
     /**
-     * Деструктор
+     * Изменен ли ресурс после последней загрузки или сохранения его файла
+     * @return true, если файл ресурса нужно сохранить
      */
-    public void dispose() {
-        getContainer().remove(this);
+    public boolean isDirty() {
+        return dirty;
+    }
+    
+    /**
+     * Отметить, что данные ресурса изменились и файл нужно сохранить
+     */
+    protected void markDirty() {
+        dirty = true;
+        if (!loading) {
+            ProjectJournal.changed(this);
+        }
+    }
+    
+    /**
+     * Отметить начало или конец отложенного чтения файла ресурса
+     * @param loading true - чтение началось
+     */
+    protected void setLoading(boolean loading) {
+        this.loading = loading;
+    }
+    
+    /**
+     * Отметить, что файл ресурса соответствует данным в памяти.
+     * Вызывается перед записью файла - изменение во время записи снова отметит ресурс
+     */
+    protected void markClean() {
+        dirty = false;
     }
     
     /**
-     * Деструктор для GC
+     * Отметить, что ресурс используется (например, открыт в редакторе).
+     * Пока ресурс используется, его данные не освобождаются даже после удаления из хранилища
      */
-    public void finalize() { 
-        dispose();         
-        try {
-            super.finalize();
-        } catch (Throwable ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            MessageDialog.showException(ex);
-        }      
+    public void retain() {
+        refCount.incrementAndGet();
+    }
+    
+    /**
+     * Снять отметку об использовании ресурса.
+     * Если ресурс больше никем не используется и уже удален из хранилища, то его данные освобождаются сразу
+     */
+    public void release() {
+        if (refCount.updateAndGet(count -> (count > 0) ? count - 1 : 0) == 0 &&
+            !getContainer().contains(this)
+           ) {
+            freeData();
+        }
+    }
+    
+    /**
+     * Получить количество пользователей ресурса
+     * @return количество вызовов retain без парного release
+     */
+    public int getRefCount() {
+        return refCount.get();
+    }
+    
+    /**
+     * Освободить тяжелые данные ресурса (изображения и т.п.)
+     */
+    protected void freeData() {
+    }
+    
+    /**
+     * Вызывается после смены пути ресурса через setPath
+     * @param oldPath Прежний путь проекта
+     */
+    void pathChanged(String oldPath) {
+    }
+    
+    /**
+     * Вызывается хранилищем перед удалением из него ресурса, пока ресурс ещё доступен по id
+     */
+    void unregistering() {
+    }
+    
+    /**
+     * Вызывается хранилищем после удаления из него ресурса.
+     * Наследники, переопределяющие метод, должны вызывать super.unregistered()
+     */
+    void unregistered() {
+        if (refCount.get() == 0) {
+            freeData();
+        }
+    }
+    
+    /**
+     * Деструктор. Удаляет ресурс из хранилища и освобождает его данные
+     */
+    public void dispose() {
+        getContainer().remove(this);
+        freeData();
     }
 }
@@ -0,0 +1,100 @@
+/**
+    Resource change event (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+/**
+ * Событие изменения хранилища ресурсов.
+ * Для переноса папки целиком ресурс не указывается, а пути - это пути папок со слэшем на конце
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ResourceEvent {
+    
+    /**
+     * виды изменений
+     */
+    public static enum Kind {
+        /** ресурс добавлен в хранилище */
+        ADDED,
+        /** ресурс удален из хранилища */
+        REMOVED,
+        /** ресурс или папка сменили путь */
+        MOVED,
+        /** изменены данные ресурса */
+        MODIFIED
+    }
+    
+    /** вид изменения */
+    private final Kind kind;
+    /** ресурс, null - перенос папки */
+    private final Resource resource;
+    /** путь после изменения */
+    private final String path;
+    /** путь до изменения (только для MOVED) */
+    private final String oldPath;
+
+    ResourceEvent(Kind kind, Resource resource, String path, String oldPath) {
+        this.kind     = kind;
+        this.resource = resource;
+        this.path     = path;
+        this.oldPath  = oldPath;
+    }
+    
+    ResourceEvent(Kind kind, Resource resource) {
+        this(kind, resource, resource.getPath(), null);
+    }
+
+    /**
+     * Получить вид изменения
+     * @return вид изменения
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Получить измененный ресурс
+     * @return ресурс или null, если перенесена папка
+     */
+    public Resource getResource() {
+        return resource;
+    }
+
+    /**
+     * Получить путь ресурса (папки) на момент события
+     * @return путь проекта
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Получить прежний путь ресурса (папки)
+     * @return путь проекта или null, если путь не менялся
+     */
+    public String getOldPath() {
+        return oldPath;
+    }
+    
+    /**
+     * Относится ли событие к папке целиком
+     * @return true, если перенесена папка
+     */
+    public boolean isFolder() {
+        return resource == null;
+    }
+}
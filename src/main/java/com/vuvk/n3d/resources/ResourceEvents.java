@@ -0,0 +1,113 @@
+/**
+    Dispatcher of resource change events (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Рассылка событий изменения хранилищ ресурсов.
+ * События можно публиковать из любого потока - они копятся в очереди и доставляются слушателям в EDT
+ * одной пачкой, поэтому массовые операции (импорт, вставка, удаление папки) 
+ * приводят к одному обновлению представлений, а не к обновлению на каждый ресурс
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class ResourceEvents {
+    
+    /** слушатели */
+    private static final CopyOnWriteArrayList<ResourceListener> LISTENERS = new CopyOnWriteArrayList<>();
+    /** накопленные и еще не доставленные события */
+    private static final ConcurrentLinkedQueue<ResourceEvent> QUEUE = new ConcurrentLinkedQueue<>();
+    /** запланирована ли доставка пачки в EDT */
+    private static final AtomicBoolean SCHEDULED = new AtomicBoolean();
+    
+    private static final Logger LOG = Logger.getLogger(ResourceEvents.class.getName()); 
+    
+    /**
+     * Подписаться на изменения ресурсов
+     * @param listener Слушатель
+     */
+    public static void addListener(ResourceListener listener) {
+        if (listener != null) {
+            LISTENERS.addIfAbsent(listener);
+        }
+    }
+    
+    /**
+     * Отписаться от изменений ресурсов
+     * @param listener Слушатель
+     */
+    public static void removeListener(ResourceListener listener) {
+        LISTENERS.remove(listener);
+    }
+    
+    /**
+     * Опубликовать событие. Доставка будет выполнена в EDT вместе с остальными событиями пачки
+     * @param event Событие
+     */
+    static void post(ResourceEvent event) {
+        QUEUE.add(event);
+        if (SCHEDULED.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(ResourceEvents::flush);
+        }
+    }
+    
+    /**
+     * Доставить накопленные события немедленно.
+     * Нужно, когда код в EDT сразу после изменения ресурсов опирается на обновленные представления.
+     * Вызов не из EDT только планирует доставку
+     */
+    public static void flush() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            if (SCHEDULED.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(ResourceEvents::flush);
+            }
+            return;
+        }
+        
+        // сначала сбрасываем флаг - событие, пришедшее во время разбора, запланирует новую пачку
+        SCHEDULED.set(false);
+        
+        List<ResourceEvent> batch = new ArrayList<>();
+        ResourceEvent event;
+        while ((event = QUEUE.poll()) != null) {
+            batch.add(event);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        
+        batch = Collections.unmodifiableList(batch);
+        for (ResourceListener listener : LISTENERS) {
+            try {
+                listener.resourcesChanged(batch);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    private ResourceEvents() {}
+}
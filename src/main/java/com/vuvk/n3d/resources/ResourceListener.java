@@ -0,0 +1,34 @@
+/**
+    Resource change listener (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import java.util.List;
+
+/**
+ * Слушатель изменений хранилищ ресурсов.
+ * Вызывается в EDT один раз на пачку событий, накопившихся за один проход очереди событий
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public interface ResourceListener {
+    
+    /**
+     * Хранилища ресурсов изменились
+     * @param events неизменяемый список событий в порядке их возникновения
+     */
+    void resourcesChanged(List<ResourceEvent> events);
+}
@@ -0,0 +1,468 @@
+/**
+    Registry of resources (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.vuvk.n3d.utils.LongObjectMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Хранилище ресурсов одного типа.
+ * Помимо списка в порядке добавления содержит индекс по id (пока id идут плотно - простой массив,
+ * иначе хэш-таблица), а индексом по пути служит
+ * общее для всех типов дерево путей (PathTrie). Индексы поддерживаются в актуальном состоянии
+ * через Resource.setPath и Resource.setId.
+ * Индексы потокобезопасны (дерево путей - под своей блокировкой, индекс id - под StampedLock), поэтому читать хранилище и добавлять в него
+ * ресурсы можно из рабочих потоков (загрузка, импорт, предпросмотр), не только из EDT.
+ * Об изменениях хранилище сообщает событиями через ResourceEvents
+ * @author Anton "Vuvk" Shcherbatykh
+ * @param <T> тип хранимых ресурсов
+ */
+public final class ResourceRegistry<T extends Resource> implements Iterable<T> {
+
+    /** ресурсы в порядке добавления (доступ только под блокировкой самого списка) */
+    private final ArrayList<T> list = new ArrayList<>();
+    /** неизменяемый снимок списка. null - устарел и будет пересобран при следующем запросе */
+    private volatile List<T> snapshot = Collections.emptyList();
+    /** версия хранилища, растет при каждом добавлении, удалении или смене пути ресурса */
+    private final AtomicLong version = new AtomicLong();
+    /** множество всех ресурсов для быстрой проверки принадлежности */
+    private final Set<T> members = ConcurrentHashMap.newKeySet();
+    /** индекс id -> ресурс */
+    private final LongObjectMap<T> byId = new LongObjectMap<>();
+    /** блокировка индекса id (сама таблица не потокобезопасна) */
+    private final StampedLock byIdLock = new StampedLock();
+    /** максимальный выданный или занятый id */
+    private final AtomicLong maxId = new AtomicLong();
+    /** 
+     * таблица id -> ресурс, если id плотные (DENSE_SPARSE - разреженные, null - устарела).
+     * Пересобирается и сбрасывается только под блокировкой list
+     */
+    private volatile Object[] dense = null;
+    /** отметка разреженных id - плотной таблицы нет, поиск идет по хэш-таблице */
+    private static final Object[] DENSE_SPARSE = new Object[0];
+    /** допустимый запас пустых ячеек плотной таблицы */
+    private static final int DENSE_SLACK = 16;
+    /** поиски по id, прошедшие мимо устаревшей плотной таблицы (таблица пересобирается, когда их накопится достаточно) */
+    private final AtomicInteger denseMisses = new AtomicInteger();
+    /** состав, пути или id ресурсов изменились после последней загрузки или сохранения конфига */
+    private volatile boolean configDirty = false;
+
+    /**
+     * Изменилось ли хранилище после последней загрузки или сохранения конфига
+     * @return true, если конфиг нужно сохранить
+     */
+    public boolean isConfigDirty() {
+        return configDirty;
+    }
+    
+    /**
+     * Отметить, что конфиг хранилища нужно сохранить
+     */
+    void markConfigDirty() {
+        configDirty = true;
+    }
+    
+    /**
+     * Отметить, что конфиг соответствует хранилищу.
+     * Вызывается перед записью конфига - изменение во время записи снова отметит хранилище
+     */
+    void markConfigClean() {
+        configDirty = false;
+    }
+    
+    /**
+     * Отметить окончание загрузки хранилища из конфига.
+     * Конфиг считается сохраненным, только если по каждой его записи создан ресурс
+     * @param configEntries количество записей в конфиге
+     */
+    void markLoaded(int configEntries) {
+        configDirty = (size() != configEntries);
+    }
+
+    /**
+     * Выделить новый уникальный id. Идентификаторы только растут
+     * @return новый идентификатор
+     */
+    long allocateId() {
+        return maxId.incrementAndGet();
+    }
+
+    /**
+     * Отметить id как занятый, чтобы аллокатор не выдал его повторно
+     * @param id занятый идентификатор
+     */
+    private void reserveId(long id) {
+        maxId.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Добавить ресурс в хранилище
+     * @param res Добавляемый ресурс
+     */
+    void add(T res) {
+        if (res == null || !members.add(res)) {
+            return;
+        }
+        synchronized (list) {
+            list.add(res);
+            changed();
+        }
+        configDirty = true;
+        long stamp = byIdLock.writeLock();
+        try {
+            byId.put(res.getId(), res);
+        } finally {
+            byIdLock.unlockWrite(stamp);
+        }
+        reserveId(res.getId());
+        PathTrie.put(res);
+        ProjectJournal.added(res);
+        ResourceEvents.post(new ResourceEvent(ResourceEvent.Kind.ADDED, res));
+    }
+
+    /**
+     * Удалить ресурс из хранилища
+     * @param res Удаляемый ресурс
+     * @return true, если ресурс был в хранилище
+     */
+    public boolean remove(Object res) {
+        if (res == null || !members.contains(res)) {
+            return false;
+        }
+        ((Resource) res).unregistering();
+        if (!members.remove(res)) {
+            return false;
+        }
+        synchronized (list) {
+            list.remove(res);
+            changed();
+        }
+        configDirty = true;
+
+        Resource resource = (Resource) res;
+        long stamp = byIdLock.writeLock();
+        try {
+            byId.remove(resource.getId(), resource);
+        } finally {
+            byIdLock.unlockWrite(stamp);
+        }
+        PathTrie.remove(resource, resource.getLocation());
+        resource.unregistered();
+        ProjectJournal.removed(resource);
+        ResourceEvents.post(new ResourceEvent(ResourceEvent.Kind.REMOVED, resource));
+        return true;
+    }
+
+    /**
+     * Удалить все ресурсы из хранилища
+     */
+    void clear() {
+        ArrayList<T> removed;
+        synchronized (list) {
+            removed = new ArrayList<>(list);
+            list.clear();
+            members.clear();
+            long stamp = byIdLock.writeLock();
+            try {
+                byId.clear();
+            } finally {
+                byIdLock.unlockWrite(stamp);
+            }
+            maxId.set(0);
+            changed();
+        }
+        configDirty = true;
+        
+        for (T res : removed) {
+            PathTrie.remove(res, res.getLocation());
+            res.unregistered();
+            ResourceEvents.post(new ResourceEvent(ResourceEvent.Kind.REMOVED, res));
+        }
+    }
+
+    /**
+     * Отметить изменение состава хранилища (вызывать под блокировкой list)
+     */
+    private void changed() {
+        snapshot = null;
+        dense = null;
+        version.incrementAndGet();
+    }
+
+    /**
+     * Обновить индекс путей после смены пути у ресурса
+     * @param res Ресурс, сменивший путь
+     * @param oldLocation Предыдущее расположение ресурса
+     */
+    void updatePath(T res, PathTrie.Location oldLocation) {
+        if (!members.contains(res)) {
+            return;
+        }
+        PathTrie.remove(res, oldLocation);
+        PathTrie.put(res);
+        version.incrementAndGet();
+        configDirty = true;
+        ProjectJournal.moved(res);
+        ResourceEvents.post(new ResourceEvent(ResourceEvent.Kind.MOVED, 
+                                              res, 
+                                              res.getPath(), 
+                                              (oldLocation != null) ? oldLocation.getPath() : null));
+    }
+
+    /**
+     * Отметить, что пути ресурсов изменились без вызова setPath (перенос папки целиком)
+     */
+    void pathsChanged() {
+        version.incrementAndGet();
+        configDirty = true;
+    }
+
+    /**
+     * Сообщить об изменении данных ресурса (например, после сохранения изображения текстуры)
+     * @param res Измененный ресурс
+     */
+    void modified(T res) {
+        if (members.contains(res)) {
+            ResourceEvents.post(new ResourceEvent(ResourceEvent.Kind.MODIFIED, res));
+        }
+    }
+
+    /**
+     * Обновить индекс идентификаторов после смены id у ресурса
+     * @param res Ресурс, сменивший id
+     * @param oldId Предыдущий идентификатор ресурса
+     */
+    void updateId(T res, long oldId) {
+        if (!members.contains(res)) {
+            return;
+        }
+        long stamp = byIdLock.writeLock();
+        try {
+            byId.remove(oldId, res);
+            byId.put(res.getId(), res);
+        } finally {
+            byIdLock.unlockWrite(stamp);
+        }
+        reserveId(res.getId());
+        synchronized (list) {
+            dense = null;
+        }
+        configDirty = true;
+    }
+    
+    /**
+     * Разрежены ли id настолько, что плотная таблица была бы слишком велика.
+     * Тогда стоит перенумеровать ресурсы (compactIds)
+     * @return true, если id разрежены
+     */
+    public boolean isSparse() {
+        return maxId.get() > 2L * size() + DENSE_SLACK;
+    }
+    
+    /**
+     * Перенумеровать ресурсы подряд с 1 в порядке добавления.
+     * Ссылки на ресурсы по id в файлах других ресурсов после этого нужно переписать
+     * @return ресурсы, у которых изменился id
+     */
+    List<T> compactIds() {
+        List<T> changedIds = new ArrayList<>();
+        List<T> resources = snapshot();
+        // индекс id переживает временные совпадения: updateId снимает только свою запись
+        for (int i = 0; i < resources.size(); ++i) {
+            T res = resources.get(i);
+            if (res.getId() != i + 1) {
+                res.setId(i + 1);
+                changedIds.add(res);
+            }
+        }
+        maxId.set(resources.size());
+        synchronized (list) {
+            dense = null;
+        }
+        return changedIds;
+    }
+    
+    /**
+     * Получить плотную таблицу id -> ресурс.
+     * После изменения хранилища таблица пересобирается не сразу, а когда мимо неё пройдет
+     * достаточно поисков - иначе при загрузке каждое добавление стоило бы полной пересборки
+     * @return таблица, DENSE_SPARSE, если id разрежены, или null, если таблица пока устарела
+     */
+    private Object[] getDense() {
+        Object[] table = dense;
+        if (table != null || denseMisses.incrementAndGet() <= members.size() / 2 + DENSE_SLACK) {
+            return table;
+        }
+        
+        synchronized (list) {
+            table = dense;
+            if (table == null) {
+                denseMisses.set(0);
+                long min = Long.MAX_VALUE, max = 0;
+                for (T res : list) {
+                    min = Math.min(min, res.getId());
+                    max = Math.max(max, res.getId());
+                }
+                if (min <= 0 || max > 2L * list.size() + DENSE_SLACK) {
+                    table = DENSE_SPARSE;
+                } else {
+                    table = new Object[(int) max + 1];
+                    for (T res : list) {
+                        table[(int) res.getId()] = res;
+                    }
+                }
+                dense = table;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Получить ресурс по пути
+     * @param path Путь до файла
+     * @return ресурс, если есть такой в хранилище, иначе null
+     */
+    @SuppressWarnings("unchecked")
+    public T getByPath(String path) {
+        Resource res = PathTrie.get(path);
+        return (res != null && members.contains(res)) ? (T) res : null;
+    }
+
+    /**
+     * Получить ресурс любого типа по пути
+     * @param path Путь до файла
+     * @return ресурс, если есть такой в базе, иначе null
+     */
+    static Resource getAnyByPath(String path) {
+        return PathTrie.get(path);
+    }
+
+    /**
+     * Получить ресурсы любого типа, пути которых начинаются с префикса
+     * @param prefix Начало пути (например, путь до папки со слэшем на конце)
+     * @return список найденных ресурсов
+     */
+    static List<Resource> getAnyByPathPrefix(String prefix) {
+        return PathTrie.getByPrefix(prefix);
+    }
+
+    /**
+     * Получить ресурс по id
+     * @param id Идентификатор ресурса
+     * @return ресурс, если есть такой в хранилище, иначе null
+     */
+    @SuppressWarnings("unchecked")
+    public T getById(long id) {
+        // плотные id - поиск по массиву без блокировки
+        Object[] table = getDense();
+        if (table != null && table != DENSE_SPARSE) {
+            return (id > 0 && id < table.length) ? (T) table[(int) id] : null;
+        }
+        
+        long stamp = byIdLock.readLock();
+        try {
+            return byId.get(id);
+        } finally {
+            byIdLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Проверить содержится ли ресурс в хранилище
+     * @param res Ресурс для проверки
+     * @return true, если содержится
+     */
+    public boolean contains(Object res) {
+        return members.contains(res);
+    }
+
+    /**
+     * Получить ресурс по порядковому номеру
+     * @param index номер ресурса в порядке добавления
+     * @return ресурс
+     */
+    public T get(int index) {
+        return snapshot().get(index);
+    }
+
+    /**
+     * Получить количество ресурсов
+     * @return количество ресурсов в хранилище
+     */
+    public int size() {
+        return snapshot().size();
+    }
+
+    /**
+     * Пусто ли хранилище
+     * @return true, если ресурсов нет
+     */
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * Получить версию хранилища.
+     * Если версия не изменилась, то ранее полученный снимок всё ещё актуален
+     * @return номер версии
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Получить неизменяемый снимок списка ресурсов.
+     * Снимок собирается заново только после изменения хранилища, 
+     * поэтому повторные вызовы без изменений ничего не копируют
+     * @return неизменяемый список ресурсов в порядке добавления
+     */
+    public List<T> snapshot() {
+        List<T> result = snapshot;
+        if (result == null) {
+            synchronized (list) {
+                result = snapshot;
+                if (result == null) {
+                    result = Collections.unmodifiableList(new ArrayList<>(list));
+                    snapshot = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Получить список ресурсов только для чтения (то же, что snapshot)
+     * @return неизменяемый список ресурсов
+     */
+    public List<T> asList() {
+        return snapshot();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+}
@@ -26,18 +26,15 @@ import com.vuvk.n3d.Const;
 import com.vuvk.n3d.Global;
 import com.vuvk.n3d.utils.FileSystemUtils;
 import com.vuvk.n3d.utils.MessageDialog;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -108,10 +105,14 @@ public class Skybox extends Resource {
     /**
      * текстуры для сторон куба
      */
-    private final Texture[] sides = new Texture[6]; // 0 - FRONT, 1 - BACK, 2 - LEFT, 3 - RIGHT, 4 - TOP, 5 - BOTTOM
+    private final AtomicReferenceArray<Texture> sides = new AtomicReferenceArray<>(6); // 0 - FRONT, 1 - BACK, 2 - LEFT, 3 - RIGHT, 4 - TOP, 5 - BOTTOM
+    /** прочитан ли файл скайбокса. Заглушка, созданная при открытии проекта, читает его при первом обращении */
+    private volatile boolean loaded = true;
     
     /** Список всех скайбоксов (контейнер) */
-    public static final ArrayList<Skybox> SKYBOXES = new ArrayList<>();
+    public static final ResourceRegistry<Skybox> SKYBOXES = new ResourceRegistry<>();
+    /** заглушки по id текстур, упомянутых в их файлах */
+    static final StubIndex<Skybox> STUBS = new StubIndex<>(Skybox::ensureLoaded);
 
     private static final Logger LOG = Logger.getLogger(Skybox.class.getName());
     
@@ -123,8 +124,7 @@ public class Skybox extends Resource {
      */
     public static boolean pathIsSkybox(Path path) {
         return (path != null &&
-                Files.exists(path) && 
-                !Files.isDirectory(path) && 
+                ProjectFiles.exists(path) && 
                 FileSystemUtils.getFileExtension(path).equals(FORMAT_EXT));
     }
     
@@ -134,71 +134,88 @@ public class Skybox extends Resource {
      */
     public static boolean loadAll() {
         closeAll();
+        int entries = readConfig(Skybox::loadEntry);
+        if (entries < 0) {
+            return false;
+        }
         
-        File skyboxConfig = new File(CONFIG_STRING);
+        // на всякий случай проверим валидность всех небес
+        checkAll();
         
-        if (!Files.exists(Global.CONFIG_PATH) || 
-            !skyboxConfig.exists()) {
-            return false;
+        SKYBOXES.markLoaded(entries);
+        return true;
+    }
+    
+    /**
+     * Прочитать конфиг скайбоксов, передавая записи обработчику по мере чтения
+     * @param handler Обработчик записей
+     * @return количество записей в конфиге или -1 в случае ошибки
+     */
+    static int readConfig(ConfigCodec.EntryHandler handler) {
+        Path skyboxConfig = Paths.get(CONFIG_STRING);
+        
+        // конфиг может лежать и в архиве проекта, и в осколках
+        if (!ConfigShards.isSaved(skyboxConfig)) {
+            return -1;
         }
         
-        // читаем конфиг
-        JsonObject config = new JsonObject();        
-        try (Reader reader = new FileReader(skyboxConfig)){
-            Gson gson = new GsonBuilder().create();  
-            config = gson.fromJson(reader, JsonObject.class);
+        try {
+            return ConfigShards.read(skyboxConfig, CONFIG_IDENTIFICATOR, Double.parseDouble(CONFIG_VERSION), handler);
         } catch (Exception ex) {
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
-            return false;
+            return -1;
         }
-        
-        // проверяем правильность конфига
-        if (!Resource.checkConfig(config, 
-                                  CONFIG_IDENTIFICATOR, 
-                                  Double.parseDouble(CONFIG_VERSION))
-           ) {
-            return false;
+    }
+    
+    /**
+     * Создать заглушку скайбокса по записи конфига, если файл существует.
+     * Сам файл скайбокса будет прочитан при первом обращении к сторонам
+     * @param entry Запись конфига
+     */
+    static void loadEntry(ConfigCodec.Entry entry) {
+        // если существует
+        Path path = Paths.get(entry.path);
+        if (pathIsSkybox(path)) {
+            createEntry(entry);
         }
-        
-        // данные
-        JsonElement jsonData = config.get("data");
-        if (jsonData == null) {
-            return false;
+    }
+    
+    /**
+     * Создать заглушку скайбокса по записи конфига, не проверяя файл
+     * (существование файла уже выяснено загрузчиком)
+     * @param entry Запись конфига
+     */
+    static void createEntry(ConfigCodec.Entry entry) {
+        // загрузчик просматривает файл в пуле заранее, остальные - здесь
+        if (entry.textureIds == null) {
+            StubIndex.scanEntry(entry);
         }
-        
-        // создаем небеса по данным из конфига
-        for (JsonElement element : jsonData.getAsJsonArray()) {
-            JsonElement jsonId   = ((JsonObject)element).get("id");
-            JsonElement jsonPath = ((JsonObject)element).get("path");
-            
-            if (jsonId == null || jsonPath == null) {
-                continue;
-            }
-            
-            // если существует
-            Path path = Paths.get(jsonPath.getAsString());
-            if (pathIsSkybox(path)) {
-                // добавляем в базу
-                new Skybox(path)
-                    .setId(jsonId.getAsInt());
-            }
+        // добавляем в базу
+        Skybox sky = new Skybox(Paths.get(entry.path), entry.id);
+        STUBS.add(sky, entry.textureIds);
+    }
+    
+    /**
+     * Прочитать файлы всех скайбоксов, которые ещё остаются заглушками
+     */
+    static void loadStubs() {
+        for (Skybox skybox : SKYBOXES) {
+            skybox.ensureLoaded();
         }
-        
-        // на всякий случай проверим валидность всех небес
-        checkAll();
-        
-        return true;
     }
     
     /** 
-     * Сохранить все небеса
+     * Сохранить все измененные небеса (и те, чьи файлы пропали с диска)
      * @return true в случае успеха
      */
     public static boolean saveAll() {
         boolean allOk = true;
         
         for (Skybox sky : SKYBOXES) {
+            if (!sky.isDirty() && ProjectFiles.exists(Paths.get(sky.getPath()))) {
+                continue;
+            }
             if (!sky.save()) {
                 allOk = false;
             }
@@ -212,6 +229,11 @@ public class Skybox extends Resource {
      * @return true в случае успеха
      */
     public static boolean saveConfig() {        
+        // конфиг не изменился с последней загрузки или сохранения
+        if (!SKYBOXES.isConfigDirty() && ConfigShards.isSaved(Paths.get(CONFIG_STRING))) {
+            return true;
+        }
+        
         // создадим папку с конфигами, если нужно
         if (!Files.exists(Global.CONFIG_PATH)) {
             try {
@@ -223,24 +245,17 @@ public class Skybox extends Resource {
             }
         }
         
-        // формируем конфиг с описанием
-        JsonArray array = new JsonArray(SKYBOXES.size());
-        for (Skybox sky : SKYBOXES) {
-            JsonObject object = new JsonObject();
-            object.addProperty("id", sky.getId());
-            object.addProperty("path", sky.getPath());
-            array.add(object);
-        }
-        JsonObject config = new JsonObject();
-        config.addProperty("identificator", CONFIG_IDENTIFICATOR);
-        config.addProperty("version", CONFIG_VERSION);
-        config.add("data", array);
-        
-        // сохраняем конфиг
-        try (Writer writer = new FileWriter(CONFIG_STRING)) { 
-            Gson gson = new GsonBuilder().create();   
-            gson.toJson(config, writer);             
+        // пишем конфиг потоком - по записи на каждый ресурс, без промежуточного дерева.
+        // отметку снимаем до записи, чтобы изменение во время записи не потерялось
+        SKYBOXES.markConfigClean();
+        try {
+            ConfigShards.write(Paths.get(CONFIG_STRING), 
+                               CONFIG_IDENTIFICATOR, 
+                               CONFIG_VERSION, 
+                               SKYBOXES, 
+                               null);
         } catch (IOException ex) {
+            SKYBOXES.markConfigDirty();
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
             return false;
@@ -264,7 +279,9 @@ public class Skybox extends Resource {
      */
     public static void checkAll() {
         for (Skybox skybox : SKYBOXES) {
-            skybox.check();
+            if (skybox.isLoaded()) {
+                skybox.check();
+            }
         }
     }
     
@@ -272,7 +289,60 @@ public class Skybox extends Resource {
 
     public Skybox(Path path) {
         super(path);     
-        
+        init(path);
+        register();
+    }
+    /** конструктор для загрузки проекта - id уже известен, файл будет прочитан при первом обращении */
+    Skybox(Path path, long id) {
+        super(path, id);
+        loaded = false;
+        register();
+    }
+    /** конструктор для загрузки проекта из индекса - текстуры сторон уже известны */
+    Skybox(Path path, long id, Texture[] textures) {
+        super(path, id);
+        for (Side side : Side.values()) {
+            setTexture(textures[side.getNum()], side);
+        }
+        markClean();
+        register();
+    }
+    
+    /**
+     * Прочитан ли файл скайбокса
+     * @return false, если скайбокс пока заглушка
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+    
+    /**
+     * Прочитать файл скайбокса, если скайбокс ещё заглушка.
+     * Чтение не считается правкой и не попадает в журнал изменений
+     */
+    void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                loaded = true;
+                STUBS.remove(this);
+                setLoading(true);
+                try {
+                    load(Paths.get(getPath()));
+                } finally {
+                    setLoading(false);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Общая часть конструкторов - загрузить скайбокс или создать файл нового
+     * @param path Путь до файла
+     */
+    private void init(Path path) {
         if (Files.exists(path)) {
             load(path);
         } else {
@@ -286,7 +356,29 @@ public class Skybox extends Resource {
      * @param side Сторона, на которую нужно установить текстуру
      */
     public void setTexture(Texture txr, Side side) {
-        sides[side.getNum()] = txr;
+        ensureLoaded();
+        Texture old = sides.getAndSet(side.getNum(), txr);
+        if (old == txr) {
+            return;
+        }
+        if (old != null) {
+            old.removeSkyboxUser(this, side);
+        }
+        if (txr != null) {
+            txr.addSkyboxUser(this, side);
+        }
+        markDirty();
+    }
+    
+    /**
+     * Обнулить текстуру стороны без обновления индекса (текстура удалена из базы)
+     * @param side Сторона, текстуру которой нужно обнулить
+     * @param txr Удаленная текстура. Если на стороне уже другая, то сторона не меняется
+     */
+    void invalidateSide(Side side, Texture txr) {
+        if (sides.compareAndSet(side.getNum(), txr, null)) {
+            markDirty();
+        }
     }
     
     /**
@@ -295,14 +387,34 @@ public class Skybox extends Resource {
      * @return Текстура, если установлена
      */
     public Texture getTexture(Side side) {
-        return sides[side.getNum()];
+        ensureLoaded();
+        return sides.get(side.getNum());
     }
     
     /**
      * Очистить установленные на стороны текстуры
      */
     public void clear() {
-        Arrays.fill(sides, null);
+        ensureLoaded();
+        for (Side side : Side.values()) {
+            setTexture(null, side);
+        }
+    }
+    
+    /**
+     * Скайбокс удален из базы - снять отметки об использовании текстур
+     */
+    @Override
+    void unregistered() {
+        STUBS.remove(this);
+        for (Side side : Side.values()) {
+            Texture txr = sides.get(side.getNum());
+            if (txr != null) {
+                txr.removeSkyboxUser(this, side);
+            }
+        }
+        
+        super.unregistered();
     }
     
     /**
@@ -311,7 +423,9 @@ public class Skybox extends Resource {
     @Override
     public void dispose() {
         super.dispose();
-        clear();
+        if (loaded) {
+            clear();
+        }
     }
     
     /**
@@ -320,11 +434,13 @@ public class Skybox extends Resource {
      * @return true, если все существуют
      */
     public boolean check() {
+        ensureLoaded();
         boolean result = true;
         
-        for (int i = 0; i < sides.length; ++i) {
-            if (sides[i] != null && !Texture.TEXTURES.contains(sides[i])) {
-                sides[i] = null;
+        for (int i = 0; i < sides.length(); ++i) {
+            Texture txr = sides.get(i);
+            if (txr != null && !Texture.TEXTURES.contains(txr)) {
+                setTexture(null, Side.getByNum(i));
                 result = false;
             }
         }
@@ -333,7 +449,12 @@ public class Skybox extends Resource {
     }
     
     @Override
-    protected List getContainer() {
+    public Resource.Type getResourceType() {
+        return Resource.Type.SKYBOX;
+    }
+    
+    @Override
+    protected ResourceRegistry getContainer() {
         return SKYBOXES;
     }
         
@@ -345,12 +466,14 @@ public class Skybox extends Resource {
     @Override
     protected boolean load(Path path) {
         clear();
+        // пока файл не прочитан полностью, скайбокс не совпадает с ним
+        markDirty();
         
         /** если файл существует и он является текстурой */
         if (pathIsSkybox(path)) {            
             // читаем конфиг
             JsonObject config = new JsonObject();        
-            try (Reader reader = new FileReader(path.toFile())) {
+            try (Reader reader = ProjectFiles.newReader(path, Charset.defaultCharset())) {
                 Gson gson = new GsonBuilder().create();  
                 config = gson.fromJson(reader, JsonObject.class);
             } catch (Exception ex) {
@@ -384,6 +507,7 @@ public class Skybox extends Resource {
             }
             JsonArray jsonSidesArray = jsonSides.getAsJsonArray();
             // получаем текстуры по данным из конфига
+            boolean lostTextures = false;
             for (int i = 0; i < 6; ++i) {
                 JsonElement element = jsonSidesArray.get(i);
                 if (element == null) {
@@ -397,9 +521,17 @@ public class Skybox extends Resource {
 
                 // добавить
                 long id = jsonTxrId.getAsLong();
-                sides[i] = (Texture) Resource.getById(id, Resource.Type.TEXTURE);
+                Texture txr = (Texture) Resource.getById(id, Resource.Type.TEXTURE);
+                if (txr == null && id != -1) {
+                    lostTextures = true;
+                }
+                setTexture(txr, Side.getByNum(i));
             }
             
+            // ссылки на пропавшие текстуры при сохранении обнулятся - файл нужно переписать
+            if (!lostTextures) {
+                markClean();
+            }
             return true;
         }
         
@@ -412,13 +544,15 @@ public class Skybox extends Resource {
      */
     @Override
     protected boolean save() {
+        ensureLoaded();
         check();
+        markClean();
         
         // информация о сторонах
         JsonArray jsonSides = new JsonArray();
         for (int i = 0; i < 6; ++i) {
             JsonObject jsonSide = new JsonObject();
-            Texture txr = sides[i];
+            Texture txr = sides.get(i);
             if (txr != null) {
                 jsonSide.addProperty("texture_id", txr.getId());
             } else {
@@ -434,11 +568,16 @@ public class Skybox extends Resource {
         object.addProperty("version", VERSION);
         object.add("sides", jsonSides);
         
-        // сохраняем в привязанный файл
-        try (Writer writer = new FileWriter(getPath())) { 
-            Gson gson = new GsonBuilder().create();   
-            gson.toJson(object, writer);             
+        // сохраняем в привязанный файл (атомарно - при сбое останется прежняя версия)
+        try {
+            FileSystemUtils.writeAtomic(Paths.get(getPath()), out -> {
+                Writer writer = new OutputStreamWriter(out, Charset.defaultCharset());
+                Gson gson = new GsonBuilder().create();   
+                gson.toJson(object, writer);
+                writer.flush();
+            });
         } catch (IOException ex) {
+            markDirty();
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
             return false;
@@ -17,26 +17,16 @@
 */
 package com.vuvk.n3d.resources;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.vuvk.n3d.Const;
 import static com.vuvk.n3d.Const.CONFIG_STRING;
 import com.vuvk.n3d.Global;
 import com.vuvk.n3d.utils.FileSystemUtils;
 import com.vuvk.n3d.utils.MessageDialog;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
@@ -65,7 +55,7 @@ public class Sound extends Resource {
     private boolean isMusic = false;
     
     /** Список всех звуков (контейнер) */
-    public static final ArrayList<Sound> SOUNDS = new ArrayList<>();
+    public static final ResourceRegistry<Sound> SOUNDS = new ResourceRegistry<>();
     
     private static final Logger LOG = Logger.getLogger(Sound.class.getName());   
     
@@ -77,8 +67,7 @@ public class Sound extends Resource {
      */
     public static boolean pathIsSound(Path path) {
         return (path != null &&
-                Files.exists(path) && 
-                !Files.isDirectory(path) && 
+                ProjectFiles.exists(path) && 
                 FileSystemUtils.getFileExtension(path).equals(FORMAT_EXT));
     }
     
@@ -88,62 +77,60 @@ public class Sound extends Resource {
      */
     public static boolean loadAll() {
         closeAll();
+        int entries = readConfig(Sound::loadEntry);
+        if (entries < 0) {
+            return false;
+        }
         
-        File soundConfig = new File(CONFIG_STRING);
+        SOUNDS.markLoaded(entries);
+        return true;
+    }
+    
+    /**
+     * Прочитать конфиг звуков, передавая записи обработчику по мере чтения
+     * @param handler Обработчик записей
+     * @return количество записей в конфиге или -1 в случае ошибки
+     */
+    static int readConfig(ConfigCodec.EntryHandler handler) {
+        Path soundConfig = Paths.get(CONFIG_STRING);
         
-        if (!Files.exists(Global.CONFIG_PATH) || 
-            !soundConfig.exists()) {
-            return false;
+        // конфиг может лежать и в архиве проекта, и в осколках
+        if (!ConfigShards.isSaved(soundConfig)) {
+            return -1;
         }
         
-        // читаем конфиг
-        JsonObject config = new JsonObject();        
-        try (Reader reader = new FileReader(soundConfig)){
-            Gson gson = new GsonBuilder().create();  
-            config = gson.fromJson(reader, JsonObject.class);
+        try {
+            return ConfigShards.read(soundConfig, CONFIG_IDENTIFICATOR, Double.parseDouble(CONFIG_VERSION), handler);
         } catch (Exception ex) {
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
-            return false;
+            return -1;
         }
-              
-        // проверяем правильность конфига
-        if (!Resource.checkConfig(config, 
-                                  CONFIG_IDENTIFICATOR, 
-                                  Double.parseDouble(CONFIG_VERSION))
-           ) {
-            return false;
+    }
+    
+    /**
+     * Создать звук по записи конфига, если файл существует
+     * @param entry Запись конфига
+     */
+    static void loadEntry(ConfigCodec.Entry entry) {
+        // если звук существует
+        Path path = Paths.get(entry.path);
+        if (pathIsSound(path)) {
+            createEntry(entry);
         }
-        
-        // данные
-        JsonElement jsonData = config.get("data");
-        if (jsonData == null) {
-            return false;
+    }
+    
+    /**
+     * Создать звук по записи конфига, не проверяя файл
+     * (существование файла уже выяснено загрузчиком)
+     * @param entry Запись конфига
+     */
+    static void createEntry(ConfigCodec.Entry entry) {
+        // добавляем в базу
+        Sound snd = new Sound(Paths.get(entry.path), entry.id);
+        if (entry.isMusic != null) {
+            snd.setMusic(entry.isMusic);
         }
-        
-        // создаем звуки по данным из конфига
-        for (JsonElement element : jsonData.getAsJsonArray()) {
-            JsonElement jsonId      = ((JsonObject)element).get("id");
-            JsonElement jsonIsMusic = ((JsonObject)element).get("is_music");
-            JsonElement jsonPath    = ((JsonObject)element).get("path");
-            
-            if (jsonId == null || jsonPath == null) {
-                continue;
-            }
-            
-            // если текстура существует
-            Path path = Paths.get(jsonPath.getAsString());
-            if (pathIsSound(path)) {
-                // добавляем в базу
-                Sound snd = new Sound(path);
-                snd.setId(jsonId.getAsInt());
-                if (jsonIsMusic != null) {
-                    snd.setMusic(jsonIsMusic.getAsBoolean());
-                }
-            }
-        }        
-        
-        return true;
     }
 
     /** 
@@ -151,6 +138,11 @@ public class Sound extends Resource {
      * @return true в случае успеха
      */
     public static boolean saveConfig() {        
+        // конфиг не изменился с последней загрузки или сохранения
+        if (!SOUNDS.isConfigDirty() && ConfigShards.isSaved(Paths.get(CONFIG_STRING))) {
+            return true;
+        }
+        
         // создадим папку с конфигами, если нужно
         if (!Files.exists(Global.CONFIG_PATH)) {
             try {
@@ -162,25 +154,17 @@ public class Sound extends Resource {
             }
         }
         
-        // формируем конфиг с описанием звуков проекта
-        JsonArray array = new JsonArray(SOUNDS.size());
-        for (Sound snd : SOUNDS) {
-            JsonObject object = new JsonObject();
-            object.addProperty("id", snd.getId());
-            object.addProperty("is_music", snd.isMusic());
-            object.addProperty("path", snd.getPath());
-            array.add(object);
-        }
-        JsonObject config = new JsonObject();
-        config.addProperty("identificator", CONFIG_IDENTIFICATOR);
-        config.addProperty("version", CONFIG_VERSION);
-        config.add("data", array);
-        
-        // сохраняем конфиг текстур
-        try (Writer writer = new FileWriter(CONFIG_STRING)) { 
-            Gson gson = new GsonBuilder().create();   
-            gson.toJson(config, writer);             
+        // пишем конфиг потоком - по записи на каждый ресурс, без промежуточного дерева.
+        // отметку снимаем до записи, чтобы изменение во время записи не потерялось
+        SOUNDS.markConfigClean();
+        try {
+            ConfigShards.write(Paths.get(CONFIG_STRING), 
+                               CONFIG_IDENTIFICATOR, 
+                               CONFIG_VERSION, 
+                               SOUNDS, 
+                               (out, snd) -> out.name("is_music").value(snd.isMusic()));
         } catch (IOException ex) {
+            SOUNDS.markConfigDirty();
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
             return false;
@@ -204,6 +188,12 @@ public class Sound extends Resource {
     }
     public Sound(Path path) {
         super(path);
+        register();
+    }
+    /** конструктор для загрузки проекта - id уже известен */
+    Sound(Path path, long id) {
+        super(path, id);
+        register();
     }
 
     @Override
@@ -221,7 +211,12 @@ public class Sound extends Resource {
      * @param isMusic true - является
      */
     public void setMusic(boolean isMusic) {
-        this.isMusic = isMusic;
+        if (this.isMusic != isMusic) {
+            this.isMusic = isMusic;
+            // признак хранится в конфиге звуков
+            SOUNDS.markConfigDirty();
+            ProjectJournal.changed(this);
+        }
     }
     
     /**
@@ -233,7 +228,12 @@ public class Sound extends Resource {
     }
     
     @Override
-    protected List getContainer() {
+    public Resource.Type getResourceType() {
+        return Resource.Type.SOUND;
+    }
+    
+    @Override
+    protected ResourceRegistry getContainer() {
         return SOUNDS;
     }    
 }
@@ -0,0 +1,180 @@
+/**
+    Index of unloaded materials and skyboxes by texture (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Заглушки материалов или скайбоксов по id текстур, упомянутых в их файлах.
+ * Пока файл заглушки не прочитан, текстура о ней не знает - по индексу дочитываются
+ * только те заглушки, которые ссылаются на нужную текстуру, а не все файлы проекта
+ * @author Anton "Vuvk" Shcherbatykh
+ * @param <T> тип заглушек
+ */
+final class StubIndex<T extends Resource> {
+    /** ключ файла, в котором хранится id текстуры */
+    private static final String TEXTURE_ID = "texture_id";
+    
+    /** чтение файла заглушки */
+    private final Consumer<T> loader;
+    /** заглушки по id текстур */
+    private final Map<Long, Set<T>> byTexture = new HashMap<>();
+    /** id текстур каждой заглушки */
+    private final Map<T, long[]> stubs = new HashMap<>();
+    /** заглушки, файлы которых не удалось просмотреть - их приходится читать при любом запросе */
+    private final Set<T> unknown = new LinkedHashSet<>();
+    
+    /**
+     * @param loader Чтение файла заглушки (после чтения заглушка должна убрать себя из индекса)
+     */
+    StubIndex(Consumer<T> loader) {
+        this.loader = loader;
+    }
+    
+    /**
+     * Запомнить заглушку
+     * @param stub Заглушка
+     * @param textureIds id текстур из её файла, null - файл просмотреть не удалось
+     */
+    synchronized void add(T stub, long[] textureIds) {
+        if (textureIds == null) {
+            unknown.add(stub);
+            return;
+        }
+        
+        stubs.put(stub, textureIds);
+        for (long id : textureIds) {
+            byTexture.computeIfAbsent(id, k -> new LinkedHashSet<>()).add(stub);
+        }
+    }
+    
+    /**
+     * Забыть заглушку (файл прочитан или ресурс удален)
+     * @param stub Заглушка
+     */
+    synchronized void remove(T stub) {
+        if (unknown.remove(stub)) {
+            return;
+        }
+        
+        long[] textureIds = stubs.remove(stub);
+        if (textureIds == null) {
+            return;
+        }
+        for (long id : textureIds) {
+            Set<T> users = byTexture.get(id);
+            if (users != null && users.remove(stub) && users.isEmpty()) {
+                byTexture.remove(id);
+            }
+        }
+    }
+    
+    /**
+     * Прочитать файлы заглушек, ссылающихся на текстуру.
+     * Файлы читаются без блокировки индекса - заглушка при чтении сама убирает себя из него
+     * @param textureId id текстуры
+     */
+    void load(long textureId) {
+        List<T> found;
+        synchronized (this) {
+            Set<T> users = byTexture.get(textureId);
+            if (users == null && unknown.isEmpty()) {
+                return;
+            }
+            
+            found = new ArrayList<>(unknown);
+            if (users != null) {
+                found.addAll(users);
+            }
+        }
+        
+        for (T stub : found) {
+            loader.accept(stub);
+        }
+    }
+    
+    /**
+     * Просмотреть файл записи конфига и сохранить в ней id упомянутых текстур
+     * @param entry Запись конфига материала или скайбокса
+     */
+    static void scanEntry(ConfigCodec.Entry entry) {
+        entry.textureIds = scan(Paths.get(entry.path));
+    }
+    
+    /**
+     * Выбрать из файла материала или скайбокса все значения texture_id потоком, не строя дерево JSON
+     * @param path Путь до файла
+     * @return id текстур без -1 и повторов или null, если файл прочитать не удалось
+     */
+    static long[] scan(Path path) {
+        long[] ids = new long[8];
+        int count = 0;
+        
+        try (Reader reader = ProjectFiles.newReader(path, Charset.defaultCharset());
+             JsonReader json = new JsonReader(reader)) {
+            while (true) {
+                JsonToken token = json.peek();
+                switch (token) {
+                    case BEGIN_OBJECT: json.beginObject(); break;
+                    case END_OBJECT:   json.endObject();   break;
+                    case BEGIN_ARRAY:  json.beginArray();  break;
+                    case END_ARRAY:    json.endArray();    break;
+                    case END_DOCUMENT:
+                        return distinct(ids, count);
+                    case NAME:
+                        if (TEXTURE_ID.equals(json.nextName()) && json.peek() == JsonToken.NUMBER) {
+                            if (count == ids.length) {
+                                ids = Arrays.copyOf(ids, count * 2);
+                            }
+                            ids[count++] = json.nextLong();
+                        }
+                        break;
+                    default:
+                        json.skipValue();
+                        break;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Убрать из id повторы и -1 (нет текстуры)
+     * @param ids Массив id
+     * @param count Количество заполненных элементов
+     * @return новый массив
+     */
+    private static long[] distinct(long[] ids, int count) {
+        return Arrays.stream(ids, 0, count).filter(id -> id != -1).distinct().toArray();
+    }
+}
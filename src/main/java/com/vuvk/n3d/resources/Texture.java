@@ -17,32 +17,40 @@
 */
 package com.vuvk.n3d.resources;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.vuvk.n3d.Const;
 import com.vuvk.n3d.Global;
 import com.vuvk.n3d.utils.FileSystemUtils;
 import com.vuvk.n3d.utils.ImageUtils;
 import com.vuvk.n3d.utils.MessageDialog;
+import com.vuvk.n3d.utils.PngDecoder;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 /**
  * Класс хранимой текстуры в редакторе
@@ -66,17 +74,41 @@ public final class Texture extends Resource {
     static final int CONFIG_MINOR = 1;
     public static final String CONFIG_VERSION = CONFIG_MAJOR + "." + CONFIG_MINOR;
     
-    /** изображение текстуры */
-    private BufferedImage image;
+    /** изображение текстуры (null - ещё не декодировано, вытеснено из кеша или пока не построено по пикселям вне кучи) */
+    private volatile BufferedImage image;
+    /** пиксели изображения вне кучи (null - изображение хранится только в куче или ещё не декодировано) */
+    private volatile TexturePixels pixels;
+    /** изображение изменено и не сохранено в файл - вытеснять его нельзя (доступ под блокировкой текстуры) */
+    private boolean unsaved = false;
+    /** размеры изображения из манифеста - известны до декодирования (0 - неизвестны) */
+    private final int width, height;
+    /** фоновое декодирование изображения (доступ под блокировкой текстуры) */
+    private CompletableFuture<Void> decoding;
+    /** кадры материалов, в которых используется текстура (доступ под блокировкой текстуры) */
+    private final Set<Material.Frame> frameUsers = new HashSet<>();
+    /** скайбоксы, в которых используется текстура, и стороны, на которые она установлена */
+    private final Map<Skybox, EnumSet<Skybox.Side>> skyboxUsers = new HashMap<>();
     
     /** пустое изображение */
     public static final BufferedImage IMAGE_EMPTY = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
     /** пустая текстура */
     //public static final Texture TEXTURE_EMPTY = new Texture();
     /** Список всех текстур (контейнер) */
-    public static final ArrayList<Texture> TEXTURES = new ArrayList<>();
+    public static final ResourceRegistry<Texture> TEXTURES = new ResourceRegistry<>();
     private static final Logger LOG = Logger.getLogger(Texture.class.getName());
     
+    /** пул фонового декодирования изображений */
+    private static final ExecutorService DECODER;
+    static {
+        AtomicInteger threadNum = new AtomicInteger();
+        DECODER = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "texture-decoder-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+    
     /**
      * Проверка является ли указанный путь текстурой
      * @param path путь для проверки
@@ -84,8 +116,7 @@ public final class Texture extends Resource {
      */
     public static boolean pathIsTexture(Path path) {
         return (path != null &&
-                Files.exists(path) && 
-                !Files.isDirectory(path) && 
+                ProjectFiles.exists(path) && 
                 FileSystemUtils.getFileExtension(path).equals(FORMAT_EXT));
     }
     
@@ -95,58 +126,56 @@ public final class Texture extends Resource {
      */
     public static boolean loadAll() {
         closeAll();
+        int entries = readConfig(Texture::loadEntry);
+        if (entries < 0) {
+            return false;
+        }
         
-        File textureConfig = new File(CONFIG_STRING);
+        TEXTURES.markLoaded(entries);
+        return true;
+    }
+    
+    /**
+     * Прочитать конфиг текстур, передавая записи обработчику по мере чтения
+     * @param handler Обработчик записей
+     * @return количество записей в конфиге или -1 в случае ошибки
+     */
+    static int readConfig(ConfigCodec.EntryHandler handler) {
+        Path textureConfig = Paths.get(CONFIG_STRING);
         
-        if (!Files.exists(Global.CONFIG_PATH) || 
-            !textureConfig.exists()) {
-            return false;
+        // конфиг может лежать и в архиве проекта, и в осколках
+        if (!ConfigShards.isSaved(textureConfig)) {
+            return -1;
         }
         
-        // читаем конфиг
-        JsonObject config = new JsonObject();        
-        try (Reader reader = new FileReader(textureConfig)){
-            Gson gson = new GsonBuilder().create();  
-            config = gson.fromJson(reader, JsonObject.class);
+        try {
+            return ConfigShards.read(textureConfig, CONFIG_IDENTIFICATOR, Double.parseDouble(CONFIG_VERSION), handler);
         } catch (Exception ex) {
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
-            return false;
-        }
-              
-        // проверяем правильность конфига
-        if (!Resource.checkConfig(config, 
-                                  CONFIG_IDENTIFICATOR, 
-                                  Double.parseDouble(CONFIG_VERSION))
-           ) {
-            return false;
+            return -1;
         }
-        
-        // данные
-        JsonElement jsonData = config.get("data");
-        if (jsonData == null) {
-            return false;
+    }
+    
+    /**
+     * Создать текстуру по записи конфига, если файл существует
+     * @param entry Запись конфига
+     */
+    static void loadEntry(ConfigCodec.Entry entry) {
+        // если текстура существует
+        if (pathIsTexture(Paths.get(entry.path))) {
+            createEntry(entry);
         }
-        
-        // создаем текстуры по данным из конфига
-        for (JsonElement element : jsonData.getAsJsonArray()) {
-            JsonElement jsonId   = ((JsonObject)element).get("id");
-            JsonElement jsonPath = ((JsonObject)element).get("path");
-            
-            if (jsonId == null || jsonPath == null) {
-                continue;
-            }
-            
-            // если текстура существует
-            Path path = Paths.get(jsonPath.getAsString());
-            if (pathIsTexture(path)) {
-                // добавляем в базу новую текстуру и задаём ей Id
-                new Texture(path)
-                    .setId(jsonId.getAsInt());
-            }
-        }        
-        
-        return true;
+    }
+    
+    /**
+     * Создать текстуру по записи конфига без проверки файла.
+     * Изображение не читается - оно будет декодировано при первом обращении
+     * @param entry Запись конфига
+     */
+    static void createEntry(ConfigCodec.Entry entry) {
+        // добавляем в базу новую текстуру и задаём ей Id
+        new Texture(Paths.get(entry.path), entry.id);
     }
     
     /** 
@@ -154,6 +183,11 @@ public final class Texture extends Resource {
      * @return true в случае успеха
      */
     public static boolean saveConfig() {        
+        // конфиг не изменился с последней загрузки или сохранения
+        if (!TEXTURES.isConfigDirty() && ConfigShards.isSaved(Paths.get(CONFIG_STRING))) {
+            return true;
+        }
+        
         // создадим папку с конфигами, если нужно
         if (!Files.exists(Global.CONFIG_PATH)) {
             try {
@@ -165,24 +199,17 @@ public final class Texture extends Resource {
             }
         }
         
-        // формируем конфиг с описанием текстур проекта
-        JsonArray array = new JsonArray(TEXTURES.size());
-        for (Texture txr : TEXTURES) {
-            JsonObject object = new JsonObject();
-            object.addProperty("id", txr.getId());
-            object.addProperty("path", txr.getPath());
-            array.add(object);
-        }
-        JsonObject config = new JsonObject();
-        config.addProperty("identificator", CONFIG_IDENTIFICATOR);
-        config.addProperty("version", CONFIG_VERSION);
-        config.add("data", array);
-        
-        // сохраняем конфиг текстур
-        try (Writer writer = new FileWriter(CONFIG_STRING)) { 
-            Gson gson = new GsonBuilder().create();   
-            gson.toJson(config, writer);             
+        // пишем конфиг потоком - по записи на каждый ресурс, без промежуточного дерева.
+        // отметку снимаем до записи, чтобы изменение во время записи не потерялось
+        TEXTURES.markConfigClean();
+        try {
+            ConfigShards.write(Paths.get(CONFIG_STRING), 
+                               CONFIG_IDENTIFICATOR, 
+                               CONFIG_VERSION, 
+                               TEXTURES, 
+                               null);
         } catch (IOException ex) {
+            TEXTURES.markConfigDirty();
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
             return false;
@@ -191,6 +218,93 @@ public final class Texture extends Resource {
         return true;
     }
     
+    /**
+     * Перенумеровать текстуры подряд с 1, чтобы поиск по id шел по массиву, и сразу записать результат.
+     * Сначала переписываются все файлы материалов и скайбоксов, ссылающихся на перенумерованные текстуры
+     * (включая заглушки), и только потом - конфиг текстур. Если какой-то файл записать не удалось,
+     * то прежние id возвращаются, а уже переписанные файлы записываются ещё раз со старыми id.
+     * Журнал изменений хранит id текстур, поэтому перед перенумерацией проект должен быть сохранен
+     * @return true в случае успеха (или если id и так идут подряд)
+     */
+    public static boolean compactIds() {
+        // заглушки ссылаются на текстуры по старым id - читаем их до перенумерации
+        Material.loadStubs();
+        Skybox.loadStubs();
+        
+        Map<Texture, Long> oldIds = new HashMap<>();
+        for (Texture txr : TEXTURES) {
+            oldIds.put(txr, txr.getId());
+        }
+        Set<Texture> changed = new HashSet<>(TEXTURES.compactIds());
+        if (changed.isEmpty()) {
+            return true;
+        }
+        
+        List<Resource> users = new ArrayList<>();
+        for (Material mat : Material.MATERIALS) {
+            synchronized (mat) {
+                for (int i = 0; i < mat.getFramesCount(); ++i) {
+                    if (changed.contains(mat.getFrame(i).getTexture())) {
+                        users.add(mat);
+                        break;
+                    }
+                }
+            }
+        }
+        for (Skybox sky : Skybox.SKYBOXES) {
+            for (Skybox.Side side : Skybox.Side.values()) {
+                if (changed.contains(sky.getTexture(side))) {
+                    users.add(sky);
+                    break;
+                }
+            }
+        }
+        
+        // ссылки - до конфига текстур: пока он не записан, на диске действуют старые id
+        List<Resource> written = new ArrayList<>(users.size());
+        for (Resource user : users) {
+            if (!saveUser(user)) {
+                rollbackIds(changed, oldIds, written);
+                return false;
+            }
+            written.add(user);
+        }
+        
+        TEXTURES.markConfigDirty();
+        if (!saveConfig()) {
+            rollbackIds(changed, oldIds, written);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Сохранить файл материала или скайбокса
+     * @param user Материал или скайбокс
+     * @return true в случае успеха
+     */
+    private static boolean saveUser(Resource user) {
+        return (user instanceof Material) ? ((Material) user).save() : ((Skybox) user).save();
+    }
+    
+    /**
+     * Вернуть текстурам прежние id после неудачной перенумерации
+     * @param changed Перенумерованные текстуры
+     * @param oldIds Прежние id текстур
+     * @param written Материалы и скайбоксы, уже записанные с новыми id - переписываются со старыми
+     */
+    private static void rollbackIds(Set<Texture> changed, Map<Texture, Long> oldIds, List<Resource> written) {
+        for (Texture txr : changed) {
+            txr.setId(oldIds.get(txr));
+        }
+        for (Resource user : written) {
+            if (!saveUser(user)) {
+                // останется в журнале со старыми id и сохранится вместе с проектом
+                user.markDirty();
+            }
+        }
+    }
+    
     /**
      * Удалить все текстуры из памяти
      * @return true в случае успеха
@@ -205,7 +319,18 @@ public final class Texture extends Resource {
     }
     public Texture(Path path) {
         super(path);
+        width  = 0;
+        height = 0;
         load(path);
+        register();
+    }
+    /** конструктор для загрузки проекта - id уже известен, изображение декодируется при первом обращении */
+    Texture(Path path, long id) {
+        super(path, id);
+        ContentManifest.Entry entry = ContentManifest.get(getPath());
+        width  = (entry != null) ? entry.getWidth()  : 0;
+        height = (entry != null) ? entry.getHeight() : 0;
+        register();
     }
         
     /**
@@ -216,67 +341,566 @@ public final class Texture extends Resource {
     protected boolean load(Path path) {
         /** если файл существует и он является текстурой */
         if (pathIsTexture(path)) {
-            try {
-                image = ImageUtils.prepareImage(ImageIO.read(path.toFile()));
-            } catch (IOException ex) {
-                LOG.log(Level.SEVERE, null, ex);
+            BufferedImage img = decode(path);
+            if (img == null) {
                 image = IMAGE_EMPTY;
                 return false;
             }
+            image = img;
+            TextureCache.put(this, img, null);
         } else {
             image = IMAGE_EMPTY;
         }
         return true;
     }
     
+    /**
+     * Прочитать и подготовить изображение текстуры из файла.
+     * Не трогает ни одну текстуру, поэтому может выполняться в рабочем потоке
+     * @param path Путь до файла
+     * @return изображение или null в случае ошибки
+     */
+    static BufferedImage decode(Path path) {
+        return decode(path, ProjectFiles.stat(path));
+    }
+    
+    /**
+     * Прочитать и подготовить изображение текстуры из файла, обновив запись о нём в манифесте.
+     * Файл читается в память целиком, чтобы хеш содержимого не требовал второго чтения
+     * @param path Путь до файла
+     * @param attrs Атрибуты файла перед чтением (null - манифест не трогать)
+     * @return изображение или null в случае ошибки
+     */
+    static BufferedImage decode(Path path, BasicFileAttributes attrs) {
+        // PNG не менялся с прошлой подготовки - берем готовые пиксели из кеша
+        if (attrs != null) {
+            TexturePixels cached = PixelCache.read(path, attrs);
+            if (cached != null) {
+                return cached.toImage();
+            }
+        }
+        
+        try {
+            BufferedImage img = readImage(path, attrs);
+            if (attrs != null && PixelCache.isEnabled()) {
+                PixelCache.write(path, attrs, TexturePixels.of(img));
+            }
+            return img;
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Прочитать и подготовить пиксели текстуры из файла сразу вне кучи, обновив запись о нём в манифесте.
+     * Изображение для рисования не строится - его построит getImage(), если текстуру будут рисовать
+     * @param path Путь до файла
+     * @param attrs Атрибуты файла перед чтением
+     * @return пиксели или null в случае ошибки
+     */
+    static TexturePixels decodePixels(Path path, BasicFileAttributes attrs) {
+        TexturePixels cached = PixelCache.read(path, attrs);
+        if (cached != null) {
+            return cached;
+        }
+        
+        try {
+            TexturePixels px = TexturePixels.of(readImage(path, attrs));
+            PixelCache.write(path, attrs, px);
+            return px;
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Прочитать файл в память целиком и подготовить изображение.
+     * Хеш содержимого для манифеста считается по тем же байтам, без второго чтения
+     * @param path Путь до файла
+     * @param attrs Атрибуты файла перед чтением (null - манифест не трогать)
+     * @return изображение
+     * @throws IOException ошибка чтения
+     */
+    private static BufferedImage readImage(Path path, BasicFileAttributes attrs) throws IOException {
+        byte[] data = ProjectFiles.readAllBytes(path);
+        // PNG, записанные редактором, читаются быстрым декодером, остальные - через ImageIO
+        BufferedImage img = PngDecoder.decode(ByteBuffer.wrap(data));
+        if (img == null) {
+            img = ImageUtils.prepareImage(ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data))));
+        }
+        if (attrs != null) {
+            ContentManifest.update(path, attrs, data, img.getWidth(), img.getHeight());
+        }
+        return img;
+    }
+    
+    /**
+     * Декодировать изображение в пуле и отдать его текстуре, если оно всё ещё нужно.
+     * При хранении вне кучи текстура получает только пиксели
+     */
+    private void decodeImage() {
+        BufferedImage img = null;
+        TexturePixels px = null;
+        // изображение уже присвоено или освобождено - читать файл незачем
+        if (!isImageReady()) {
+            Path path = Paths.get(getPath());
+            BasicFileAttributes attrs = ProjectFiles.stat(path);
+            if (attrs != null) {
+                if (TexturePixels.isEnabled()) {
+                    px = decodePixels(path, attrs);
+                } else {
+                    img = decode(path, attrs);
+                }
+            }
+            if (img == null && px == null) {
+                img = IMAGE_EMPTY;
+            }
+        }
+        
+        synchronized (this) {
+            decoding = null;
+            if (image != null || pixels != null) {
+                return;
+            }
+            image  = img;
+            pixels = px;
+        }
+        if (img != IMAGE_EMPTY) {
+            TextureCache.put(this, img, px);
+        }
+        // открытые окна и списки перерисуются по событию изменения текстуры
+        TEXTURES.modified(this);
+    }
+    
+    /**
+     * Запустить декодирование изображения в фоне, если оно ещё не готово
+     * @return future готовности изображения, завершающийся в потоке декодирования
+     */
+    public CompletableFuture<Void> requestImage() {
+        if (isImageReady()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        synchronized (this) {
+            if (isImageReady()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (decoding == null) {
+                TextureCache.miss();
+                decoding = CompletableFuture.runAsync(this::decodeImage, DECODER);
+            }
+            return decoding;
+        }
+    }
+    
+    /**
+     * Получить изображение, дождавшись декодирования.
+     * Нужно там, где изображение меняется или сохраняется - заглушка вместо него испортит файл
+     * @return изображение текстуры
+     */
+    public BufferedImage loadImage() {
+        BufferedImage img = readyImage();
+        if (img == null) {
+            requestImage().join();
+            img = readyImage();
+        }
+        if (img == null) {
+            // бюджет кеша меньше изображения - его вытеснили сразу после декодирования. Читаем мимо кеша
+            img = decode(Paths.get(getPath()), null);
+        }
+        return (img != null) ? img : IMAGE_EMPTY;
+    }
+    
+    /**
+     * Получить пиксели изображения в порядке байт RGBA, дождавшись декодирования.
+     * Пиксели вне кучи отдаются без копирования и без построения изображения для рисования
+     * @return пиксели изображения
+     */
+    public TexturePixels loadPixels() {
+        if (!isImageReady()) {
+            requestImage().join();
+        }
+        TexturePixels px = pixels;
+        if (px != null) {
+            TextureCache.hit(this);
+            return px;
+        }
+        // изображение хранится в куче - пиксели копируются из него
+        return TexturePixels.of(loadImage());
+    }
+    
+    /**
+     * Получить готовое изображение, построив его по пикселям вне кучи, если нужно
+     * @return изображение или null, если оно ещё не декодировано
+     */
+    private BufferedImage readyImage() {
+        BufferedImage img = image;
+        if (img != null) {
+            TextureCache.hit(this);
+            return img;
+        }
+        TexturePixels px = pixels;
+        if (px != null) {
+            TextureCache.hit(this);
+            return buildImage(px);
+        }
+        return null;
+    }
+    
+    /**
+     * Построить изображение для рисования по пикселям вне кучи и учесть его в кеше.
+     * Кеш освободит его раньше самих пикселей, если текстура не открыта в редакторе
+     * @param px Пиксели текстуры
+     * @return изображение
+     */
+    private BufferedImage buildImage(TexturePixels px) {
+        BufferedImage img = px.toImage();
+        synchronized (this) {
+            // пока изображение строилось, его уже построили или пиксели заменили - в кеш не кладем
+            if (image != null && pixels == px) {
+                return image;
+            }
+            if (pixels != px) {
+                return img;
+            }
+            image = img;
+        }
+        TextureCache.put(this, img, px);
+        return img;
+    }
+    
+    /**
+     * Готово ли изображение текстуры
+     * @return true, если getImage вернет декодированное изображение
+     */
+    public boolean isImageReady() {
+        return image != null || pixels != null;
+    }
+    
     /**
      * Сохранить текстуру в файл, к которому она привязана
      * @return true в случае успеха
      */
     public boolean save() {
+        // при хранении вне кучи изображение для рисования может строиться заново - сверяем пиксели
+        TexturePixels px = pixels;
+        BufferedImage img = loadImage();
+        // атомарно - при сбое на диске останется прежнее изображение
         try {
-            ImageIO.write(image, "png", new File(path));
+            FileSystemUtils.writeAtomic(Paths.get(getPath()), out -> ImageIO.write(img, "png", out));
         } catch (IOException ex) {
             LOG.log(Level.SEVERE, null, ex);
             MessageDialog.showException(ex);
             return false;
         }
+        // теперь изображение можно вытеснить - оно перечитается из файла
+        synchronized (this) {
+            if ((px != null) ? pixels == px : (image == img && pixels == null)) {
+                unsaved = false;
+            }
+        }
+        TEXTURES.modified(this);
         return true;
     }
     
     /**
-     * Деструктор
+     * Отметить, что текстура используется в кадре материала
+     * @param frame кадр материала
+     */
+    synchronized void addFrameUser(Material.Frame frame) {
+        frameUsers.add(frame);
+    }
+    
+    /**
+     * Отметить, что текстура больше не используется в кадре материала
+     * @param frame кадр материала
      */
-    public void dispose() {
-        super.dispose();
+    synchronized void removeFrameUser(Material.Frame frame) {
+        frameUsers.remove(frame);
+    }
+    
+    /**
+     * Отметить, что текстура установлена на сторону скайбокса
+     * @param skybox скайбокс
+     * @param side сторона
+     */
+    synchronized void addSkyboxUser(Skybox skybox, Skybox.Side side) {
+        EnumSet<Skybox.Side> skyboxSides = skyboxUsers.get(skybox);
+        if (skyboxSides == null) {
+            skyboxSides = EnumSet.noneOf(Skybox.Side.class);
+            skyboxUsers.put(skybox, skyboxSides);
+        }
+        skyboxSides.add(side);
+    }
+    
+    /**
+     * Отметить, что текстура снята со стороны скайбокса
+     * @param skybox скайбокс
+     * @param side сторона
+     */
+    synchronized void removeSkyboxUser(Skybox skybox, Skybox.Side side) {
+        EnumSet<Skybox.Side> skyboxSides = skyboxUsers.get(skybox);
+        if (skyboxSides != null) {
+            skyboxSides.remove(side);
+            if (skyboxSides.isEmpty()) {
+                skyboxUsers.remove(skybox);
+            }
+        }
+    }
+    
+    /**
+     * Закреплена ли текстура в кеше изображений: она сама, её материал или скайбокс открыты в редакторе
+     * @return true, если изображение вытеснять нельзя
+     */
+    synchronized boolean isPinned() {
+        if (getRefCount() > 0) {
+            return true;
+        }
+        for (Material.Frame frame : frameUsers) {
+            Material mat = frame.getMaterial();
+            if (mat != null && mat.getRefCount() > 0) {
+                return true;
+            }
+        }
+        for (Skybox sky : skyboxUsers.keySet()) {
+            if (sky.getRefCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Вытеснить изображение из памяти, если текстура не закреплена и изображение сохранено.
+     * Следующий getImage() прочитает его из файла заново
+     * @param img Вытесняемое изображение - если у текстуры уже другое, то оно не трогается
+     * @param px Вытесняемые пиксели вне кучи (null - их нет)
+     * @return true, если вытесняемого изображения в памяти больше нет
+     */
+    synchronized boolean evict(BufferedImage img, TexturePixels px) {
+        if (image != img || pixels != px) {
+            return true;
+        }
+        if (unsaved || isPinned()) {
+            return false;
+        }
+        image  = null;
+        pixels = null;
+        return true;
+    }
+    
+    /**
+     * Освободить изображение для рисования, оставив пиксели вне кучи - по ним его можно построить снова.
+     * У закрепленной текстуры изображение остается: её рисует открытый редактор
+     * @param img Освобождаемое изображение - если у текстуры уже другое, то оно не трогается
+     * @return true, если освобождаемого изображения в памяти больше нет
+     */
+    synchronized boolean dropImage(BufferedImage img) {
+        if (image != img) {
+            return true;
+        }
+        if (pixels == null || isPinned()) {
+            return false;
+        }
         image = null;
+        return true;
     }
+    
+    /**
+     * Получить материалы и скайбоксы, в которых используется текстура
+     * @return список ресурсов без повторов
+     */
+    public List<Resource> getUsers() {
+        // заглушки ещё не отметили свои текстуры. Читаем их до блокировки текстуры -
+        // материал блокируется раньше текстуры
+        loadStubUsers();
+        
+        synchronized (this) {
+            Set<Resource> users = new LinkedHashSet<>();
+            for (Material.Frame frame : frameUsers) {
+                if (frame.getMaterial() != null) {
+                    users.add(frame.getMaterial());
+                }
+            }
+            users.addAll(skyboxUsers.keySet());
+            return new ArrayList<>(users);
+        }
+    }
+    
+    /**
+     * Используется ли текстура в материалах или скайбоксах
+     * @return true, если используется
+     */
+    public boolean isUsed() {
+        loadStubUsers();
+        
+        synchronized (this) {
+            return !frameUsers.isEmpty() || !skyboxUsers.isEmpty();
+        }
+    }
+    
+    /**
+     * Прочитать файлы только тех заглушек материалов и скайбоксов, которые ссылаются на текстуру
+     */
+    private void loadStubUsers() {
+        long id = getId();
+        Material.STUBS.load(id);
+        Skybox.STUBS.load(id);
+    }
+    
+    /**
+     * Текстура удаляется из базы - дочитать ссылающиеся на неё заглушки материалов и скайбоксов.
+     * Заглушка ссылается на текстуру только по id: не прочитанная сейчас, она не будет сохранена
+     * и оставит в файле texture_id, который потом может достаться другой текстуре.
+     * Файл кеша пикселей удаленной текстуры тоже больше не нужен (при закрытии проекта кеш остается)
+     */
+    @Override
+    void unregistering() {
+        loadStubUsers();
+        PixelCache.remove(Collections.singletonList(getPath()));
+    }
+    
+    /**
+     * Кеш пикселей хранит изображение по пути текстуры - по прежнему пути его больше не будут искать
+     * @param oldPath Прежний путь проекта
+     */
+    @Override
+    void pathChanged(String oldPath) {
+        PixelCache.remove(Collections.singletonList(oldPath));
+    }
+    
+    /**
+     * Текстура удалена из базы - обнулить только те кадры и стороны, которые на неё ссылаются
+     */
+    @Override
+    void unregistered() {
+        // забираем ссылки под блокировкой, а обнуляем уже без неё
+        List<Material.Frame> frames;
+        Map<Skybox, EnumSet<Skybox.Side>> skyboxes;
+        synchronized (this) {
+            frames = new ArrayList<>(frameUsers);
+            frameUsers.clear();
+            skyboxes = new HashMap<>(skyboxUsers);
+            skyboxUsers.clear();
+        }
+        
+        for (Material.Frame frame : frames) {
+            frame.invalidate(this);
+        }
+        for (Map.Entry<Skybox, EnumSet<Skybox.Side>> entry : skyboxes.entrySet()) {
+            for (Skybox.Side side : entry.getValue()) {
+                entry.getKey().invalidateSide(side, this);
+            }
+        }
         
+        super.unregistered();
+    }
+    
     /**
-     * Получить изображение
-     * @return image изображение текстуры
+     * Освободить изображение текстуры
+     */
+    @Override
+    protected void freeData() {
+        synchronized (this) {
+            image   = IMAGE_EMPTY;
+            pixels  = null;
+            unsaved = false;
+        }
+        TextureCache.remove(this);
+    }
+    
+    /**
+     * Получить изображение. Не ждет декодирования: пока изображение не готово,
+     * возвращается пустое, а декодирование запускается в фоне.
+     * Когда изображение будет готово, придет событие изменения текстуры
+     * @return image изображение текстуры или IMAGE_EMPTY
      */
     public BufferedImage getImage() {
-        return image;
+        BufferedImage img = readyImage();
+        if (img != null) {
+            return img;
+        }
+        requestImage();
+        return IMAGE_EMPTY;
+    }
+    
+    /**
+     * Получить размеры изображения, только если оно уже готово: не запускает декодирование,
+     * не строит изображение по пикселям и не трогает кеш
+     * @return размеры изображения или null
+     */
+    Dimension peekSize() {
+        TexturePixels px = pixels;
+        if (px != null) {
+            return new Dimension(px.getWidth(), px.getHeight());
+        }
+        BufferedImage img = image;
+        return (img != null) ? new Dimension(img.getWidth(), img.getHeight()) : null;
     }
     
     /**
-     * Присвоить изображение
+     * Получить ширину изображения, не дожидаясь декодирования
+     * @return ширина изображения (до декодирования - из манифеста, если известна)
+     */
+    public int getWidth() {
+        Dimension size = peekSize();
+        if (size != null) {
+            return size.width;
+        }
+        if (width > 0) {
+            return width;
+        }
+        return getImage().getWidth();
+    }
+    
+    /**
+     * Получить высоту изображения, не дожидаясь декодирования
+     * @return высота изображения (до декодирования - из манифеста, если известна)
+     */
+    public int getHeight() {
+        Dimension size = peekSize();
+        if (size != null) {
+            return size.height;
+        }
+        if (height > 0) {
+            return height;
+        }
+        return getImage().getHeight();
+    }
+    
+    /**
+     * Присвоить изображение.
+     * При хранении вне кучи его пиксели копируются туда, а само изображение остается для рисования,
+     * пока кеш его не освободит
      * @param image новое изображение
      */
     public void setImage(BufferedImage image) {
-        this.image = ImageUtils.prepareImage(image);
+        BufferedImage img = ImageUtils.prepareImage(image);
+        TexturePixels px = TexturePixels.isEnabled() ? TexturePixels.of(img) : null;
+        synchronized (this) {
+            this.image  = img;
+            this.pixels = px;
+            unsaved = true;
+        }
+        TextureCache.put(this, img, px);
     }
     
     /**
      * Очистить изображение
      */
     public void clearImage() {
-        image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        setImage(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB));
+    }
+    
+    @Override
+    public Resource.Type getResourceType() {
+        return Resource.Type.TEXTURE;
     }
     
     @Override
-    protected List getContainer() {
+    protected ResourceRegistry getContainer() {
         return TEXTURES;
     }
 }
\ No newline at end of file
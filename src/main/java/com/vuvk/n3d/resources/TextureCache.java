@@ -0,0 +1,268 @@
+/**
+    Cache of decoded texture images (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кеш декодированных изображений текстур с ограничением по памяти.
+ * Учитывает объем пикселей всех готовых изображений, и когда он превышает бюджет,
+ * освобождает изображения, к которым дольше всего не обращались.
+ * Не освобождаются закрепленные текстуры (открытые в редакторах сами или через материал и скайбокс)
+ * и текстуры с несохраненным изображением. Освобожденная текстура снова читается из файла
+ * при следующем getImage().
+ * У текстуры с пикселями вне кучи учитываются и пиксели, и построенное по ним изображение для рисования:
+ * сначала освобождается изображение (его легко построить снова), а пиксели - при следующем проходе.
+ * Блокировка кеша никогда не удерживается вместе с блокировкой текстуры
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class TextureCache {
+    
+    /** бюджет по умолчанию - четверть доступной JVM памяти (можно задать в МиБ свойством n3d.textureCache) */
+    private static final long DEFAULT_BUDGET = Long.getLong("n3d.textureCache", Runtime.getRuntime().maxMemory() / 4 >> 20) << 20;
+    
+    /**
+     * Учтенное изображение текстуры
+     */
+    private static final class Entry {
+        /** изображение (null - есть только пиксели вне кучи) */
+        final BufferedImage image;
+        /** пиксели вне кучи (null - изображение хранится только в куче) */
+        final TexturePixels pixels;
+        /** объем изображения и пикселей в байтах */
+        final long bytes;
+        
+        Entry(BufferedImage image, TexturePixels pixels) {
+            this.image  = image;
+            this.pixels = pixels;
+            this.bytes  = ((image != null) ? sizeOf(image) : 0) + ((pixels != null) ? pixels.size() : 0);
+        }
+    }
+    
+    /** изображения текстур в порядке обращений - от давних к недавним (доступ под блокировкой) */
+    private static final LinkedHashMap<Texture, Entry> IMAGES = new LinkedHashMap<>(16, 0.75f, true);
+    /** суммарный объем изображений в кеше (доступ под блокировкой IMAGES) */
+    private static long usedBytes = 0;
+    /** бюджет кеша в байтах */
+    private static volatile long budget = DEFAULT_BUDGET;
+    
+    /** обращения к готовому изображению */
+    private static final AtomicLong HITS = new AtomicLong();
+    /** обращения, после которых изображение пришлось декодировать */
+    private static final AtomicLong MISSES = new AtomicLong();
+    /** освобожденные по бюджету изображения */
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+    
+    private TextureCache() {
+    }
+    
+    /**
+     * Получить бюджет кеша
+     * @return максимальный объем изображений в байтах
+     */
+    public static long getBudget() {
+        return budget;
+    }
+    
+    /**
+     * Задать бюджет кеша. Если изображений уже больше, то лишние сразу освобождаются
+     * @param bytes максимальный объем изображений в байтах
+     */
+    public static void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+        trim();
+    }
+    
+    /**
+     * Получить объем изображений в кеше. Может превышать бюджет, если текстуры закреплены
+     * @return объем в байтах
+     */
+    public static long getUsedBytes() {
+        synchronized (IMAGES) {
+            return usedBytes;
+        }
+    }
+    
+    /**
+     * Получить количество изображений в кеше
+     * @return количество текстур с готовым изображением
+     */
+    public static int getCount() {
+        synchronized (IMAGES) {
+            return IMAGES.size();
+        }
+    }
+    
+    /**
+     * Получить количество обращений к готовому изображению
+     * @return количество попаданий
+     */
+    public static long getHits() {
+        return HITS.get();
+    }
+    
+    /**
+     * Получить количество обращений, запустивших декодирование изображения
+     * @return количество промахов
+     */
+    public static long getMisses() {
+        return MISSES.get();
+    }
+    
+    /**
+     * Получить количество изображений, освобожденных по бюджету
+     * @return количество вытеснений
+     */
+    public static long getEvictions() {
+        return EVICTIONS.get();
+    }
+    
+    /**
+     * Получить долю попаданий
+     * @return доля от 0 до 1 (0, если обращений не было)
+     */
+    public static double getHitRatio() {
+        long hits = HITS.get();
+        long total = hits + MISSES.get();
+        return (total > 0) ? (double) hits / total : 0;
+    }
+    
+    /**
+     * Обнулить счетчики обращений
+     */
+    public static void resetStats() {
+        HITS.set(0);
+        MISSES.set(0);
+        EVICTIONS.set(0);
+    }
+    
+    /**
+     * Получить объем пикселей изображения
+     * @param image изображение
+     * @return объем в байтах
+     */
+    static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+    
+    /**
+     * Отметить обращение к готовому изображению текстуры
+     * @param txr текстура
+     */
+    static void hit(Texture txr) {
+        HITS.incrementAndGet();
+        synchronized (IMAGES) {
+            IMAGES.get(txr);
+        }
+    }
+    
+    /**
+     * Отметить обращение, запустившее декодирование изображения
+     */
+    static void miss() {
+        MISSES.incrementAndGet();
+    }
+    
+    /**
+     * Учесть новое изображение текстуры и освободить давние изображения, если бюджет превышен.
+     * Вызывать без блокировки текстуры
+     * @param txr текстура
+     * @param image её изображение (null - есть только пиксели)
+     * @param pixels её пиксели вне кучи (null - нет)
+     */
+    static void put(Texture txr, BufferedImage image, TexturePixels pixels) {
+        Entry entry = new Entry(image, pixels);
+        synchronized (IMAGES) {
+            Entry old = IMAGES.put(txr, entry);
+            usedBytes += entry.bytes - ((old != null) ? old.bytes : 0);
+        }
+        trim();
+    }
+    
+    /**
+     * Перестать учитывать изображение текстуры (оно освобождено).
+     * Вызывать без блокировки текстуры
+     * @param txr текстура
+     */
+    static void remove(Texture txr) {
+        synchronized (IMAGES) {
+            Entry old = IMAGES.remove(txr);
+            if (old != null) {
+                usedBytes -= old.bytes;
+            }
+        }
+    }
+    
+    /**
+     * Освобождать изображения от давних к недавним, пока объем кеша превышает бюджет.
+     * Каждое изображение пробуется не больше раза: самое давнее сразу переносится в конец очереди,
+     * поэтому закрепленные текстуры не мешают дойти до остальных
+     */
+    static void trim() {
+        int attempts;
+        synchronized (IMAGES) {
+            attempts = IMAGES.size();
+        }
+        
+        while (attempts-- > 0) {
+            Texture txr;
+            Entry entry;
+            synchronized (IMAGES) {
+                if (usedBytes <= budget || IMAGES.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<Texture, Entry>> it = IMAGES.entrySet().iterator();
+                Map.Entry<Texture, Entry> eldest = it.next();
+                txr   = eldest.getKey();
+                entry = eldest.getValue();
+                // в конец очереди - следующая попытка возьмет другую текстуру
+                IMAGES.get(txr);
+            }
+            
+            // текстура блокируется уже без блокировки кеша. Пока она была свободна, её могли
+            // декодировать заново - тогда в кеше уже новое изображение, и его объем не трогаем
+            if (entry.image != null && entry.pixels != null) {
+                // сначала освобождаем только изображение для рисования - пиксели вне кучи остаются
+                if (txr.dropImage(entry.image)) {
+                    Entry rest = new Entry(null, entry.pixels);
+                    synchronized (IMAGES) {
+                        if (IMAGES.replace(txr, entry, rest)) {
+                            usedBytes -= entry.bytes - rest.bytes;
+                            EVICTIONS.incrementAndGet();
+                        }
+                    }
+                    continue;
+                }
+            }
+            if (txr.evict(entry.image, entry.pixels)) {
+                synchronized (IMAGES) {
+                    if (IMAGES.remove(txr, entry)) {
+                        usedBytes -= entry.bytes;
+                        EVICTIONS.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+}
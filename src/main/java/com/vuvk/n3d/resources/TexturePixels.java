@@ -0,0 +1,157 @@
+/**
+    Off-heap storage of texture pixels (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.resources;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Пиксели текстуры вне кучи Java.
+ * Пиксели лежат в прямом ByteBuffer в порядке байт RGBA (как RGBA8888 у libGDX):
+ * в OpenGL и в кеш пикселей этот буфер передается напрямую, а изображение TYPE_INT_ARGB
+ * для рисования строится по нему только тогда, когда текстуру действительно рисуют.
+ * Так десятки мегабайт пикселей не попадают в кучу и не удлиняют паузы сборщика мусора,
+ * а Swing рисует обычное изображение своими быстрыми циклами.
+ * Включается свойством n3d.offHeapTextures или setEnabled(true) - действует на вновь декодируемые изображения
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class TexturePixels {
+    
+    /** хранить ли новые изображения вне кучи */
+    private static volatile boolean enabled = Boolean.getBoolean("n3d.offHeapTextures");
+    
+    /** байты пикселей RGBA, позиция - на начале */
+    private final ByteBuffer bytes;
+    /** размеры изображения */
+    private final int width, height;
+    
+    /**
+     * @param bytes буфер пикселей RGBA (прямой; обычный - только у прочитанных из кеша при выключенном хранении вне кучи)
+     * @param width ширина
+     * @param height высота
+     */
+    TexturePixels(ByteBuffer bytes, int width, int height) {
+        this.bytes  = bytes;
+        this.width  = width;
+        this.height = height;
+    }
+    
+    /**
+     * Хранятся ли новые изображения текстур вне кучи
+     * @return true, если хранятся
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Включить или выключить хранение новых изображений вне кучи.
+     * Уже готовые изображения остаются там, где были
+     * @param enabled true - хранить вне кучи
+     */
+    public static void setEnabled(boolean enabled) {
+        TexturePixels.enabled = enabled;
+    }
+    
+    /**
+     * Скопировать пиксели изображения в новый прямой буфер RGBA
+     * @param image изображение
+     * @return пиксели вне кучи
+     */
+    public static TexturePixels of(BufferedImage image) {
+        int width  = image.getWidth();
+        int height = image.getHeight();
+        ByteBuffer bytes = ByteBuffer.allocateDirect(width * height * 4);
+        IntBuffer pixels = bytes.asIntBuffer();
+        
+        // у подготовленных изображений пиксели ARGB берутся из растра строками - без getRGB
+        // и без захвата массива, после которого Java2D перестает ускорять изображение
+        WritableRaster raster = (image.getType() == BufferedImage.TYPE_INT_ARGB) ? image.getRaster() : null;
+        int[] row = new int[width];
+        for (int y = 0; y < height; ++y) {
+            if (raster != null) {
+                raster.getDataElements(0, y, width, 1, row);
+            } else {
+                image.getRGB(0, y, width, 1, row, 0, width);
+            }
+            // ARGB -> RGBA
+            for (int x = 0; x < width; ++x) {
+                int argb = row[x];
+                row[x] = (argb << 8) | (argb >>> 24);
+            }
+            pixels.put(row);
+        }
+        return new TexturePixels(bytes, width, height);
+    }
+    
+    /**
+     * Получить ширину изображения
+     * @return ширина
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Получить высоту изображения
+     * @return высота
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Получить пиксели без копирования
+     * @return буфер пикселей RGBA, позиция - на начале
+     */
+    public ByteBuffer getBytes() {
+        return bytes.duplicate();
+    }
+    
+    /**
+     * Получить объем пикселей
+     * @return объем в байтах
+     */
+    long size() {
+        return bytes.capacity();
+    }
+    
+    /**
+     * Построить по пикселям изображение TYPE_INT_ARGB для рисования.
+     * Строки пишутся через растр, поэтому изображение остается управляемым и Java2D может его ускорять
+     * @return новое изображение в куче
+     */
+    BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        WritableRaster raster = image.getRaster();
+        IntBuffer pixels = getBytes().asIntBuffer();
+        int[] row = new int[width];
+        for (int y = 0; y < height; ++y) {
+            pixels.get(row);
+            // RGBA -> ARGB
+            for (int x = 0; x < width; ++x) {
+                int rgba = row[x];
+                row[x] = (rgba >>> 8) | (rgba << 24);
+            }
+            raster.setDataElements(0, y, width, 1, row);
+        }
+        return image;
+    }
+}
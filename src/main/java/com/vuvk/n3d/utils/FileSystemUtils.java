@@ -25,13 +25,19 @@ import com.vuvk.n3d.forms.FormSkyboxEditor;
 import com.vuvk.n3d.forms.FormSoundEditor;
 import com.vuvk.n3d.forms.FormTextureEditor;
 import com.vuvk.n3d.resources.Material;
+import com.vuvk.n3d.resources.ProjectFiles;
 import com.vuvk.n3d.resources.Resource;
 import com.vuvk.n3d.resources.Skybox;
 import com.vuvk.n3d.resources.Sound;
 import com.vuvk.n3d.resources.Texture;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -40,12 +46,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.FileUtils;
@@ -59,6 +68,18 @@ import org.apache.commons.lang3.tuple.Pair;
  */
 public final class FileSystemUtils {  
     
+    /**
+     * Запись содержимого файла в поток
+     */
+    public interface OutputWriter {
+        /**
+         * Записать содержимое. Поток закрывать не нужно
+         * @param out Поток записи
+         * @throws IOException ошибка записи
+         */
+        void write(OutputStream out) throws IOException;
+    }
+    
     /** получить расширение файла
      * @param file Файл, расширение которого нужно узнать
      * @return строка, содержащая расширение файла без точки, в нижнем регистре
@@ -90,14 +111,17 @@ public final class FileSystemUtils {
         } else {
             String pathToRoot = "";
             Path checkPath = path;
+            boolean isLeaf = true;
 
-            // собираем имена папок для перехода в путь от корня (resources)
+            // собираем имена папок для перехода в путь от корня (resources).
+            // предки пути - всегда папки, даже если их нет на диске (проект открыт из архива)
             while (checkPath.compareTo(Global.RESOURCES_PATH) != 0) {
-                if (Files.isDirectory(checkPath)) {
+                if (!isLeaf || ProjectFiles.isDirectory(checkPath)) {
                     pathToRoot = checkPath.getFileName().toString() + "/" + pathToRoot;
                 } else {
                     pathToRoot = checkPath.getFileName().toString();
                 }
+                isLeaf = false;
                 checkPath = checkPath.getParent();
                 if (checkPath == null) {
                     break;
@@ -230,25 +254,32 @@ public final class FileSystemUtils {
      * @return true в случае успеха, false - возникла ошибка
      */
     public static boolean repath(Path src, Path dest, boolean isCutMode) {        
-        if (src  == null || !Files.exists(src) ||
+        if (src  == null || !ProjectFiles.contains(src) ||
             dest == null/* ||  Files.exists(dest)*/
            ) {
             return false;
         }
         
-        // списки путей для изменения (пара "старый путь" - "новый путь")
-        final List<Pair<String, String>> texturesForRepath  = new LinkedList<>();
-        final List<Pair<String, String>> materialsForRepath = new LinkedList<>(); 
-        final List<Pair<String, String>> soundsForRepath    = new LinkedList<>(); 
-        final List<Pair<String, String>> skyboxesForRepath  = new LinkedList<>(); 
+        // файлы, которые есть только в архиве проекта, переносятся и копируются через диск
+        try {
+            ProjectFiles.materialize(src);
+        } catch (IOException ex) {
+            Logger.getLogger(FileSystemUtils.class.getName()).log(Level.SEVERE, null, ex);
+            MessageDialog.showException(ex);
+            return false;
+        }
         
         // список переносимых путей (откуда - куда)
         final List<Pair<Path, Path>> pathsForMove = new LinkedList();        
         // найденные файлы на перезапись, которые пользователь запретил перезаписывать (пропустил)
         final List<Pair<Path, Path>> pathsForSkip = new LinkedList<>();
+        // пути проекта пропущенных файлов - их ресурсы остаются на месте
+        final Set<String> projectPathsForSkip = new HashSet<>();
+        // перенесенные файлы - их копии в архиве проекта отмечаются удаленными
+        final List<Path> pathsMoved = new LinkedList<>();
         
         // существует?
-        if (Files.exists(dest, LinkOption.NOFOLLOW_LINKS)) {         
+        if (ProjectFiles.contains(dest)) {         
             // исходный и конечный пути совпадают?
             if (src.compareTo(dest) == 0) {
                 // нельзя вырезать себя в себя!
@@ -257,14 +288,14 @@ public final class FileSystemUtils {
                 // нельзя копировать себя в себя, но можно поместить рядом копию!
                 } else {
                     Path newDest = dest;                
-                    while (Files.exists(newDest, LinkOption.NOFOLLOW_LINKS)) {
+                    while (ProjectFiles.contains(newDest)) {
                         String newName = dest.getParent().toString() + File.separator + "copy of " + newDest.getFileName().toString();
                         newDest = Paths.get(newName);
                     }
                     dest = newDest;
                 }
             // папка не та же самая, но с таким именем уже существует
-            } else if (Files.isDirectory(dest)) {
+            } else if (ProjectFiles.isDirectory(dest)) {
                 // последнее предупреждение!
                 Boolean answer = MessageDialog.showConfirmationYesNoCancel("\"" + dest.toString() + "\"\nуже существует! Перезаписать?");
                 // CANCEL
@@ -273,7 +304,7 @@ public final class FileSystemUtils {
                 // NO
                 } else if (!answer.booleanValue()) {
                     // решил переименовать
-                    while (Files.exists(dest, LinkOption.NOFOLLOW_LINKS)) {
+                    while (ProjectFiles.contains(dest)) {
                         String newName = (String) MessageDialog.showInput("Введите новое имя для объекта\n\"" + dest.toString() + "\":", src.getFileName());
                         if (newName == null) {
                             return true;    // отмена?
@@ -290,7 +321,7 @@ public final class FileSystemUtils {
         StringBuilder nameBuilder = new StringBuilder(getProjectPath(dest));
         // если папка, то добавить слэш, т.к. getProjectPath понятия не имеет 
         // что такое dest - папка или файл, если их не существует
-        if (Files.isDirectory(src) && !Files.exists(dest)) {
+        if (Files.isDirectory(src) && !ProjectFiles.contains(dest)) {
             nameBuilder.append("/");
         }
         final String newName = nameBuilder.toString();
@@ -313,33 +344,13 @@ public final class FileSystemUtils {
                 
                 if (!Files.isDirectory(oldPath)) {
                     // целевой файл существует? Переписать?
-                    if (Files.exists(newPath)) {
+                    if (ProjectFiles.contains(newPath)) {
                         if (!MessageDialog.showConfirmationYesNo("\"" + newPath.toString() + "\"\nуже существует! Перезаписать?")) {
                             pathsForSkip.add(new ImmutablePair<>(oldPath, newPath));
+                            projectPathsForSkip.add(oldPathString);
                             return;
                         }                        
                     }
-                    
-                    // в режиме переноса нужно обновить ссылки
-                    if (isCutMode) {
-                        String ext = getFileExtension(path);
-                        List list = null;
-                        
-                        // по расширению файла определяем что это
-                        switch (ext) {
-                            case Texture.FORMAT_EXT  : list = texturesForRepath;  break;
-                            case Material.FORMAT_EXT : list = materialsForRepath; break;
-                            case Sound.FORMAT_EXT    : list = soundsForRepath;    break;  
-                            case Skybox.FORMAT_EXT   : list = skyboxesForRepath;  break;  
-                            
-                            default:
-                                break;
-                        }
-                        
-                        if (list != null) {
-                            list.add(new ImmutablePair<String, String>(oldPathString, newPathString));
-                        }
-                    }
                 }
                 
                 // если не существует или дано добро на перезапись, то отмечаем путь
@@ -347,6 +358,20 @@ public final class FileSystemUtils {
             }
         }
         PathProcessor pathProcessor = new PathProcessor();
+        
+        // в режиме переноса нужно обновить пути у ресурсов, лежащих в src.
+        // Для папки все они находятся одним запросом по префиксу пути
+        final List<Resource> resourcesForRepath = new LinkedList<>();
+        if (isCutMode) {
+            if (Files.isDirectory(src)) {
+                resourcesForRepath.addAll(Resource.getByPathPrefix(oldName));
+            } else {
+                Resource res = Resource.getByPath(oldName);
+                if (res != null) {
+                    resourcesForRepath.add(res);
+                }
+            }
+        }
 
         // ищем в папке содержащиеся ресурсы и помечаем их для замены у них пути
         if (Files.isDirectory(src)) {
@@ -380,9 +405,9 @@ public final class FileSystemUtils {
             Path to   = paths.getRight();
             
             // если конечный путь существует
-            if (Files.exists(to)) {
+            if (ProjectFiles.contains(to)) {
                 // и это не директория, то удалить из проекта
-                if (!Files.isDirectory(to)) {
+                if (!ProjectFiles.isDirectory(to)) {
                     if (!remove(to)) {
                         return false;
                     }
@@ -395,6 +420,7 @@ public final class FileSystemUtils {
                     Files.createDirectories(to.getParent());
                     if (isCutMode) {
                         Files.move(from, to);
+                        pathsMoved.add(from);
                     } else {
                         Files.copy(from, to);
                     }
@@ -418,30 +444,27 @@ public final class FileSystemUtils {
         // если это режим переноса, то
         // заменяем часть пути (или весь) с учетом нового имени папки или файла
         if (isCutMode) {
-            for (Pair<String, String> paths : texturesForRepath) {
-                Texture txr = (Texture) Resource.getByPath(paths.getLeft(), Resource.Type.TEXTURE);            
-                if (txr != null) {
-                    txr.setPath(paths.getRight());
-                }
+            try {
+                ProjectFiles.delete(pathsMoved);
+            } catch (IOException ex) {
+                Logger.getLogger(FileSystemUtils.class.getName()).log(Level.SEVERE, null, ex);
+                MessageDialog.showException(ex);
+                return false;
             }
-            for (Pair<String, String> paths : materialsForRepath) {
-                Material mat = (Material) Resource.getByPath(paths.getLeft(), Resource.Type.MATERIAL); 
-                if (mat != null) {
-                    mat.setPath(paths.getRight());
-                }
-            } 
-            for (Pair<String, String> paths : soundsForRepath) {
-                Sound snd = (Sound) Resource.getByPath(paths.getLeft(), Resource.Type.SOUND); 
-                if (snd != null) {
-                    snd.setPath(paths.getRight());
-                }
-            } 
-            for (Pair<String, String> paths : skyboxesForRepath) {
-                Skybox sky = (Skybox) Resource.getByPath(paths.getLeft(), Resource.Type.SKYBOX); 
-                if (sky != null) {
-                    sky.setPath(paths.getRight());
+            
+            // папку без пропущенных файлов переподвешиваем в дереве путей целиком,
+            // иначе (или если папка с новым именем уже известна) меняем пути по одному
+            boolean folderMoved = (oldName.endsWith("/") && 
+                                   pathsForSkip.isEmpty() &&
+                                   Resource.moveFolder(oldName, newName));
+            if (!folderMoved) {
+                for (Resource res : resourcesForRepath) {
+                    String oldPathString = res.getPath();
+                    if (!projectPathsForSkip.contains(oldPathString)) {
+                        res.setPath(newName + oldPathString.substring(oldName.length()));
+                    }
                 }
-            } 
+            }
             
             // если исходный путь был папкой и нет пропущенных файлов, то смело удалить её
             if (Files.exists(src)      && 
@@ -457,12 +480,11 @@ public final class FileSystemUtils {
             addResourcesFromPath(dest);
         }
         
-        texturesForRepath.clear();
-        materialsForRepath.clear();
-        soundsForRepath.clear();
-        skyboxesForRepath.clear();
+        resourcesForRepath.clear();
         pathsForMove.clear();
+        pathsMoved.clear();
         pathsForSkip.clear();
+        projectPathsForSkip.clear();
 
         return true;
     }
@@ -473,39 +495,27 @@ public final class FileSystemUtils {
      * @return true, если удалены, false - возникла ошибка
      */
     public static boolean remove(Path path) {   
-        // списки путей для изменения
-        final List<String> texturesForDelete  = new LinkedList<>();
-        final List<String> materialsForDelete = new LinkedList<>();
-        final List<String> soundsForDelete    = new LinkedList<>();
-        final List<String> skyboxesForDelete  = new LinkedList<>();
+        // ресурсы проекта, расположенные в удаляемом пути (одним запросом по префиксу пути)
+        final List<Resource> resourcesForDelete = new LinkedList<>();
+        final String projectPath = getProjectPath(path);
+        if (ProjectFiles.isDirectory(path)) {
+            resourcesForDelete.addAll(Resource.getByPathPrefix(projectPath));
+        } else {
+            Resource res = Resource.getByPath(projectPath);
+            if (res != null) {
+                resourcesForDelete.add(res);
+            }
+        }
         
         /**
          * класс для обработки обнаруженных файлов и папок    
          */
         class PathProcessor {
             /**
-             * Обработать путь - добавить его в список удаления пути, если это известный ресурс
-             * @param path Путь для проверки
+             * Обработать путь - удалить файл
+             * @param path Путь для удаления
              */
-            public void process(Path path) {                
-                String ext = getFileExtension(path);
-                List list = null;
-
-                // по расширению файла определяем что это
-                switch (ext) {
-                    case Texture.FORMAT_EXT  : list = texturesForDelete;  break;
-                    case Material.FORMAT_EXT : list = materialsForDelete; break;
-                    case Sound.FORMAT_EXT    : list = soundsForDelete;    break;
-                    case Skybox.FORMAT_EXT   : list = skyboxesForDelete;  break;
-                    
-                    default:
-                        break;
-                }
-
-                if (list != null) {
-                    list.add(getProjectPath(path));
-                }
-                
+            public void process(Path path) {
                 try {
                     Files.delete(path);
                 } catch (IOException ex) {
@@ -539,79 +549,124 @@ public final class FileSystemUtils {
                 MessageDialog.showException(ex);
             }
         // это файл
-        } else {   
+        } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {   
             pathProcessor.process(path);
         }       
         
-        // удаляем из проекта то, что нашли
-        // текстуры
-        for (String filePath : texturesForDelete) {
-            Texture txr = (Texture) Resource.getByPath(filePath, Resource.Type.TEXTURE); 
-            if (txr != null) {
-                // закрыть окно с открытой удаляемой текстурой
-                if (FormMain.formTextureEditor != null && 
-                    FormTextureEditor.selectedTexture != null &&
-                    FormTextureEditor.selectedTexture.equals(txr)
-                   ) {
-                    FormMain.closeFormTextureEditor();
-                }
-                
-                Texture.TEXTURES.remove(txr);
-            }
+        // файл или папка могут быть и в архиве проекта - там они только отмечаются удаленными
+        try {
+            ProjectFiles.delete(path);
+        } catch (IOException ex) {
+            Logger.getLogger(FileSystemUtils.class.getName()).log(Level.SEVERE, null, ex);
+            MessageDialog.showException(ex);
         }
-        // материалы
-        for (String filePath : materialsForDelete) {
-            Material mat = (Material) Resource.getByPath(filePath, Resource.Type.MATERIAL); 
-            if (mat != null) {
-                // закрыть окно с открытой удаляемым материалом
-                if (FormMain.formMaterialEditor != null && 
-                    FormMaterialEditor.selectedMaterial != null &&
-                    FormMaterialEditor.selectedMaterial.equals(mat)
-                   ) {
-                    FormMain.closeFormMaterialEditor();
-                }
-                
-                Material.MATERIALS.remove(mat);
+        
+        // удаляем из проекта то, что нашли
+        for (Resource res : resourcesForDelete) {
+            switch (res.getResourceType()) {
+                // текстуры
+                case TEXTURE:
+                    // закрыть окно с открытой удаляемой текстурой
+                    if (FormMain.formTextureEditor != null && 
+                        FormTextureEditor.selectedTexture != null &&
+                        FormTextureEditor.selectedTexture.equals(res)
+                       ) {
+                        FormMain.closeFormTextureEditor();
+                    }
+                    
+                    Texture.TEXTURES.remove(res);
+                    break;
+                    
+                // материалы
+                case MATERIAL:
+                    // закрыть окно с открытой удаляемым материалом
+                    if (FormMain.formMaterialEditor != null && 
+                        FormMaterialEditor.selectedMaterial != null &&
+                        FormMaterialEditor.selectedMaterial.equals(res)
+                       ) {
+                        FormMain.closeFormMaterialEditor();
+                    }
+                    
+                    Material.MATERIALS.remove(res);
+                    break;
+                    
+                // звуки
+                case SOUND:
+                    // закрыть окно с открытой удаляемым материалом
+                    if (FormMain.formSoundEditor != null && 
+                        FormSoundEditor.selectedSound != null &&
+                        FormSoundEditor.selectedSound.equals(res)
+                       ) {
+                        FormMain.closeFormSoundEditor();
+                    }
+                    
+                    Sound.SOUNDS.remove(res);
+                    break;
+                    
+                // скайбоксы
+                case SKYBOX:
+                    // закрыть окно с открытым удаляемым скайбоксом
+                    if (FormMain.formSkyboxEditor != null && 
+                        FormSkyboxEditor.selectedSkybox != null &&
+                        FormSkyboxEditor.selectedSkybox.equals(res)
+                       ) {
+                        FormMain.closeFormSoundEditor();
+                    }
+                    
+                    Skybox.SKYBOXES.remove(res);
+                    break;
             }
         }
-        // звуки
-        for (String filePath : soundsForDelete) {
-            Sound snd = (Sound) Resource.getByPath(filePath, Resource.Type.SOUND); 
-            if (snd != null) {
-                // закрыть окно с открытой удаляемым материалом
-                if (FormMain.formSoundEditor != null && 
-                    FormSoundEditor.selectedSound != null &&
-                    FormSoundEditor.selectedSound.equals(snd)
-                   ) {
-                    FormMain.closeFormSoundEditor();
-                }
-                
-                Sound.SOUNDS.remove(snd);
+        
+        resourcesForDelete.clear();
+ 
+        // всё успешно удалено?
+        return !ProjectFiles.contains(path);
+    }
+    
+    /**
+     * Атомарно перезаписать файл.
+     * Данные пишутся во временный скрытый файл рядом с целевым и сбрасываются на диск (fsync),
+     * после чего временный файл переименовывается в целевой. 
+     * При сбое во время записи целевой файл остается прежним
+     * @param path Путь до целевого файла
+     * @param writer Запись содержимого
+     * @throws IOException ошибка записи или переименования
+     */
+    public static void writeAtomic(Path path, OutputWriter writer) throws IOException {
+        Path target = path.toAbsolutePath();
+        Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        // папки может ещё не быть на диске (проект открыт из архива)
+        Files.createDirectories(target.getParent());
+        
+        try {
+            try (FileChannel channel = FileChannel.open(temp, 
+                                                        StandardOpenOption.CREATE, 
+                                                        StandardOpenOption.TRUNCATE_EXISTING, 
+                                                        StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+                writer.write(out);
+                out.flush();
+                channel.force(true);
             }
-        }
-        // скайбоксы
-        for (String filePath : skyboxesForDelete) {
-            Skybox sky = (Skybox) Resource.getByPath(filePath, Resource.Type.SKYBOX); 
-            if (sky != null) {
-                // закрыть окно с открытым удаляемым скайбоксом
-                if (FormMain.formSkyboxEditor != null && 
-                    FormSkyboxEditor.selectedSkybox != null &&
-                    FormSkyboxEditor.selectedSkybox.equals(sky)
-                   ) {
-                    FormMain.closeFormSoundEditor();
-                }
-                
-                Skybox.SKYBOXES.remove(sky);
+            
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
             }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
         }
         
-        texturesForDelete.clear();
-        materialsForDelete.clear();
-        soundsForDelete.clear();
-        skyboxesForDelete.clear();
- 
-        // всё успешно удалено?
-        return !Files.exists(path);
+        // сбросить на диск и саму папку, чтобы переименование пережило сбой.
+        // Не на всех системах папку можно открыть - тогда обойдемся без этого
+        try (FileChannel folder = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+            folder.force(true);
+        } catch (IOException ex) {
+            // например, Windows
+        }
     }
     
     private FileSystemUtils(){}
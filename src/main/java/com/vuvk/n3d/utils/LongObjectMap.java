@@ -0,0 +1,238 @@
+/**
+    Map with primitive long keys (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.utils;
+
+import java.util.Arrays;
+
+/**
+ * Хэш-таблица с открытой адресацией (линейное пробирование) и ключами типа long.
+ * Ключи не упаковываются в Long, поэтому поиск ничего не выделяет в куче.
+ * Значения null не допускаются - пустая ячейка определяется по null в массиве значений.
+ * Класс НЕ потокобезопасный
+ * @author Anton "Vuvk" Shcherbatykh
+ * @param <V> тип значений
+ */
+public final class LongObjectMap<V> {
+    /** начальная ёмкость таблицы (степень двойки) */
+    private static final int DEFAULT_CAPACITY = 16;
+    /** максимальная заполненность таблицы перед расширением */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /** ключи */
+    private long[] keys;
+    /** значения, null - пустая ячейка */
+    private Object[] values;
+    /** количество элементов */
+    private int size;
+    /** маска индекса (ёмкость - 1) */
+    private int mask;
+    /** количество элементов, при котором таблица расширяется */
+    private int threshold;
+
+    public LongObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Выделить массивы заданной ёмкости
+     * @param capacity ёмкость (степень двойки)
+     */
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Номер начальной ячейки для ключа
+     * @param key ключ
+     * @return индекс в таблице
+     */
+    private int indexOf(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Получить значение по ключу
+     * @param key ключ
+     * @return значение или null, если ключа нет
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        for (int i = indexOf(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Есть ли значение с таким ключом
+     * @param key ключ
+     * @return true, если есть
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Положить значение по ключу
+     * @param key ключ
+     * @param value значение (не null)
+     * @return предыдущее значение или null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        int i = indexOf(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Удалить значение по ключу
+     * @param key ключ
+     * @return удаленное значение или null, если ключа не было
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        for (int i = indexOf(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                shiftBack(i);
+                --size;
+                return old;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Удалить значение по ключу, только если ключу соответствует именно это значение
+     * @param key ключ
+     * @param value ожидаемое значение
+     * @return true, если значение было удалено
+     */
+    public boolean remove(long key, Object value) {
+        for (int i = indexOf(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                if (values[i] != value) {
+                    return false;
+                }
+                shiftBack(i);
+                --size;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Освободить ячейку, сдвинув назад следующие за ней элементы цепочки пробирования
+     * (удаление без "надгробий")
+     * @param free индекс освобождаемой ячейки
+     */
+    private void shiftBack(int free) {
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = indexOf(keys[i]);
+            // элемент можно перенести в free, если его начальная ячейка не лежит между free и i
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                free = i;
+            }
+        }
+        values[free] = null;
+    }
+
+    /**
+     * Перестроить таблицу с новой ёмкостью
+     * @param capacity новая ёмкость
+     */
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        for (int j = 0; j < oldValues.length; ++j) {
+            if (oldValues[j] != null) {
+                int i = indexOf(oldKeys[j]);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Удалить все значения
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Получить количество элементов
+     * @return количество элементов
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Пуста ли таблица
+     * @return true, если элементов нет
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -20,6 +20,7 @@ package com.vuvk.n3d.utils;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 /**
  *
@@ -47,10 +48,15 @@ public final class MessageDialog {
     }
     
     /**
-     * Отобразить сообщение с текстом ошибки
+     * Отобразить сообщение с текстом ошибки.
+     * Из рабочего потока (например, при открытии проекта) сообщение откладывается в EDT
      * @param msg Cообщение, которое необходимо отобразить
      */
     public static void showError(String msg) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> showError(msg));
+            return;
+        }
         JOptionPane.showMessageDialog(null, 
                                       msg, 
                                       "Error", 
@@ -0,0 +1,273 @@
+/**
+    Fast decoder of texture PNG files (Nuke3D Editor)
+    Copyright (C) 2019 Anton "Vuvk" Shcherbatykh <vuvk69@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.vuvk.n3d.utils;
+
+import com.vuvk.n3d.resources.Texture;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Быстрое декодирование PNG, которые пишет сам редактор: 8 бит на канал, RGBA или RGB,
+ * без чересстрочности, без прозрачного цвета (tRNS), гаммы (gAMA), значащих битов (sBIT) и профиля цвета,
+ * стороны - степени двойки не больше максимального размера текстуры.
+ * Данные распаковываются Inflater'ом прямо из буфера файла, а фильтры строк снимаются сразу
+ * в массив пикселей TYPE_INT_ARGB, минуя общий декодер ImageIO и промежуточные изображения.
+ * Результат совпадает с ImageUtils.prepareImage(ImageIO.read(...)) попиксельно, включая
+ * округление цвета полупрозрачных пикселей.
+ * Для любого другого PNG (и для испорченного файла) возвращается null - тогда нужен ImageIO
+ * @author Anton "Vuvk" Shcherbatykh
+ */
+public final class PngDecoder {
+    
+    /** сигнатура PNG */
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    /** типы нужных фрагментов */
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+    /** встроенный ICC-профиль - ImageIO с ним меняет цвета, поэтому такие файлы не берем */
+    private static final int ICCP = 0x69434350;
+    /** прозрачный цвет, гамма и значащие биты - их тоже учитывает только ImageIO */
+    private static final int TRNS = 0x74524E53;
+    private static final int GAMA = 0x67414D41;
+    private static final int SBIT = 0x73424954;
+    /** типы цвета */
+    private static final int COLOR_RGB  = 2;
+    private static final int COLOR_RGBA = 6;
+    
+    private PngDecoder() {
+    }
+    
+    /**
+     * Декодировать PNG, если он подходит под профиль текстур редактора
+     * @param data Содержимое файла (позиция буфера не меняется)
+     * @return подготовленное изображение TYPE_INT_ARGB или null, если файл нужно читать через ImageIO
+     */
+    public static BufferedImage decode(ByteBuffer data) {
+        ByteBuffer in = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        Inflater inflater = new Inflater();
+        try {
+            return decode(in, inflater);
+        } catch (DataFormatException | RuntimeException ex) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    /**
+     * Разобрать фрагменты файла и распаковать строки изображения
+     * @param in Содержимое файла с позицией на начале
+     * @param inflater Распаковщик
+     * @return изображение или null, если файл не подходит
+     * @throws DataFormatException испорченные сжатые данные
+     */
+    private static BufferedImage decode(ByteBuffer in, Inflater inflater) throws DataFormatException {
+        if (in.remaining() < 33 || in.getLong() != SIGNATURE || in.getInt() != 13 || in.getInt() != IHDR) {
+            return null;
+        }
+        int width       = in.getInt();
+        int height      = in.getInt();
+        int depth       = in.get() & 0xFF;
+        int color       = in.get() & 0xFF;
+        int compression = in.get() & 0xFF;
+        int filter      = in.get() & 0xFF;
+        int interlace   = in.get() & 0xFF;
+        in.getInt();
+        
+        if (width  <= 0 || width  > Texture.MAX_WIDTH  || !MathUtils.isPowerOfTwo(width)  ||
+            height <= 0 || height > Texture.MAX_HEIGHT || !MathUtils.isPowerOfTwo(height) ||
+            depth != 8 || (color != COLOR_RGBA && color != COLOR_RGB) ||
+            compression != 0 || filter != 0 || interlace != 0
+           ) {
+            return null;
+        }
+        
+        int bpp    = (color == COLOR_RGBA) ? 4 : 3;
+        int stride = width * bpp;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        
+        // строка - байт фильтра и пиксели; предыдущая строка нужна фильтрам Up, Average и Paeth
+        byte[] row  = new byte[stride + 1];
+        byte[] prev = new byte[stride + 1];
+        int filled = 0;
+        int y = 0;
+        byte[] chunk = null;
+        
+        while (in.remaining() >= 8) {
+            int length = in.getInt();
+            int type   = in.getInt();
+            if (length < 0 || length > in.remaining() - 4) {
+                return null;
+            }
+            
+            if (type == IDAT) {
+                if (in.hasArray()) {
+                    inflater.setInput(in.array(), in.arrayOffset() + in.position(), length);
+                } else {
+                    // отображенный файл: Inflater в Java 8 принимает только массив
+                    if (chunk == null || chunk.length < length) {
+                        chunk = new byte[length];
+                    }
+                    in.duplicate().get(chunk, 0, length);
+                    inflater.setInput(chunk, 0, length);
+                }
+                
+                while (y < height) {
+                    int count = inflater.inflate(row, filled, row.length - filled);
+                    if (count == 0) {
+                        if (inflater.needsDictionary()) {
+                            return null;
+                        }
+                        if (inflater.needsInput() || inflater.finished()) {
+                            break;
+                        }
+                    }
+                    filled += count;
+                    if (filled == row.length) {
+                        if (!unfilter(row, prev, bpp)) {
+                            return null;
+                        }
+                        writeRow(row, pixels, y * width, width, bpp);
+                        byte[] swap = prev;
+                        prev = row;
+                        row  = swap;
+                        filled = 0;
+                        ++y;
+                    }
+                }
+            } else if (type == IEND) {
+                return (y == height) ? image : null;
+            } else if ((type & 0x20000000) == 0 || 
+                       type == ICCP || type == TRNS || type == GAMA || type == SBIT) {
+                // неизвестный обязательный фрагмент (палитра и т.п.) или фрагмент, меняющий цвета
+                return null;
+            }
+            
+            in.position(in.position() + length + 4);
+        }
+        return null;
+    }
+    
+    /**
+     * Снять фильтр строки
+     * @param row Строка: байт типа фильтра и отфильтрованные байты
+     * @param prev Предыдущая строка уже без фильтра (для первой - нули)
+     * @param bpp Байт на пиксель
+     * @return false, если тип фильтра неизвестен
+     */
+    private static boolean unfilter(byte[] row, byte[] prev, int bpp) {
+        int length = row.length;
+        switch (row[0]) {
+            case 0:
+                break;
+                
+            case 1:
+                for (int i = 1 + bpp; i < length; ++i) {
+                    row[i] += row[i - bpp];
+                }
+                break;
+                
+            case 2:
+                for (int i = 1; i < length; ++i) {
+                    row[i] += prev[i];
+                }
+                break;
+                
+            case 3:
+                for (int i = 1; i < length; ++i) {
+                    int left = (i > bpp) ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (left + (prev[i] & 0xFF)) >>> 1;
+                }
+                break;
+                
+            case 4:
+                for (int i = 1; i < length; ++i) {
+                    int a = (i > bpp) ? row[i - bpp]  & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = (i > bpp) ? prev[i - bpp] & 0xFF : 0;
+                    int p  = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    row[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+                }
+                break;
+                
+            default:
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Записать строку в массив пикселей ARGB
+     * @param row Строка без фильтра (байты пикселей с индекса 1)
+     * @param pixels Пиксели изображения
+     * @param offset Индекс первого пикселя строки
+     * @param width Ширина изображения
+     * @param bpp Байт на пиксель
+     */
+    private static void writeRow(byte[] row, int[] pixels, int offset, int width, int bpp) {
+        int i = 1;
+        if (bpp == 3) {
+            for (int x = 0; x < width; ++x, i += 3) {
+                pixels[offset + x] = 0xFF000000 | 
+                                     ((row[i] & 0xFF) << 16) | 
+                                     ((row[i + 1] & 0xFF) << 8) | 
+                                     (row[i + 2] & 0xFF);
+            }
+            return;
+        }
+        
+        for (int x = 0; x < width; ++x, i += 4) {
+            int r = row[i] & 0xFF;
+            int g = row[i + 1] & 0xFF;
+            int b = row[i + 2] & 0xFF;
+            int a = row[i + 3] & 0xFF;
+            if (a == 0xFF) {
+                pixels[offset + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            } else if (a == 0) {
+                pixels[offset + x] = 0;
+            } else {
+                pixels[offset + x] = (a << 24) | (normalize(r, a) << 16) | (normalize(g, a) << 8) | normalize(b, a);
+            }
+        }
+    }
+    
+    /**
+     * Округлить канал полупрозрачного пикселя так же, как Java2D при отрисовке в prepareImage:
+     * умножение на альфу и обратное деление по таблицам 8-битной арифметики
+     * @param value Значение канала
+     * @param alpha Альфа пикселя (от 1 до 254)
+     * @return значение канала после отрисовки
+     */
+    private static int normalize(int value, int alpha) {
+        int premultiplied = (int) ((alpha * 0x010101L * value + (1 << 23)) >>> 24);
+        if (premultiplied >= alpha) {
+            return 0xFF;
+        }
+        long step = ((0xFFL << 24) + alpha / 2) / alpha;
+        return (int) (((1 << 23) + step * premultiplied) >>> 24);
+    }
+}